@@ -0,0 +1,156 @@
+package com.embabel.urbot;
+
+import com.embabel.chat.Conversation;
+import com.embabel.chat.UserMessage;
+import com.embabel.common.ai.model.EmbeddingService;
+import com.embabel.urbot.rag.DocumentService;
+import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Semantic cache of answers to questions about the global documents, shared by all users.
+ * <p>
+ * An answer is served for a question whose embedding is close enough to that of a cached question,
+ * whoever asked it. Entries record the version of the global documents they were generated from,
+ * and are dropped once a global document is ingested, replaced or deleted.
+ * <p>
+ * Only turns that use nothing but global references are cached, as an answer drawing on personal
+ * documents or memories would be neither shareable nor invalidated by that version. Callers answer
+ * a turn that has a key with the global references alone, and must not store answers to turns
+ * that called tools, whose results may change at any time.
+ */
+@Component
+public class AnswerCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnswerCache.class);
+
+    /**
+     * Identifies the question of an eligible turn.
+     */
+    public record Key(String question, float[] embedding, long globalVersion) {
+    }
+
+    private record Entry(Key key, String answer, Duration generationTime, long expiresAt) {
+    }
+
+    private final EmbeddingService embeddingService;
+    private final DocumentService documentService;
+    private final AnswerCacheOptions options;
+    private final Map<String, Entry> entries;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer latencySaved;
+
+    AnswerCache(EmbeddingService embeddingService, DocumentService documentService,
+                UrbotProperties properties, MeterRegistry meterRegistry) {
+        this.embeddingService = embeddingService;
+        this.documentService = documentService;
+        this.options = properties.chat().answerCache();
+        this.entries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > options.maxEntries();
+            }
+        };
+        this.hits = Counter.builder("urbot.chat.answer-cache.requests")
+                .tag("result", "hit")
+                .description("Eligible chat turns answered from the answer cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("urbot.chat.answer-cache.requests")
+                .tag("result", "miss")
+                .description("Eligible chat turns not found in the answer cache")
+                .register(meterRegistry);
+        this.latencySaved = Timer.builder("urbot.chat.answer-cache.latency-saved")
+                .description("Time originally taken to generate each answer served from the cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The cache key for the latest question in the conversation, or null if the cache is disabled
+     * or the turn needs the user's own documents. A turn with a key is answered from the global
+     * references alone, without memories.
+     */
+    public @Nullable Key keyFor(UrbotUser user, Conversation conversation) {
+        if (!options.enabled() || documentService.getDocumentCount(user.effectiveContext()) > 0) {
+            return null;
+        }
+        var recent = conversation.last(1).getMessages();
+        if (recent.isEmpty() || !(recent.getLast() instanceof UserMessage question)) {
+            return null;
+        }
+        return new Key(
+                question.getContent(),
+                embeddingService.embed(question.getContent()),
+                documentService.getCatalogVersion(DocumentService.Context.GLOBAL_CONTEXT));
+    }
+
+    /**
+     * The most similar cached answer above the similarity threshold, if any.
+     */
+    public Optional<String> lookup(Key key) {
+        var now = System.currentTimeMillis();
+        Entry best = null;
+        var bestSimilarity = options.similarityThreshold();
+        synchronized (entries) {
+            entries.values().removeIf(entry ->
+                    entry.expiresAt() <= now || entry.key().globalVersion() != key.globalVersion());
+            for (var entry : entries.values()) {
+                var similarity = cosine(entry.key().embedding(), key.embedding());
+                if (similarity >= bestSimilarity) {
+                    best = entry;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        if (best == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        latencySaved.record(best.generationTime());
+        logger.debug("Answer cache hit for '{}' (similarity {}), matching '{}'",
+                key.question(), bestSimilarity, best.key().question());
+        return Optional.of(best.answer());
+    }
+
+    /**
+     * Cache a complete answer generated for the question.
+     */
+    public void store(Key key, String answer, Duration generationTime) {
+        if (key.globalVersion() != documentService.getCatalogVersion(DocumentService.Context.GLOBAL_CONTEXT)) {
+            // The global documents changed while the answer was generated
+            return;
+        }
+        var expiresAt = System.currentTimeMillis() + options.ttl().toMillis();
+        synchronized (entries) {
+            entries.put(UUID.randomUUID().toString(), new Entry(key, answer, generationTime, expiresAt));
+        }
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (var i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+    }
+}
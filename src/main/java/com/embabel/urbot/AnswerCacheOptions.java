@@ -0,0 +1,25 @@
+package com.embabel.urbot;
+
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * Configuration for the semantic answer cache, which reuses answers to similar questions about
+ * the global documents across users.
+ *
+ * @param enabled             whether answers are cached. Turns of users with no documents in their
+ *                            current context are answered from global references alone, without
+ *                            memories, and cached unless they called tools
+ * @param similarityThreshold cosine similarity between question embeddings above which a cached
+ *                            answer is served
+ * @param maxEntries          answers kept; the oldest are evicted
+ * @param ttl                 how long an answer is served after it was generated
+ */
+public record AnswerCacheOptions(
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue("0.95") double similarityThreshold,
+        @DefaultValue("1000") int maxEntries,
+        @DefaultValue("24h") Duration ttl
+) {
+}
@@ -4,62 +4,88 @@ import com.embabel.agent.api.annotation.Action;
 import com.embabel.agent.api.annotation.EmbabelComponent;
 import com.embabel.agent.api.common.ActionContext;
 import com.embabel.agent.api.common.OperationContext;
-import com.embabel.agent.api.reference.LlmReference;
-import com.embabel.agent.api.tool.Tool;
-import com.embabel.agent.rag.service.SearchOperations;
+import com.embabel.agent.api.common.PromptRunner;
 import com.embabel.chat.*;
-import com.embabel.common.core.types.Named;
 import com.embabel.dice.agent.Memory;
 import com.embabel.dice.common.ConversationAnalysisRequestEvent;
 import com.embabel.dice.projection.memory.MemoryProjector;
 import com.embabel.dice.proposition.PropositionRepository;
+import com.embabel.urbot.conversation.ConversationSummarizer;
 import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationEventPublisher;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The platform can use any action to respond to user messages.
- * Picks up references and tools configured as Spring beans.
- * Thus extensibility works via profile--simply add beans
+ * Picks up references and tools configured as Spring beans,
+ * through {@link ChatResources}. Thus extensibility works via profile--simply add beans
  * under com.embabel.bot
  */
 @EmbabelComponent
 public class ChatActions {
 
+    private static final String FALLBACK_RESPONSE = "Sorry, something went wrong";
+
+    // Appended to a streamed answer cut off by an error, so neither the user nor later turns
+    // take it for a complete answer
+    static final String TRUNCATED_NOTICE = "\n\n_[Response interrupted: something went wrong before it was finished.]_";
+
     private final Logger logger = LoggerFactory.getLogger(ChatActions.class);
 
-    private final SearchOperations searchOperations;
+    private final ChatResources chatResources;
     private final UrbotProperties properties;
-    private final List<LlmReference> globalReferences;
-    private final List<Tool> globalTools;
     private final MemoryProjector memoryProjector;
     private final PropositionRepository propositionRepository;
     private final ApplicationEventPublisher eventPublisher;
+    private final SystemPromptRenderer systemPromptRenderer;
+    private final RetrievalPrefetch retrievalPrefetch;
+    private final AnswerCache answerCache;
+    private final ConversationSummarizer conversationSummarizer;
+    private final ChatTurnExecutor chatTurnExecutor;
+    private final ObservationRegistry observationRegistry;
+    private final LlmScheduler llmScheduler;
+    private final EagerMemorySelector eagerMemorySelector;
+    private final ToolCallObservations toolCallObservations;
 
     public ChatActions(
-            SearchOperations searchOperations,
-            List<LlmReference> globalReferences,
-            List<Tool> globalTools,
+            ChatResources chatResources,
             UrbotProperties properties,
             MemoryProjector memoryProjector,
             PropositionRepository propositionRepository,
-            ApplicationEventPublisher eventPublisher) {
-        this.searchOperations = searchOperations;
-        this.globalReferences = globalReferences;
-        this.globalTools = globalTools;
+            ApplicationEventPublisher eventPublisher,
+            SystemPromptRenderer systemPromptRenderer,
+            RetrievalPrefetch retrievalPrefetch,
+            AnswerCache answerCache,
+            ConversationSummarizer conversationSummarizer,
+            ChatTurnExecutor chatTurnExecutor,
+            ObservationRegistry observationRegistry,
+            LlmScheduler llmScheduler,
+            EagerMemorySelector eagerMemorySelector,
+            ToolCallObservations toolCallObservations) {
+        this.chatResources = chatResources;
         this.properties = properties;
         this.memoryProjector = memoryProjector;
         this.propositionRepository = propositionRepository;
         this.eventPublisher = eventPublisher;
-
-        logger.info("ChatActions initialized. Global references: [{}], Global tools: [{}]",
-                globalReferences.stream().map(Named::getName).collect(java.util.stream.Collectors.joining(", ")),
-                globalTools.stream().map(t -> t.getDefinition().getName()).collect(java.util.stream.Collectors.joining(", ")));
+        this.systemPromptRenderer = systemPromptRenderer;
+        this.retrievalPrefetch = retrievalPrefetch;
+        this.answerCache = answerCache;
+        this.conversationSummarizer = conversationSummarizer;
+        this.chatTurnExecutor = chatTurnExecutor;
+        this.observationRegistry = observationRegistry;
+        this.llmScheduler = llmScheduler;
+        this.eagerMemorySelector = eagerMemorySelector;
+        this.toolCallObservations = toolCallObservations;
     }
 
     /**
@@ -84,38 +110,155 @@ public class ChatActions {
             Conversation conversation,
             UrbotUser user,
             ActionContext context) {
+        // The agent process runs apart from the turn's thread, so link to the turn explicitly
+        var turn = chatTurnExecutor.runningTurn(user.getId());
+        var processId = context.getProcessContext().getAgentProcess().getId();
+        Observation.createNotStarted("urbot.chat.respond", observationRegistry)
+                .parentObservation(turn.map(ChatTurnExecutor.Turn::observation).orElse(null))
+                .highCardinalityKeyValue("urbot.turn.id", turn.map(ChatTurnExecutor.Turn::id).orElse("none"))
+                .highCardinalityKeyValue("urbot.process.id", processId)
+                // Output sent while answering is tagged with the turn, so a late answer is not shown for a later turn
+                .observe(() -> {
+                    try {
+                        // Cancelling the turn interrupts this, aborting the LLM call in flight
+                        chatTurnExecutor.workFor(turn.orElse(null), () -> {
+                            answer(conversation, user, context);
+                            return null;
+                        });
+                    } catch (CancellationException e) {
+                        // The process belongs to the session and answers the next message, so don't fail it
+                        logger.info("Stopped answering cancelled chat turn {}",
+                                turn.map(ChatTurnExecutor.Turn::id).orElse("none"));
+                    }
+                });
+    }
+
+    private void answer(Conversation conversation, UrbotUser user, ActionContext context) {
+        var start = System.nanoTime();
+        var cacheKey = answerCache.keyFor(user, conversation);
+        if (cacheKey != null) {
+            var cached = answerCache.lookup(cacheKey);
+            if (cached.isPresent()) {
+                context.sendMessage(conversation.addMessage(new AssistantMessage(cached.get())));
+                return;
+            }
+        }
+
         var recentContext = new WindowingConversationFormatter(
                 SimpleMessageFormatter.INSTANCE
         ).format(conversation.last(properties.chat().messagesToEmbed()));
+        var messages = conversation.getMessages();
+        var latestMessage = !messages.isEmpty() && messages.getLast() instanceof UserMessage message
+                ? message.getContent()
+                : null;
+        // Runs while the response is prepared; its results are waited for where they are used
+        var retrieval = retrievalPrefetch.prefetch(user, recentContext, latestMessage);
 
-        var references = new LinkedList<>(globalReferences);
-        references.addAll(user.references(searchOperations));
-        if (properties.memory().getEnabled()) {
+        // A turn whose answer may be cached for others uses nothing of the user's own
+        var resources = cacheKey != null ? chatResources.global() : chatResources.forUser(user);
+        var references = new ArrayList<>(resources.references());
+        if (properties.memory().getEnabled() && cacheKey == null) {
+            // Memories loaded up front are chosen by relevance within a token budget
             references.add(Memory.forContext(user.currentContext())
-                    .withRepository(propositionRepository)
+                    .withRepository(eagerMemorySelector.forEagerSearch(propositionRepository, recentContext))
                     .withProjector(memoryProjector)
                     .withEagerSearchAbout(recentContext, properties.chat().memoryEagerLimit()));
         }
 
-        var assistantMessage = context.
+        var promptRunner = context.
                 ai()
                 .withLlm(properties.chat().llm())
                 .withId("chat_response")
-                .withTools(globalTools)
-                .withTools(user.tools())
-                .withReferences(references)
-                .rendering("urbot")
-                .respond(
-                        conversation,
-                        Map.of(
-                                "properties", properties,
-                                "user", user
-                        ),
-                        ex -> new AssistantMessage("Sorry, something went wrong"));
+                .withTools(resources.tools())
+                .withReferences(references);
+        // Older messages are replaced by a summary, keeping the messages sent within the token budget
+        var history = conversationSummarizer.window(conversation);
+        Map<String, Object> model = new HashMap<>();
+        model.put("properties", properties);
+        model.put("user", user);
+        var excerpts = retrieval.excerpts();
+        if (!excerpts.isEmpty()) {
+            model.put("prefetched", excerpts);
+        }
+        if (history.summary() != null) {
+            model.put("summary", history.summary());
+        }
+        // Rendered once and sent as is on both paths; context for this turn only goes into the
+        // latest user message, so the system prompt and history before it stay cacheable
+        var systemPrompt = systemPromptRenderer.render(user, model);
+        var recent = systemPrompt.withTurnContext(history.recent());
+        var failed = new AtomicBoolean();
+        var streaming = properties.chat().streaming() && promptRunner.supportsStreaming();
+        AssistantMessage assistantMessage;
+        boolean usedTools;
+        // Answers that used tools are not cached, as tool results may change at any time
+        try (var toolCalls = toolCallObservations.countCalls(context.getProcessContext().getAgentProcess().getId())) {
+            // LLM calls for the response, including after tool calls, are admitted ahead of background work
+            assistantMessage = llmScheduler.inLane(LlmScheduler.Lane.CHAT, user.getId(), () ->
+                    Observation.createNotStarted("urbot.chat.llm", observationRegistry)
+                            .lowCardinalityKeyValue("streaming", String.valueOf(streaming))
+                            .observe(() -> streaming
+                                    ? streamResponse(promptRunner, recent, systemPrompt.prompt(), context, failed)
+                                    : promptRunner
+                                    .rendering("system_prompt")
+                                    .respond(
+                                            recent,
+                                            Map.<String, Object>of("system_prompt", systemPrompt.prompt()),
+                                            ex -> {
+                                                failed.set(true);
+                                                return new AssistantMessage(FALLBACK_RESPONSE);
+                                            })));
+            usedTools = toolCalls.calls() > 0;
+        }
         context.sendMessage(conversation.addMessage(assistantMessage));
+        conversationSummarizer.summarizeInBackground(conversation);
+        if (cacheKey != null && !failed.get() && !usedTools) {
+            answerCache.store(cacheKey, assistantMessage.getContent(), Duration.ofNanos(System.nanoTime() - start));
+        }
 
         if (properties.memory().getEnabled()) {
             eventPublisher.publishEvent(new ConversationAnalysisRequestEvent(this, user, conversation));
         }
     }
+
+    /**
+     * Generate the response as a stream, sending each piece through the output channel
+     * as a {@link PartialMessageOutputChannelEvent} so the UI can show it as it arrives.
+     * The system prompt is the same as for a non-streamed response.
+     * If the stream fails part way, the text received so far is kept, marked as truncated
+     * with {@link #TRUNCATED_NOTICE}, which is also sent to the UI.
+     */
+    private AssistantMessage streamResponse(
+            PromptRunner promptRunner,
+            Conversation conversation,
+            String systemPrompt,
+            ActionContext context,
+            AtomicBoolean failed) {
+        var outputChannel = context.getProcessContext().getOutputChannel();
+        var processId = context.getProcessContext().getAgentProcess().getId();
+        // Pieces may arrive on another thread, so carry the turn with them
+        var turnId = chatTurnExecutor.turnOfCurrentThread().map(ChatTurnExecutor.Turn::id).orElse(null);
+        var text = new StringBuilder();
+        try {
+            promptRunner
+                    .withSystemPrompt(systemPrompt)
+                    .stream()
+                    .withMessages(conversation.getMessages())
+                    .generateStream()
+                    .doOnNext(delta -> {
+                        text.append(delta);
+                        outputChannel.send(new PartialMessageOutputChannelEvent(processId, turnId, delta));
+                    })
+                    .blockLast();
+        } catch (Exception e) {
+            logger.warn("Streaming response failed after {} characters", text.length(), e);
+            failed.set(true);
+            if (text.isEmpty()) {
+                return new AssistantMessage(FALLBACK_RESPONSE);
+            }
+            text.append(TRUNCATED_NOTICE);
+            outputChannel.send(new PartialMessageOutputChannelEvent(processId, turnId, TRUNCATED_NOTICE));
+        }
+        return new AssistantMessage(text.toString());
+    }
 }
@@ -4,8 +4,7 @@ import com.embabel.agent.core.AgentPlatform;
 import com.embabel.agent.core.Verbosity;
 import com.embabel.chat.Chatbot;
 import com.embabel.chat.agent.AgentProcessChatbot;
-import com.embabel.chat.support.InMemoryConversationFactory;
-
+import com.embabel.urbot.conversation.PersistentConversationFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -16,13 +15,14 @@ import org.springframework.context.annotation.Configuration;
 class ChatConfiguration {
 
     @Bean
-    Chatbot chatbot(AgentPlatform agentPlatform, UrbotProperties properties) {
+    Chatbot chatbot(AgentPlatform agentPlatform, UrbotProperties properties,
+                    PersistentConversationFactory conversationFactory) {
         var verbosity = new Verbosity()
                 .withShowPrompts(properties.chat().showPrompts())
                 .withShowLlmResponses(properties.chat().showResponses());
         return AgentProcessChatbot.utilityFromPlatform(
                 agentPlatform,
-                new InMemoryConversationFactory(),
+                conversationFactory,
                 verbosity
         );
     }
@@ -0,0 +1,111 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.api.reference.LlmReference;
+import com.embabel.agent.api.tool.Tool;
+import com.embabel.agent.rag.service.SearchOperations;
+import com.embabel.common.core.types.Named;
+import com.embabel.urbot.rag.DocumentService;
+import com.embabel.urbot.user.UrbotUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * References and tools offered to the LLM on a chat turn, assembled once per user and
+ * context rather than on every turn.
+ * <p>
+ * Global references and tools are picked up from Spring beans, so bot profiles extend them
+ * by adding beans; they are fixed for the life of the application. An assembly is keyed by the
+ * user's effective context, so switching context selects another assembly, and is rebuilt when
+ * documents in that context have changed since it was made. Changes to other contexts leave it alone.
+ * <p>
+ * Memory is not included, as its eager search depends on the conversation.
+ * <p>
+ * The global assembly alone serves turns answered from the global documents only, whose
+ * answers may be shared between users.
+ */
+@Component
+public class ChatResources {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatResources.class);
+
+    private static final int MAX_ASSEMBLIES = 1_000;
+
+    /**
+     * References and tools for one user in one context.
+     *
+     * @param contextVersion version of the documents in the context when assembled
+     */
+    public record Assembly(List<LlmReference> references, List<Tool> tools, long contextVersion) {
+    }
+
+    private final SearchOperations searchOperations;
+    private final List<LlmReference> globalReferences;
+    private final List<Tool> globalTools;
+    private final DocumentService documentService;
+    private final Assembly global;
+    private final Map<String, Assembly> assemblies = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Assembly> eldest) {
+            return size() > MAX_ASSEMBLIES;
+        }
+    };
+
+    ChatResources(SearchOperations searchOperations,
+                  List<LlmReference> globalReferences,
+                  List<Tool> globalTools,
+                  DocumentService documentService) {
+        this.searchOperations = searchOperations;
+        this.globalReferences = List.copyOf(globalReferences);
+        this.globalTools = List.copyOf(globalTools);
+        this.documentService = documentService;
+        this.global = new Assembly(this.globalReferences, this.globalTools, 0);
+
+        logger.info("Global references: [{}], Global tools: [{}]",
+                globalReferences.stream().map(Named::getName).collect(Collectors.joining(", ")),
+                globalTools.stream().map(t -> t.getDefinition().getName()).collect(Collectors.joining(", ")));
+    }
+
+    /**
+     * The references and tools for the user's current context, reusing the last assembly
+     * unless documents in that context have changed.
+     */
+    public Assembly forUser(UrbotUser user) {
+        var key = user.effectiveContext();
+        var contextVersion = documentService.getCatalogVersion(key);
+        synchronized (assemblies) {
+            var assembly = assemblies.get(key);
+            if (assembly != null && assembly.contextVersion() == contextVersion) {
+                return assembly;
+            }
+        }
+        var assembly = assemble(user, contextVersion);
+        synchronized (assemblies) {
+            assemblies.put(key, assembly);
+        }
+        return assembly;
+    }
+
+    /**
+     * The global references and tools only, with nothing of any user's.
+     */
+    public Assembly global() {
+        return global;
+    }
+
+    private Assembly assemble(UrbotUser user, long contextVersion) {
+        var references = new ArrayList<>(globalReferences);
+        references.addAll(user.references(searchOperations));
+        var tools = new ArrayList<>(globalTools);
+        tools.addAll(user.tools());
+        logger.debug("Assembled {} references and {} tools for context {}",
+                references.size(), tools.size(), user.effectiveContext());
+        return new Assembly(List.copyOf(references), List.copyOf(tools), contextVersion);
+    }
+}
@@ -0,0 +1,381 @@
+package com.embabel.urbot;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs chat turns on virtual threads, with limits on how many turns run at once
+ * for each user and in total.
+ * <p>
+ * A turn waits, without holding a platform thread, until both a per-user and a global permit
+ * are available. The number of waiting turns is bounded; beyond it, new turns are rejected.
+ * A turn can be cancelled, which interrupts its thread and cancels the work it is waiting for.
+ * Work done for the turn on other threads through {@link #workFor}, such as the agent's response,
+ * is interrupted too, which aborts its in-flight LLM call. The agent process answering the turn
+ * belongs to the user's chat session and outlives the turn, so it is not killed.
+ * A turn may also finish asynchronously, holding its permits until its work completes without
+ * holding a thread.
+ * <p>
+ * A running turn is observed as {@code urbot.chat.turn}, tagged with its id, so that work done
+ * for it elsewhere, such as the agent's response, can be recorded under the same trace.
+ */
+@Component
+public class ChatTurnExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatTurnExecutor.class);
+
+    /**
+     * A submitted chat turn.
+     */
+    public final class Turn {
+
+        private final String id = UUID.randomUUID().toString();
+        private final String userId;
+        private final Runnable onCancelledBeforeStart;
+        // Claimed by whichever comes first: the turn starting its work, or cancellation before it starts
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile Thread thread;
+        private volatile Observation observation;
+        // Order in which turns started running, to tell which of a user's running turns is the latest
+        private volatile long started;
+        private volatile CompletableFuture<?> completion;
+        // Threads doing work for this turn through workFor; guarded by itself
+        private final Set<Thread> workers = new HashSet<>();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile boolean finished;
+
+        private Turn(String userId, Runnable onCancelledBeforeStart) {
+            this.userId = userId;
+            this.onCancelledBeforeStart = onCancelledBeforeStart;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        /**
+         * The observation of this turn while it runs, or null before it starts.
+         */
+        public Observation observation() {
+            return observation;
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        /**
+         * Stop the turn, whether it is still waiting to run, running, or waiting for its work to complete.
+         *
+         * @return false if the turn had already finished or been cancelled, in which case nothing is done
+         */
+        public boolean cancel() {
+            if (finished || !cancelled.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelledTurns.increment();
+            if (claimed.compareAndSet(false, true)) {
+                onCancelledBeforeStart.run();
+            }
+            var running = thread;
+            if (running != null) {
+                running.interrupt();
+            }
+            var pending = completion;
+            if (pending != null) {
+                pending.cancel(true);
+            }
+            synchronized (workers) {
+                workers.forEach(Thread::interrupt);
+            }
+            return true;
+        }
+
+        private boolean addWorker(Thread worker) {
+            synchronized (workers) {
+                return !cancelled.get() && workers.add(worker);
+            }
+        }
+
+        private void removeWorker(Thread worker) {
+            synchronized (workers) {
+                workers.remove(worker);
+            }
+        }
+    }
+
+    private final ObservationRegistry observationRegistry;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("chat-turn-", 0).factory());
+    private final Semaphore globalPermits;
+    private final int perUserLimit;
+    private final int maxQueued;
+    private final Map<String, Semaphore> userPermits = new ConcurrentHashMap<>();
+    private final Map<String, Set<Turn>> turnsByUser = new ConcurrentHashMap<>();
+    private final AtomicLong starts = new AtomicLong();
+    // Turn that work on the current thread is done for
+    private final ThreadLocal<Turn> workingFor = new ThreadLocal<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter cancelledTurns;
+    private final Counter rejectedTurns;
+
+    ChatTurnExecutor(UrbotProperties properties, MeterRegistry meterRegistry,
+                     ObservationRegistry observationRegistry) {
+        this.observationRegistry = observationRegistry;
+        var chat = properties.chat();
+        this.globalPermits = new Semaphore(Math.max(1, chat.maxConcurrentTurns()), true);
+        this.perUserLimit = Math.max(1, chat.maxConcurrentTurnsPerUser());
+        this.maxQueued = Math.max(0, chat.maxQueuedTurns());
+        Gauge.builder("urbot.chat.turns.active", active, AtomicInteger::get)
+                .description("Chat turns running")
+                .register(meterRegistry);
+        Gauge.builder("urbot.chat.turns.queued", queued, AtomicInteger::get)
+                .description("Chat turns waiting for a per-user or global permit")
+                .register(meterRegistry);
+        this.cancelledTurns = Counter.builder("urbot.chat.turns.cancelled")
+                .description("Chat turns cancelled by the user or on disconnect")
+                .register(meterRegistry);
+        this.rejectedTurns = Counter.builder("urbot.chat.turns.rejected")
+                .description("Chat turns rejected because too many were waiting")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Submit a turn for a user. The work is given its turn.
+     * Exactly one of the work and {@code onCancelledBeforeStart} runs.
+     *
+     * @throws RejectedExecutionException if the maximum number of turns are already waiting to start
+     */
+    public Turn submit(String userId, Consumer<Turn> work, Runnable onCancelledBeforeStart) {
+        return submitAsync(userId, turn -> {
+            work.accept(turn);
+            return CompletableFuture.completedFuture(null);
+        }, onCancelledBeforeStart);
+    }
+
+    /**
+     * Submit a turn whose work finishes asynchronously. The turn keeps its permits, and stays running,
+     * until the future returned by the work completes. Cancelling the turn cancels the future.
+     * Exactly one of the work and {@code onCancelledBeforeStart} runs.
+     *
+     * @throws RejectedExecutionException if the maximum number of turns are already waiting to start
+     */
+    public Turn submitAsync(String userId, Function<Turn, CompletableFuture<?>> work,
+                            Runnable onCancelledBeforeStart) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejectedTurns.increment();
+            throw new RejectedExecutionException("Too many chat turns waiting");
+        }
+        var turn = new Turn(userId, onCancelledBeforeStart);
+        // Added under compute, so it cannot race with release pruning the user's entry
+        turnsByUser.compute(userId, (k, turns) -> {
+            var tracked = turns != null ? turns : ConcurrentHashMap.<Turn>newKeySet();
+            tracked.add(turn);
+            return tracked;
+        });
+        executor.execute(() -> run(turn, work));
+        return turn;
+    }
+
+    private void run(Turn turn, Function<Turn, CompletableFuture<?>> work) {
+        // Set before checking for cancellation, so a concurrent cancel either sees the thread or is seen here
+        turn.thread = Thread.currentThread();
+        var userPermit = userPermits.computeIfAbsent(turn.userId, k -> new Semaphore(perUserLimit, true));
+        var acquiredUser = false;
+        var acquiredGlobal = false;
+        try {
+            if (turn.cancelled.get()) {
+                throw new InterruptedException();
+            }
+            userPermit.acquire();
+            acquiredUser = true;
+            globalPermits.acquire();
+            acquiredGlobal = true;
+        } catch (InterruptedException e) {
+            // Cancelled while waiting
+        } finally {
+            queued.decrementAndGet();
+        }
+        if (!acquiredGlobal || !turn.claimed.compareAndSet(false, true)) {
+            release(turn, userPermit, acquiredUser, acquiredGlobal);
+            return;
+        }
+        active.incrementAndGet();
+        var observation = Observation.createNotStarted("urbot.chat.turn", observationRegistry)
+                .highCardinalityKeyValue("urbot.turn.id", turn.id)
+                .start();
+        turn.started = starts.incrementAndGet();
+        turn.observation = observation;
+        CompletableFuture<?> completion;
+        // Not through workFor: the turn's own thread is interrupted on cancel anyway, and its work always runs
+        workingFor.set(turn);
+        try (var scope = observation.openScope()) {
+            completion = work.apply(turn);
+        } catch (Exception e) {
+            completion = CompletableFuture.failedFuture(e);
+        } finally {
+            workingFor.remove();
+        }
+        // Set before checking for cancellation, so a concurrent cancel either sees the completion or is seen here
+        turn.completion = completion;
+        if (turn.cancelled.get()) {
+            completion.cancel(true);
+        }
+        completion.whenComplete((result, failure) -> {
+            if (failure != null && !(failure instanceof CancellationException)) {
+                observation.error(failure);
+                logger.warn("Chat turn {} failed: {}", turn.id, failure.getMessage(), failure);
+            }
+            turn.observation = null;
+            observation.stop();
+            active.decrementAndGet();
+            release(turn, userPermit, true, true);
+        });
+    }
+
+    private void release(Turn turn, Semaphore userPermit, boolean acquiredUser, boolean acquiredGlobal) {
+        turn.finished = true;
+        if (acquiredGlobal) {
+            globalPermits.release();
+        }
+        if (acquiredUser) {
+            userPermit.release();
+        }
+        // Forget a user once they have no turns left. Every turn using the user's semaphore is
+        // tracked until it gets here, so the semaphore is idle when the last one is removed.
+        turnsByUser.computeIfPresent(turn.userId, (k, turns) -> {
+            turns.remove(turn);
+            if (!turns.isEmpty()) {
+                return turns;
+            }
+            userPermits.remove(k);
+            return null;
+        });
+    }
+
+    /**
+     * Do work for a turn on the current thread, such as the agent's response to it,
+     * so that {@link #turnOfCurrentThread()} finds the turn while the work runs.
+     * Cancelling the turn interrupts the thread while it does the work.
+     *
+     * @throws CancellationException if the turn is cancelled before or while the work runs
+     */
+    public <T> T workFor(@Nullable Turn turn, Supplier<T> work) {
+        if (turn == null) {
+            return work.get();
+        }
+        var current = Thread.currentThread();
+        var previous = workingFor.get();
+        if (!turn.addWorker(current)) {
+            throw new CancellationException("Chat turn " + turn.id + " was cancelled");
+        }
+        workingFor.set(turn);
+        try {
+            return work.get();
+        } catch (RuntimeException e) {
+            if (turn.isCancelled()) {
+                var cancellation = new CancellationException("Chat turn " + turn.id + " was cancelled");
+                cancellation.initCause(e);
+                throw cancellation;
+            }
+            throw e;
+        } finally {
+            workingFor.set(previous);
+            turn.removeWorker(current);
+            if (turn.isCancelled() && current != turn.thread) {
+                // The interrupt was meant for this turn's work only; don't leave it for the thread's next task
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * The turn that work on the current thread is being done for, if known.
+     */
+    public Optional<Turn> turnOfCurrentThread() {
+        return Optional.ofNullable(workingFor.get());
+    }
+
+    /**
+     * Cancel every waiting or running turn for a user.
+     *
+     * @return the number of turns cancelled
+     */
+    public int cancelAll(String userId) {
+        var cancelled = 0;
+        for (var turn : turnsByUser.getOrDefault(userId, Set.of())) {
+            if (turn.cancel()) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * The user's turn that is currently running, if any. When several are running, the one
+     * started last.
+     * <p>
+     * This is a heuristic: the agent process does not say which turn it is answering, so a
+     * process is assumed to answer the user's running turn. That holds while each user runs one
+     * turn at a time, the default; with more concurrent turns per user, a response may be linked
+     * to the wrong turn, and a response arriving after its turn ended is linked to none.
+     */
+    public Optional<Turn> runningTurn(String userId) {
+        Turn running = null;
+        for (var turn : turnsByUser.getOrDefault(userId, Set.of())) {
+            if (turn.observation != null && (running == null || turn.started > running.started)) {
+                running = turn;
+            }
+        }
+        return Optional.ofNullable(running);
+    }
+
+    public int activeTurns() {
+        return active.get();
+    }
+
+    public int queuedTurns() {
+        return queued.get();
+    }
+
+    /**
+     * The number of users with turns waiting or running.
+     */
+    int trackedUsers() {
+        return Math.max(turnsByUser.size(), userPermits.size());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
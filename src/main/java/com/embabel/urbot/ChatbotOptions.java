@@ -4,6 +4,8 @@ import com.embabel.common.ai.model.LlmOptions;
 import org.springframework.boot.context.properties.NestedConfigurationProperty;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 
+import java.time.Duration;
+
 /**
  * Configuration for the chatbot's conversational behaviour.
  *
@@ -13,10 +15,22 @@ import org.springframework.boot.context.properties.bind.DefaultValue;
  * @param behaviour        the behaviour profile to use
  * @param persona          the persona and output style of the chatbot
  * @param maxWords         maximum number of words in a chatbot response (soft limit)
- * @param memoryEagerLimit how many memories to eagerly load into the system prompt via vector similarity
+ * @param memoryEagerLimit how many memories, found by vector similarity, are considered for loading into the
+ *                         system prompt; {@code eagerMemory} decides how many are loaded
  * @param showPrompts      whether to log chat prompts sent to the LLM
  * @param showResponses    whether to log chat responses from the LLM
  * @param tagline          tagline displayed below the chatbot name in the UI
+ * @param streaming        whether to stream responses to the UI as they are generated, when the LLM supports it
+ * @param streamingPushInterval minimum time between UI updates while a response streams
+ * @param maxConcurrentTurns        chat turns that may run at once across all users
+ * @param maxConcurrentTurnsPerUser chat turns that may run at once for one user; further turns wait
+ * @param maxQueuedTurns            chat turns that may wait to start; further turns are rejected
+ * @param retrievalDeadline         time allowed, from the start of a response, for retrieval; lookups not ready are skipped
+ * @param prefetchTopK              document chunks to fetch for the latest message and include in the prompt
+ *                                  before the LLM call, or 0 to leave document search to the LLM
+ * @param answerCache               semantic cache of answers to questions about the global documents
+ * @param history                   how much of the conversation is sent verbatim, and how the rest is summarized
+ * @param eagerMemory               which memories are loaded into the system prompt, within a token budget
  */
 public record ChatbotOptions(
         @NestedConfigurationProperty LlmOptions llm,
@@ -28,5 +42,15 @@ public record ChatbotOptions(
         @DefaultValue("50") int memoryEagerLimit,
         @DefaultValue("true") boolean showPrompts,
         @DefaultValue("true") boolean showResponses,
-        @DefaultValue("Chatbot with RAG and memory") String tagline
+        @DefaultValue("Chatbot with RAG and memory") String tagline,
+        @DefaultValue("true") boolean streaming,
+        @DefaultValue("100ms") Duration streamingPushInterval,
+        @DefaultValue("32") int maxConcurrentTurns,
+        @DefaultValue("1") int maxConcurrentTurnsPerUser,
+        @DefaultValue("200") int maxQueuedTurns,
+        @DefaultValue("1500ms") Duration retrievalDeadline,
+        @DefaultValue("0") int prefetchTopK,
+        @NestedConfigurationProperty @DefaultValue AnswerCacheOptions answerCache,
+        @NestedConfigurationProperty @DefaultValue HistoryOptions history,
+        @NestedConfigurationProperty @DefaultValue EagerMemoryOptions eagerMemory
 ) {}
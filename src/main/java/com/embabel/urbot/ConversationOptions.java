@@ -0,0 +1,28 @@
+package com.embabel.urbot;
+
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Configuration for storing chat conversations.
+ *
+ * @param directory          where each conversation is kept as an append-only log of messages
+ * @param hotMessages        most recent messages of each conversation kept in memory;
+ *                           older messages are read from the log when needed
+ * @param pageSize           messages read from the log at a time when paging in older messages
+ * @param maxStoredMessages  messages kept in a conversation's log when it is compacted;
+ *                           older messages are dropped
+ * @param retention          conversations not written to for this long are deleted when compacting
+ * @param compactionInterval how often conversation logs are compacted in the background
+ */
+public record ConversationOptions(
+        @DefaultValue(".urbot/conversations") Path directory,
+        @DefaultValue("50") int hotMessages,
+        @DefaultValue("100") int pageSize,
+        @DefaultValue("10000") int maxStoredMessages,
+        @DefaultValue("30d") Duration retention,
+        @DefaultValue("1h") Duration compactionInterval
+) {
+}
@@ -0,0 +1,91 @@
+package com.embabel.urbot;
+
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Configuration for document management outside of chunking itself.
+ *
+ * @param seedingThreads        number of parallel workers used to ingest {@code urbot.initial-documents}
+ *                              in the background once the application is ready
+ * @param streamingThreshold    documents larger than this are ingested in streaming mode: text is
+ *                              written in sections as Tika parses it, without building the whole
+ *                              document tree in memory
+ * @param streamingSectionSize  maximum characters per section in streaming mode
+ * @param streamingBatchSize    number of sections written per transaction in streaming mode.
+ *                              Peak heap during streaming ingestion is roughly
+ *                              {@code streamingSectionSize * streamingBatchSize} characters
+ * @param countReconcileInterval how often the in-memory document and chunk counts are
+ *                              checked against the database
+ * @param catalogPageSize       number of documents read per query when loading the catalog at startup
+ * @param bulkParallelism       threads parsing archive or directory entries in bulk ingestion;
+ *                              0 uses one per available processor
+ * @param bulkBatchSize         documents written per transaction in bulk ingestion
+ * @param watchedFolders        directories watched for new, modified and deleted files,
+ *                              which are ingested or removed continuously
+ * @param watchDebounce         quiet period after the last event for a file before it is ingested,
+ *                              so that a file being copied is ingested once, when complete
+ * @param watchQueueCapacity    maximum number of watched files waiting for ingestion; further
+ *                              changes wait in the debounce stage until there is room
+ * @param deleteBatchSize       chunks deleted per transaction when a document is deleted or replaced
+ * @param nearDuplicateAction   what to do with a new chunk that nearly duplicates a chunk already
+ *                              stored in the same context
+ * @param nearDuplicateThreshold estimated Jaccard similarity of word shingles above which two chunks
+ *                              are near-duplicates
+ * @param httpCacheDirectory    where documents ingested from HTTP(S) URLs are cached with their
+ *                              validators, so unchanged documents are revalidated rather than refetched
+ * @param httpTimeout           connect and response timeout when fetching documents over HTTP(S)
+ */
+public record DocumentOptions(
+        @DefaultValue("4") int seedingThreads,
+        @DefaultValue("8MB") DataSize streamingThreshold,
+        @DefaultValue("100000") int streamingSectionSize,
+        @DefaultValue("4") int streamingBatchSize,
+        @DefaultValue("5m") Duration countReconcileInterval,
+        @DefaultValue("1000") int catalogPageSize,
+        @DefaultValue("0") int bulkParallelism,
+        @DefaultValue("16") int bulkBatchSize,
+        @DefaultValue List<WatchedFolder> watchedFolders,
+        @DefaultValue("2s") Duration watchDebounce,
+        @DefaultValue("100") int watchQueueCapacity,
+        @DefaultValue("1000") int deleteBatchSize,
+        @DefaultValue("link") NearDuplicateAction nearDuplicateAction,
+        @DefaultValue("0.9") double nearDuplicateThreshold,
+        @DefaultValue(".urbot/http-cache") Path httpCacheDirectory,
+        @DefaultValue("60s") Duration httpTimeout
+) {
+
+    /**
+     * Handling of near-duplicate chunks at ingestion time.
+     * In every mode but {@code OFF}, a near-duplicate reuses the embedding of the chunk it duplicates.
+     */
+    public enum NearDuplicateAction {
+        /**
+         * Do not look for near-duplicates.
+         */
+        OFF,
+        /**
+         * Keep the chunk in its document, linked to the chunk it duplicates and left out of vector search.
+         */
+        LINK,
+        /**
+         * Delete the chunk, keeping only the chunk it duplicates.
+         */
+        SKIP
+    }
+
+    /**
+     * A directory whose files are kept in sync with the document store.
+     *
+     * @param path    directory to watch, including subdirectories
+     * @param context context documents are ingested into
+     */
+    public record WatchedFolder(
+            String path,
+            @DefaultValue("global") String context
+    ) {}
+}
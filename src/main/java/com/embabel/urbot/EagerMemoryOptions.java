@@ -0,0 +1,22 @@
+package com.embabel.urbot;
+
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Configuration for which memories are loaded into the system prompt before the LLM call.
+ * Up to {@code memory-eager-limit} candidates are found by similarity to the recent conversation;
+ * as many as fit the token budget are kept, most relevant first and skipping near repeats.
+ *
+ * @param tokenBudget estimated tokens of memories placed in the prompt. 0 keeps every candidate
+ *                    above the score cutoff
+ * @param minScore    similarity score, from 0 to 1, below which a candidate is not relevant enough
+ *                    to load, however much of the budget is left
+ * @param diversity   weight from 0 to 1 given to differing from memories already selected, against
+ *                    relevance to the conversation. 0 selects by relevance alone
+ */
+public record EagerMemoryOptions(
+        @DefaultValue("800") int tokenBudget,
+        @DefaultValue("0.75") double minScore,
+        @DefaultValue("0.3") double diversity
+) {
+}
@@ -0,0 +1,192 @@
+package com.embabel.urbot;
+
+import com.embabel.common.core.types.SimilarityResult;
+import com.embabel.common.core.types.SimpleSimilaritySearchResult;
+import com.embabel.common.core.types.TextSimilaritySearchRequest;
+import com.embabel.dice.proposition.Proposition;
+import com.embabel.dice.proposition.PropositionQuery;
+import com.embabel.dice.proposition.PropositionRepository;
+import com.embabel.urbot.conversation.ConversationSummarizer;
+import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository;
+import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository.SimilarProposition;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the memories loaded into the system prompt, so that the prompt carries as many as
+ * are relevant to the conversation rather than a fixed number.
+ * <p>
+ * Candidates found by similarity to the recent conversation are dropped below a score cutoff.
+ * The rest are taken by maximal marginal relevance: each step takes the candidate most relevant
+ * to the conversation, less its similarity to memories already taken, until the token budget is
+ * spent. A conversation with little to remember therefore gets a short memory section, and
+ * near repeats of the same fact do not crowd out others.
+ * <p>
+ * Memories loaded are recorded as {@code urbot.chat.memory.eager.selected}, and their estimated
+ * size as {@code urbot.chat.memory.eager.tokens}.
+ */
+@Component
+public class EagerMemorySelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(EagerMemorySelector.class);
+
+    // Allowance for the bullet and line break each memory is rendered with
+    private static final int TOKENS_PER_MEMORY = 2;
+
+    // Unselected eager searches fail under development, with assertions enabled, and are only logged in production
+    private static final boolean FAIL_UNSELECTED = EagerMemorySelector.class.desiredAssertionStatus();
+
+    private final DrivinePropositionRepository repository;
+    private final EagerMemoryOptions options;
+    private final DistributionSummary selected;
+    private final DistributionSummary tokens;
+
+    EagerMemorySelector(DrivinePropositionRepository repository, UrbotProperties properties,
+                        MeterRegistry meterRegistry) {
+        this.repository = repository;
+        this.options = properties.chat().eagerMemory();
+        this.selected = DistributionSummary.builder("urbot.chat.memory.eager.selected")
+                .baseUnit("memories")
+                .description("Memories loaded into the system prompt on a chat turn")
+                .register(meterRegistry);
+        this.tokens = DistributionSummary.builder("urbot.chat.memory.eager.tokens")
+                .baseUnit("tokens")
+                .description("Estimated tokens of memories loaded into the system prompt on a chat turn")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Repository for {@link com.embabel.dice.agent.Memory} whose similarity search about the eager query
+     * returns the selected memories. Memory's eager search is the only search made with that query;
+     * every other call goes straight to the repository.
+     * <p>
+     * Should Memory make its eager search through another method, the search goes to the repository
+     * unselected, with a warning, rather than failing the chat turn. With assertions enabled, as in
+     * tests, it fails with an {@link UnsupportedOperationException} instead, so the change is noticed.
+     */
+    public PropositionRepository forEagerSearch(PropositionRepository target, String eagerQuery) {
+        return (PropositionRepository) Proxy.newProxyInstance(
+                PropositionRepository.class.getClassLoader(),
+                new Class<?>[]{PropositionRepository.class},
+                (proxy, method, args) -> {
+                    var request = eagerRequest(args, eagerQuery);
+                    if (request != null) {
+                        if (method.getName().equals("findSimilarWithScores")) {
+                            return search(request, args.length > 1 ? (PropositionQuery) args[1] : null);
+                        }
+                        if (FAIL_UNSELECTED) {
+                            throw new UnsupportedOperationException("Eager memory search through "
+                                    + method.getName() + " is not supported");
+                        }
+                        logger.warn("Eager memory search through {} is not supported; loading memories unselected",
+                                method.getName());
+                    }
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private static @Nullable TextSimilaritySearchRequest eagerRequest(Object @Nullable [] args, String eagerQuery) {
+        if (args == null) {
+            return null;
+        }
+        for (var arg : args) {
+            if (arg instanceof TextSimilaritySearchRequest request && eagerQuery.equals(request.getQuery())) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private List<SimilarityResult<Proposition>> search(TextSimilaritySearchRequest request,
+                                                       @Nullable PropositionQuery filter) {
+        var candidates = repository.findSimilarWithEmbeddings(request, filter);
+        var chosen = select(candidates, options);
+        var chosenTokens = chosen.stream().mapToInt(EagerMemorySelector::tokens).sum();
+        selected.record(chosen.size());
+        tokens.record(chosenTokens);
+        logger.debug("Loading {} of {} candidate memories, about {} tokens",
+                chosen.size(), candidates.size(), chosenTokens);
+        return chosen.stream()
+                .<SimilarityResult<Proposition>>map(c ->
+                        new SimpleSimilaritySearchResult<>(c.proposition(), c.score()))
+                .toList();
+    }
+
+    /**
+     * Candidates above the score cutoff, in order of selection by maximal marginal relevance,
+     * until the token budget is spent.
+     */
+    static List<SimilarProposition> select(List<SimilarProposition> candidates, EagerMemoryOptions options) {
+        var eligible = candidates.stream()
+                .filter(c -> c.score() >= options.minScore())
+                .toList();
+        var taken = new boolean[eligible.size()];
+        // Greatest similarity of each candidate to any memory taken so far
+        var redundancy = new double[eligible.size()];
+        var chosen = new ArrayList<SimilarProposition>();
+        var spent = 0;
+        for (var remaining = eligible.size(); remaining > 0; remaining--) {
+            var best = -1;
+            var bestValue = Double.NEGATIVE_INFINITY;
+            for (var i = 0; i < eligible.size(); i++) {
+                var value = (1 - options.diversity()) * eligible.get(i).score()
+                        - options.diversity() * redundancy[i];
+                if (!taken[i] && value > bestValue) {
+                    best = i;
+                    bestValue = value;
+                }
+            }
+            taken[best] = true;
+            var candidate = eligible.get(best);
+            var cost = tokens(candidate);
+            // A smaller candidate may still fit
+            if (options.tokenBudget() > 0 && spent + cost > options.tokenBudget()) {
+                continue;
+            }
+            chosen.add(candidate);
+            spent += cost;
+            for (var i = 0; i < eligible.size(); i++) {
+                if (!taken[i]) {
+                    redundancy[i] = Math.max(redundancy[i], similarity(candidate.embedding(), eligible.get(i).embedding()));
+                }
+            }
+        }
+        return chosen;
+    }
+
+    private static int tokens(SimilarProposition candidate) {
+        return ConversationSummarizer.estimateTokens(candidate.proposition().getText()) + TOKENS_PER_MEMORY;
+    }
+
+    /**
+     * Cosine similarity scaled to 0 to 1, the scale of scores from the vector index.
+     */
+    private static double similarity(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double dot = 0, normA = 0, normB = 0;
+        for (var i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        if (normA == 0 || normB == 0) {
+            return 0;
+        }
+        return (1 + dot / Math.sqrt(normA * normB)) / 2;
+    }
+}
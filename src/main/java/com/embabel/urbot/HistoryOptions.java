@@ -0,0 +1,21 @@
+package com.embabel.urbot;
+
+import com.embabel.common.ai.model.LlmOptions;
+import org.springframework.boot.context.properties.NestedConfigurationProperty;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * Configuration for how much of a conversation is sent to the LLM on each turn.
+ *
+ * @param tokenBudget     estimated tokens of recent messages sent verbatim; earlier messages are
+ *                        replaced by a rolling summary. 0 sends the whole conversation
+ * @param summarizeAfter  messages that must have left the recent window before the summary is
+ *                        brought up to date, so the summarizer runs every few turns rather than every turn
+ * @param summaryLlm      LLM used to summarize; defaults to the chat LLM
+ */
+public record HistoryOptions(
+        @DefaultValue("3000") int tokenBudget,
+        @DefaultValue("4") int summarizeAfter,
+        @NestedConfigurationProperty LlmOptions summaryLlm
+) {
+}
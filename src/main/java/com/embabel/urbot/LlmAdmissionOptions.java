@@ -0,0 +1,39 @@
+package com.embabel.urbot;
+
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Configuration for admission of LLM calls, shared by chat and background work.
+ *
+ * @param enabled           whether LLM calls wait for admission at all
+ * @param requestsPerMinute calls per minute admitted to each model, unless overridden in {@code models}
+ * @param burst             calls a model admits at once after being idle
+ * @param models            calls per minute for particular models, by model name
+ * @param maxQueued         calls that may wait in each lane; beyond it, further calls in the lane are rejected
+ * @param maxWait           how long a call waits for admission before it is rejected
+ */
+public record LlmAdmissionOptions(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("300") int requestsPerMinute,
+        @DefaultValue("20") int burst,
+        Map<String, Integer> models,
+        @DefaultValue("200") int maxQueued,
+        @DefaultValue("60s") Duration maxWait
+) {
+
+    public LlmAdmissionOptions {
+        if (models == null) {
+            models = Map.of();
+        }
+    }
+
+    /**
+     * Calls per minute admitted to the model.
+     */
+    public int requestsPerMinute(String model) {
+        return models.getOrDefault(model, requestsPerMinute);
+    }
+}
@@ -0,0 +1,72 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.spi.LlmInteraction;
+import com.embabel.agent.spi.LlmOperations;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+
+/**
+ * Puts every LLM call the agent platform makes through the {@link LlmScheduler}.
+ * <p>
+ * The platform's {@link LlmOperations} are wrapped so that each call to the model is admitted on the
+ * calling thread before it is made. That is the thread on which {@link LlmScheduler#inLane} set the lane,
+ * including for streamed responses, whose tokens later arrive on other threads. Admission blocks only
+ * the caller, and a rejection is thrown to it.
+ */
+@Component
+class LlmOperationsAdmission implements BeanPostProcessor {
+
+    // Resolved on first use, so the scheduler is not created early and itself left unprocessed
+    private final ObjectProvider<LlmScheduler> llmScheduler;
+
+    LlmOperationsAdmission(ObjectProvider<LlmScheduler> llmScheduler) {
+        this.llmScheduler = llmScheduler;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(@NonNull Object bean, @NonNull String beanName) {
+        if (!(bean instanceof LlmOperations)) {
+            return bean;
+        }
+        var factory = new ProxyFactory(bean);
+        factory.addAdvice(new Admission());
+        return factory.getProxy(bean.getClass().getClassLoader());
+    }
+
+    private final class Admission implements MethodInterceptor {
+
+        @Override
+        public @Nullable Object invoke(@NonNull MethodInvocation invocation) throws Throwable {
+            if (callsModel(invocation.getMethod())) {
+                llmScheduler.getObject().admit(model(invocation.getArguments()));
+            }
+            return invocation.proceed();
+        }
+    }
+
+    /**
+     * Whether a method sends a request to the model: the create and generate families, and the
+     * transform they share. Anything else, such as accessors, passes straight through unadmitted.
+     */
+    static boolean callsModel(Method method) {
+        var name = method.getName();
+        return name.startsWith("create") || name.startsWith("generate") || name.equals("doTransform");
+    }
+
+    private static @Nullable String model(Object[] arguments) {
+        for (var argument : arguments) {
+            if (argument instanceof LlmInteraction interaction && interaction.getLlm() != null) {
+                return interaction.getLlm().getModel();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,260 @@
+package com.embabel.urbot;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Admits LLM calls from chat and background work against a rate limit per model.
+ * <p>
+ * Each model has a token bucket refilled at {@code urbot.llm-admission.requests-per-minute}. A call that finds
+ * the bucket empty waits in its lane: chat waits ahead of extraction, which waits ahead of consolidation.
+ * Within a lane, waiting calls are admitted round robin across the parties making them, such as users,
+ * so that one user's burst does not hold up everyone else. Lanes are bounded, and a call that cannot be
+ * admitted in time is rejected with a {@link RejectedExecutionException}.
+ * <p>
+ * Every LLM call made through the agent platform is admitted by {@link LlmOperationsAdmission} on the
+ * thread that makes it, before the request is sent. Its lane is the one set for that thread with
+ * {@link #inLane(Lane, String, Supplier)}, or extraction when none is set. A call that is rejected fails
+ * in its caller, like any other failed LLM call.
+ */
+@Component
+public class LlmScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(LlmScheduler.class);
+
+    private static final String BACKGROUND = "background";
+
+    /**
+     * Lanes of LLM calls, highest priority first.
+     */
+    public enum Lane {
+        CHAT, EXTRACTION, CONSOLIDATION;
+
+        String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private record Caller(Lane lane, String party) {
+    }
+
+    private static final ThreadLocal<Caller> CALLER = new ThreadLocal<>();
+
+    private final LlmAdmissionOptions options;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<Lane, AtomicInteger> queued = new EnumMap<>(Lane.class);
+    private final Map<Lane, Timer> waits = new EnumMap<>(Lane.class);
+    private final Map<Lane, Counter> rejections = new EnumMap<>(Lane.class);
+
+    LlmScheduler(UrbotProperties properties, MeterRegistry meterRegistry) {
+        this.options = properties.llmAdmission();
+        for (var lane : Lane.values()) {
+            var count = new AtomicInteger();
+            queued.put(lane, count);
+            Gauge.builder("urbot.llm.admission.queued", count, AtomicInteger::get)
+                    .tag("lane", lane.tag())
+                    .description("LLM calls waiting for admission")
+                    .register(meterRegistry);
+            waits.put(lane, Timer.builder("urbot.llm.admission.wait")
+                    .tag("lane", lane.tag())
+                    .description("Time LLM calls waited for admission")
+                    .register(meterRegistry));
+            rejections.put(lane, Counter.builder("urbot.llm.admission.rejected")
+                    .tag("lane", lane.tag())
+                    .description("LLM calls rejected because their lane was full or they waited too long")
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Run work whose LLM calls are admitted in the given lane, on behalf of the given party.
+     */
+    public <T> T inLane(Lane lane, String party, Supplier<T> work) {
+        var previous = CALLER.get();
+        CALLER.set(new Caller(lane, party));
+        try {
+            return work.get();
+        } finally {
+            if (previous != null) {
+                CALLER.set(previous);
+            } else {
+                CALLER.remove();
+            }
+        }
+    }
+
+    /**
+     * Wrap a component so that the LLM calls it makes through the interface are admitted in the given lane.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T inLane(Lane lane, Class<T> type, T target) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+                inLane(lane, BACKGROUND, () -> {
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause() instanceof RuntimeException runtime
+                                ? runtime
+                                : new IllegalStateException(e.getCause());
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+    }
+
+    /**
+     * Wait until a call to the model is admitted, in the calling thread's lane.
+     *
+     * @throws RejectedExecutionException if the lane is full, or the call is not admitted within
+     *                                    {@code max-wait}
+     */
+    public void admit(@Nullable String model) {
+        if (!options.enabled()) {
+            return;
+        }
+        var caller = CALLER.get();
+        if (caller == null) {
+            caller = new Caller(Lane.EXTRACTION, BACKGROUND);
+        }
+        var key = model != null ? model : "default";
+        buckets.computeIfAbsent(key, Bucket::new).admit(caller);
+    }
+
+    int queued(Lane lane) {
+        return queued.get(lane).get();
+    }
+
+    /**
+     * Token bucket for one model, with the calls waiting for it.
+     */
+    private final class Bucket {
+
+        private final String model;
+        private final double tokensPerNano;
+        private final double capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Map<Lane, LinkedHashMap<String, ArrayDeque<Object>>> waiting = new EnumMap<>(Lane.class);
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        Bucket(String model) {
+            this.model = model;
+            this.tokensPerNano = Math.max(1, options.requestsPerMinute(model)) / (double) TimeUnit.MINUTES.toNanos(1);
+            this.capacity = Math.max(1, options.burst());
+            this.tokens = capacity;
+            for (var lane : Lane.values()) {
+                waiting.put(lane, new LinkedHashMap<>());
+            }
+        }
+
+        void admit(Caller caller) {
+            var start = System.nanoTime();
+            lock.lock();
+            try {
+                refill();
+                if (head() == null && tokens >= 1) {
+                    tokens -= 1;
+                    waits.get(caller.lane()).record(0, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                if (queued.get(caller.lane()).get() >= options.maxQueued()) {
+                    reject(caller, "lane is full");
+                }
+                var waiter = new Object();
+                waiting.get(caller.lane()).computeIfAbsent(caller.party(), k -> new ArrayDeque<>()).addLast(waiter);
+                queued.get(caller.lane()).incrementAndGet();
+                var deadline = start + options.maxWait().toNanos();
+                try {
+                    while (true) {
+                        refill();
+                        var now = System.nanoTime();
+                        if (head() == waiter && tokens >= 1) {
+                            tokens -= 1;
+                            remove(caller, waiter);
+                            waits.get(caller.lane()).record(now - start, TimeUnit.NANOSECONDS);
+                            return;
+                        }
+                        var remaining = deadline - now;
+                        if (remaining <= 0) {
+                            remove(caller, waiter);
+                            reject(caller, "waited " + options.maxWait());
+                        }
+                        // The first in line waits for the next token; the rest wait for it to be admitted
+                        var wait = head() == waiter
+                                ? Math.min(remaining, (long) Math.ceil((1 - tokens) / tokensPerNano))
+                                : remaining;
+                        changed.awaitNanos(Math.max(1, wait));
+                    }
+                } catch (InterruptedException e) {
+                    remove(caller, waiter);
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted waiting for admission to " + model);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill() {
+            var now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+        }
+
+        /**
+         * The next call to admit: the longest waiting call of the next party in the highest priority lane.
+         */
+        private @Nullable Object head() {
+            for (var lane : Lane.values()) {
+                var parties = waiting.get(lane);
+                if (!parties.isEmpty()) {
+                    return parties.values().iterator().next().peekFirst();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Remove a call from its lane. A party with calls still waiting moves to the back of the lane.
+         */
+        private void remove(Caller caller, Object waiter) {
+            var parties = waiting.get(caller.lane());
+            var calls = parties.remove(caller.party());
+            if (calls != null) {
+                calls.remove(waiter);
+                if (!calls.isEmpty()) {
+                    parties.put(caller.party(), calls);
+                }
+            }
+            queued.get(caller.lane()).decrementAndGet();
+            changed.signalAll();
+        }
+
+        private void reject(Caller caller, String reason) {
+            rejections.get(caller.lane()).increment();
+            logger.warn("Rejected {} LLM call to {} for {}: {}", caller.lane().tag(), model, caller.party(), reason);
+            throw new RejectedExecutionException("LLM call to " + model + " not admitted: " + reason);
+        }
+    }
+}
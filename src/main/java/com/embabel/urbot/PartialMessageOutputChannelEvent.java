@@ -0,0 +1,23 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.api.channel.MessageOutputChannelEvent;
+import com.embabel.agent.api.channel.OutputChannelEvent;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Part of an assistant message that is still being generated.
+ * Deltas for a response are sent in order, and are followed by the complete message
+ * as a {@link MessageOutputChannelEvent}. Only the complete message is added to the conversation.
+ *
+ * @param processId id of the agent process generating the response
+ * @param turnId    id of the chat turn the response is for, or null if not known
+ * @param delta     text generated since the previous event
+ */
+public record PartialMessageOutputChannelEvent(String processId, @Nullable String turnId, String delta)
+        implements OutputChannelEvent {
+
+    @Override
+    public String getProcessId() {
+        return processId;
+    }
+}
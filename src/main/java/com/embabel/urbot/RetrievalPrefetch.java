@@ -0,0 +1,149 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.rag.model.Chunk;
+import com.embabel.agent.rag.service.SearchOperations;
+import com.embabel.agent.rag.service.VectorSearch;
+import com.embabel.common.ai.model.EmbeddingService;
+import com.embabel.common.core.types.TextSimilaritySearchRequest;
+import com.embabel.urbot.rag.DocumentService;
+import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Retrieval started before the LLM call for a chat response, run on virtual threads while
+ * the rest of the response is prepared.
+ * <ul>
+ *   <li>The recent conversation window is embedded, so the eager memory search made while
+ *   building the prompt finds its query embedding cached, or joins the embedding in flight.</li>
+ *   <li>Optionally, document chunks similar to the latest message are fetched from the contexts
+ *   the user can see, so the LLM may answer without a search round trip.</li>
+ * </ul>
+ * Starting the lookups does not wait for them. Their results are waited for where they are used,
+ * at most until one deadline measured from the start; the response goes ahead without whatever
+ * is not ready by then, and the LLM can still search for anything missing. Lookups that miss the
+ * deadline are left to finish rather than cancelled, since the embeddings they compute are shared
+ * with other callers through the embedding cache.
+ * <p>
+ * Lookups carry the caller's observation, so they are recorded under the chat response.
+ */
+@Component
+public class RetrievalPrefetch {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetrievalPrefetch.class);
+
+    /**
+     * Lookups started for one chat response.
+     */
+    public final class Lookups {
+
+        private final long start;
+        private final long deadline;
+        private final @Nullable Future<List<String>> documents;
+        private @Nullable List<String> excerpts;
+
+        private Lookups(long start, @Nullable Future<List<String>> documents) {
+            this.start = start;
+            this.deadline = start + options.retrievalDeadline().toNanos();
+            this.documents = documents;
+        }
+
+        /**
+         * Text of document chunks prefetched for the latest message, most similar first.
+         * Waits for the document lookup until the deadline; empty if it is not done by then,
+         * failed, or was not made.
+         */
+        public synchronized List<String> excerpts() {
+            if (excerpts == null) {
+                excerpts = documents != null ? await("documents", documents) : List.of();
+                logger.debug("Retrieval of {} excerpts took {}ms", excerpts.size(),
+                        Duration.ofNanos(System.nanoTime() - start).toMillis());
+            }
+            return excerpts;
+        }
+
+        private <T> List<T> await(String name, Future<List<T>> lookup) {
+            try {
+                return lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                logger.info("Retrieval deadline of {}ms passed; continuing without {}",
+                        options.retrievalDeadline().toMillis(), name);
+            } catch (ExecutionException e) {
+                logger.warn("Retrieval lookup {} failed: {}", name, e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of();
+        }
+    }
+
+    private final EmbeddingService embeddingService;
+    private final SearchOperations searchOperations;
+    private final ChatbotOptions options;
+    private final ObservationRegistry observationRegistry;
+    private final ExecutorService executor = ContextExecutorService.wrap(
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chat-retrieval-", 0).factory()),
+            ContextSnapshotFactory.builder().build());
+
+    RetrievalPrefetch(EmbeddingService embeddingService, SearchOperations searchOperations,
+                      UrbotProperties properties, ObservationRegistry observationRegistry) {
+        this.embeddingService = embeddingService;
+        this.observationRegistry = observationRegistry;
+        this.searchOperations = searchOperations;
+        this.options = properties.chat();
+    }
+
+    /**
+     * Start the lookups for a response, without waiting for them.
+     */
+    public Lookups prefetch(UrbotUser user, String recentContext, @Nullable String latestMessage) {
+        var start = System.nanoTime();
+        executor.submit(() -> embeddingService.embed(recentContext));
+        Future<List<String>> documents = null;
+        if (options.prefetchTopK() > 0 && latestMessage != null && !latestMessage.isBlank()) {
+            documents = executor.submit(() -> Observation.createNotStarted("urbot.chat.prefetch", observationRegistry)
+                    .observe(() -> searchDocuments(user, latestMessage)));
+        }
+        return new Lookups(start, documents);
+    }
+
+    /**
+     * Chunks similar to the message from the global context and the user's own context.
+     * Over-fetches and filters by context, as the store's vector search is not context-aware.
+     */
+    private List<String> searchDocuments(UrbotUser user, String message) {
+        if (!(searchOperations instanceof VectorSearch vectorSearch)) {
+            return List.of();
+        }
+        var visible = Set.of(DocumentService.Context.GLOBAL_CONTEXT, user.effectiveContext());
+        var request = new TextSimilaritySearchRequest(message, 0.0, options.prefetchTopK() * 4);
+        return vectorSearch.vectorSearch(request, Chunk.class).stream()
+                .map(result -> result.getMatch())
+                .filter(chunk -> visible.contains(chunk.getMetadata().get(DocumentService.Context.CONTEXT_KEY)))
+                .limit(options.prefetchTopK())
+                .map(Chunk::getText)
+                .toList();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,132 @@
+package com.embabel.urbot;
+
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical calls that are in flight at the same time, so that concurrent callers
+ * with the same key share one execution and its result.
+ * <p>
+ * The call runs on its own virtual thread, carrying the first caller's observation, while every
+ * caller waits for it. A caller that gives up waiting, by being interrupted, leaves the flight;
+ * once every caller has left, the call is cancelled. Nothing is remembered once a call completes,
+ * so a later call with the same key runs again.
+ * <p>
+ * Calls that joined a flight already in progress are counted as {@code urbot.single-flight.coalesced},
+ * tagged with the operation.
+ *
+ * @param <K> key identifying identical calls
+ * @param <V> result of a call
+ */
+public class SingleFlight<K, V> implements AutoCloseable {
+
+    private final class Flight {
+
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        // Guarded by the flights map entry for the key
+        private int waiters = 1;
+        private Future<?> task;
+    }
+
+    private final Map<K, Flight> flights = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final Counter coalesced;
+
+    public SingleFlight(String operation, MeterRegistry meterRegistry) {
+        this.executor = ContextExecutorService.wrap(
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(operation + "-flight-", 0).factory()),
+                ContextSnapshotFactory.builder().build());
+        this.coalesced = Counter.builder("urbot.single-flight.coalesced")
+                .tag("operation", operation)
+                .description("Calls that shared the result of an identical call already in flight")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Text with surrounding whitespace removed and inner whitespace collapsed,
+     * for keying calls whose result does not depend on spacing.
+     */
+    public static String normalize(String text) {
+        return text.strip().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Run the call, or wait for an identical call already in flight.
+     *
+     * @throws CancellationException if the calling thread is interrupted while waiting
+     */
+    public V execute(K key, Supplier<V> call) {
+        var created = new Flight();
+        var flight = flights.compute(key, (k, existing) -> {
+            if (existing != null) {
+                existing.waiters++;
+                return existing;
+            }
+            created.task = executor.submit(() -> run(key, created, call));
+            return created;
+        });
+        if (flight != created) {
+            coalesced.increment();
+        }
+        try {
+            return flight.result.get();
+        } catch (InterruptedException e) {
+            leave(key, flight);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void run(K key, Flight flight, Supplier<V> call) {
+        try {
+            flight.result.complete(call.get());
+        } catch (Throwable e) {
+            flight.result.completeExceptionally(e);
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Remove a waiter from the flight, cancelling the call once nobody is waiting for it.
+     */
+    private void leave(K key, Flight flight) {
+        var abandoned = new boolean[1];
+        flights.computeIfPresent(key, (k, current) -> {
+            if (current != flight || --current.waiters > 0) {
+                return current;
+            }
+            abandoned[0] = true;
+            return null;
+        });
+        if (abandoned[0]) {
+            flight.task.cancel(true);
+            flight.result.cancel(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,139 @@
+package com.embabel.urbot;
+
+import com.embabel.chat.Conversation;
+import com.embabel.chat.Message;
+import com.embabel.chat.UserMessage;
+import com.embabel.common.textio.template.TemplateRenderer;
+import com.embabel.urbot.conversation.ConversationWindow;
+import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders the chat system prompt, and reports how much of its prefix is unchanged from the
+ * user's previous turn, as that is what provider prompt caching can reuse.
+ * <p>
+ * The {@code urbot} template assembles the system prompt from layers, most stable first:
+ * <ol>
+ *   <li>{@code layers/static}: the same for every user and turn, rendered first and passed
+ *   to the template as {@code static_layer}</li>
+ *   <li>{@code layers/user}: the same for every turn of one user</li>
+ * </ol>
+ * Context that changes from turn to turn, {@code layers/turn}, is not part of the system prompt.
+ * It is added to the latest user message instead, after the conversation history, so that the
+ * system prompt and the history before it can be cached together.
+ */
+@Component
+public class SystemPromptRenderer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SystemPromptRenderer.class);
+
+    private static final int MAX_USERS = 10_000;
+
+    /**
+     * A rendered system prompt and turn context.
+     *
+     * @param prompt             the system prompt, exactly as sent
+     * @param stablePrefixLength characters at the start of the prompt unchanged since the
+     *                           previous prompt for the same user
+     * @param turnContext        context for this turn only, empty if there is none
+     */
+    public record Rendered(String prompt, int stablePrefixLength, String turnContext) {
+
+        /**
+         * The recent messages with the turn context added to the latest user message.
+         */
+        public Conversation withTurnContext(Conversation recent) {
+            var messages = recent.getMessages();
+            if (turnContext.isEmpty() || messages.isEmpty() || !(messages.getLast() instanceof UserMessage latest)) {
+                return recent;
+            }
+            var withContext = new ArrayList<Message>(messages.subList(0, messages.size() - 1));
+            withContext.add(new UserMessage(turnContext + "\n\n" + latest.getContent(), latest.getName(),
+                    latest.getTimestamp()));
+            return new ConversationWindow(recent, withContext);
+        }
+    }
+
+    private final TemplateRenderer templateRenderer;
+    private final AtomicReference<String> lastStatic = new AtomicReference<>();
+    // Least recently rendered users are evicted, so the map stays bounded however many users there are
+    private final Map<String, String> lastPrompts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_USERS;
+        }
+    };
+    private final Counter staticChanged;
+    private final Counter userChanged;
+    private final Counter stable;
+    private final DistributionSummary stablePrefixRatio;
+
+    SystemPromptRenderer(TemplateRenderer templateRenderer, MeterRegistry meterRegistry) {
+        this.templateRenderer = templateRenderer;
+        this.staticChanged = prefixCounter(meterRegistry, "static-changed");
+        this.userChanged = prefixCounter(meterRegistry, "user-changed");
+        this.stable = prefixCounter(meterRegistry, "stable");
+        this.stablePrefixRatio = DistributionSummary.builder("urbot.chat.prompt.stable-prefix.ratio")
+                .description("Fraction of the system prompt unchanged at its start since the user's previous turn")
+                .register(meterRegistry);
+    }
+
+    private static Counter prefixCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("urbot.chat.prompt.renders")
+                .tag("prefix", outcome)
+                .description("System prompts rendered, by which layer first changed since the user's previous turn")
+                .register(meterRegistry);
+    }
+
+    public Rendered render(UrbotUser user, Map<String, Object> model) {
+        // Rendered once, both to compare with the previous turn and as the start of the prompt
+        var staticLayer = templateRenderer.renderLoadedTemplate("layers/static", model);
+        var layered = new HashMap<>(model);
+        layered.put("static_layer", staticLayer);
+        var prompt = templateRenderer.renderLoadedTemplate("urbot", layered);
+        var turnContext = templateRenderer.renderLoadedTemplate("layers/turn", model).strip();
+
+        var previousStatic = lastStatic.getAndSet(staticLayer);
+        String previousPrompt;
+        synchronized (lastPrompts) {
+            previousPrompt = lastPrompts.put(user.getId(), prompt);
+        }
+        int stablePrefixLength;
+        if (previousStatic != null && !previousStatic.equals(staticLayer)) {
+            staticChanged.increment();
+            stablePrefixLength = 0;
+            logger.info("Static system prompt layer changed; provider prompt caches will miss until it settles");
+        } else if (previousPrompt != null && !previousPrompt.equals(prompt)) {
+            userChanged.increment();
+            stablePrefixLength = commonPrefixLength(previousPrompt, prompt);
+        } else {
+            stable.increment();
+            stablePrefixLength = prompt.length();
+        }
+        stablePrefixRatio.record(prompt.isEmpty() ? 0 : (double) stablePrefixLength / prompt.length());
+        logger.debug("System prompt of {} characters, first {} unchanged; turn context of {} characters",
+                prompt.length(), stablePrefixLength, turnContext.length());
+        return new Rendered(prompt, stablePrefixLength, turnContext);
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        var length = Math.min(a.length(), b.length());
+        for (var i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+}
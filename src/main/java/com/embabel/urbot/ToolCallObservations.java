@@ -0,0 +1,115 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.api.event.AgentProcessEvent;
+import com.embabel.agent.api.event.AgentProcessFinishedEvent;
+import com.embabel.agent.api.event.AgenticEventListener;
+import com.embabel.agent.api.event.ToolCallRequestEvent;
+import com.embabel.agent.api.event.ToolCallResponseEvent;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.jspecify.annotations.NonNull;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Observes each tool call made by the LLM as {@code urbot.tool.call}, tagged with the tool name.
+ * <p>
+ * Tools are called on the thread generating the response, so a call is recorded under the
+ * response observation of its chat turn.
+ * <p>
+ * Calls can also be counted per agent process, for a caller to tell whether a response used tools.
+ * <p>
+ * When an agent process finishes, calls it left without a response are stopped as errors, and
+ * its counts are dropped, so nothing is held for processes that are gone.
+ */
+@Component
+class ToolCallObservations implements AgenticEventListener {
+
+    private final ObservationRegistry observationRegistry;
+    private final Map<ToolCallRequestEvent, Observation> calls = new ConcurrentHashMap<>();
+    private final Map<String, Set<CallCount>> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Tool calls requested by one agent process from when counting started until it is closed.
+     */
+    final class CallCount implements AutoCloseable {
+
+        private final String processId;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private CallCount(String processId) {
+            this.processId = processId;
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        @Override
+        public void close() {
+            counts.computeIfPresent(processId, (id, active) -> {
+                active.remove(this);
+                return active.isEmpty() ? null : active;
+            });
+        }
+    }
+
+    ToolCallObservations(ObservationRegistry observationRegistry) {
+        this.observationRegistry = observationRegistry;
+    }
+
+    /**
+     * Start counting the tool calls requested by an agent process.
+     */
+    CallCount countCalls(String processId) {
+        var count = new CallCount(processId);
+        counts.compute(processId, (id, active) -> {
+            var target = active != null ? active : ConcurrentHashMap.<CallCount>newKeySet();
+            target.add(count);
+            return target;
+        });
+        return count;
+    }
+
+    @Override
+    public void onProcessEvent(@NonNull AgentProcessEvent event) {
+        if (event instanceof ToolCallRequestEvent request) {
+            counts.getOrDefault(request.getProcessId(), Set.of()).forEach(count -> count.calls.incrementAndGet());
+            calls.put(request, Observation.createNotStarted("urbot.tool.call", observationRegistry)
+                    .lowCardinalityKeyValue("tool", request.getTool())
+                    .highCardinalityKeyValue("urbot.process.id", request.getProcessId())
+                    .start());
+        } else if (event instanceof ToolCallResponseEvent response) {
+            var observation = calls.remove(response.getRequest());
+            if (observation != null) {
+                observation.stop();
+            }
+        } else if (event instanceof AgentProcessFinishedEvent finished) {
+            forget(finished.getProcessId());
+        }
+    }
+
+    private void forget(String processId) {
+        counts.remove(processId);
+        calls.entrySet().removeIf(call -> {
+            if (!call.getKey().getProcessId().equals(processId)) {
+                return false;
+            }
+            call.getValue().error(new IllegalStateException("Agent process " + processId
+                    + " finished before tool " + call.getKey().getTool() + " responded"));
+            call.getValue().stop();
+            return true;
+        });
+    }
+
+    /**
+     * Tool calls awaiting a response, for tests.
+     */
+    int pendingCalls() {
+        return calls.size();
+    }
+}
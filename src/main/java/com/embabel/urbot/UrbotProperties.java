@@ -21,9 +21,13 @@ import java.util.List;
  * @param initialDocuments list of document URIs to ingest into the global context at startup
  *                         if not already loaded. Each entry can be a URL (e.g., "https://example.com/doc.pdf")
  *                         or a file path (absolute or relative to the working directory).
+ *                         Ingested in the background after startup; see {@code documents}.
  * @param stylesheet       optional additional stylesheet to load (e.g., "astrid"). When set,
  *                         loads {@code themes/urbot/<stylesheet>.css} as an override on top
  *                         of the base theme.
+ * @param documents        document management configuration (initial document seeding etc.)
+ * @param conversations    where chat conversations are stored and how much of each is kept in memory
+ * @param llmAdmission     rate limits and priority of LLM calls from chat and background work
  */
 @ConfigurationProperties(prefix = "urbot")
 public record UrbotProperties(
@@ -34,7 +38,10 @@ public record UrbotProperties(
         @DefaultValue("") List<String> botPackages,
         List<String> initialDocuments,
         @DefaultValue("") String stylesheet,
-        @DefaultValue("use for web search") String mcpToolsDescription
+        @DefaultValue("use for web search") String mcpToolsDescription,
+        @NestedConfigurationProperty @DefaultValue DocumentOptions documents,
+        @NestedConfigurationProperty @DefaultValue ConversationOptions conversations,
+        @NestedConfigurationProperty @DefaultValue LlmAdmissionOptions llmAdmission
 ) {
 
     public UrbotProperties {
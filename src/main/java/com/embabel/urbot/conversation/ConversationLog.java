@@ -0,0 +1,188 @@
+package com.embabel.urbot.conversation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only log of the messages in one conversation, one JSON object per line.
+ * <p>
+ * Only the byte offset of each line is kept in memory, so any range of messages can be
+ * read without reading the whole log. A line left incomplete by a crash is cut off when
+ * the log is opened. Not thread-safe: callers synchronize.
+ */
+class ConversationLog {
+
+    /**
+     * A message as written to the log.
+     *
+     * @param role      the message role, such as {@code user} or {@code assistant}
+     * @param name      the sender's name, if any
+     * @param timestamp when the message was created, in epoch milliseconds
+     * @param id        position of the message in the conversation since it began, kept when
+     *                  compaction drops earlier messages
+     */
+    record Entry(String role, String content, @Nullable String name, long timestamp, long id) {
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Path file;
+    private long[] offsets = new long[16];
+    private int size;
+    private long end;
+
+    ConversationLog(Path file) {
+        this.file = file;
+        try {
+            Files.createDirectories(file.getParent());
+            if (Files.exists(file)) {
+                index();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open conversation log " + file, e);
+        }
+    }
+
+    Path file() {
+        return file;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void append(Entry entry) {
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            var line = objectMapper.writeValueAsString(entry) + "\n";
+            var buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            channel.position(end);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            addOffset(end);
+            end = channel.position();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append to conversation log " + file, e);
+        }
+    }
+
+    /**
+     * Entries from {@code from}, inclusive, to {@code to}, exclusive.
+     */
+    List<Entry> read(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(size, to);
+        if (from >= to) {
+            return List.of();
+        }
+        var start = offsets[from];
+        var stop = to < size ? offsets[to] : end;
+        var bytes = new byte[Math.toIntExact(stop - start)];
+        try (var raf = new RandomAccessFile(file.toFile(), "r")) {
+            raf.seek(start);
+            raf.readFully(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read conversation log " + file, e);
+        }
+        var entries = new ArrayList<Entry>(to - from);
+        for (var line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            try {
+                entries.add(objectMapper.readValue(line, Entry.class));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Corrupt entry in conversation log " + file, e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Drop all but the most recent {@code keep} entries, rewriting the log to a temporary
+     * file that is moved into place.
+     *
+     * @return the number of entries dropped
+     */
+    int compact(int keep) {
+        var drop = size - Math.max(0, keep);
+        if (drop <= 0) {
+            return 0;
+        }
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var in = FileChannel.open(file, StandardOpenOption.READ);
+             var out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            var start = offsets[drop];
+            var remaining = end - start;
+            var position = start;
+            while (remaining > 0) {
+                var transferred = in.transferTo(position, remaining, out);
+                position += transferred;
+                remaining -= transferred;
+            }
+            out.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot compact conversation log " + file, e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot replace conversation log " + file, e);
+        }
+        var shift = offsets[drop];
+        var kept = Arrays.copyOfRange(offsets, drop, Math.max(drop + 16, size));
+        for (var i = 0; i < size - drop; i++) {
+            kept[i] -= shift;
+        }
+        offsets = kept;
+        size -= drop;
+        end -= shift;
+        return drop;
+    }
+
+    /**
+     * Record the offset of every complete line, cutting off a trailing partial line.
+     */
+    private void index() throws IOException {
+        var lineStart = 0L;
+        var position = 0L;
+        try (var in = Files.newInputStream(file)) {
+            var buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (var i = 0; i < read; i++) {
+                    position++;
+                    if (buffer[i] == '\n') {
+                        addOffset(lineStart);
+                        lineStart = position;
+                    }
+                }
+            }
+        }
+        end = lineStart;
+        if (end < position) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private void addOffset(long offset) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        offsets[size++] = offset;
+    }
+}
@@ -0,0 +1,268 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.agent.api.common.Ai;
+import com.embabel.agent.api.common.AiBuilder;
+import com.embabel.chat.Conversation;
+import com.embabel.chat.Message;
+import com.embabel.common.ai.model.LlmOptions;
+import com.embabel.common.textio.template.TemplateRenderer;
+import com.embabel.urbot.HistoryOptions;
+import com.embabel.urbot.LlmScheduler;
+import com.embabel.urbot.UrbotProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the part of a conversation sent to the LLM within a token budget.
+ * <p>
+ * Recent messages within {@code urbot.chat.history.token-budget} are sent as they are. Older messages are
+ * folded into a rolling summary per conversation, updated incrementally in the background after a turn,
+ * never while a response is being generated. Until the summary catches up, messages it does not yet cover
+ * are still sent, up to twice the budget.
+ * <p>
+ * A summary records the id of the first message after what it covers, rather than a position in the
+ * message list, so it stays correct when compaction drops the start of a stored conversation. Summaries
+ * of stored conversations are stored with them; summaries of other conversations are kept in memory.
+ * <p>
+ * Tokens are estimated at four characters each, which is close enough to decide what to send.
+ */
+@Component
+public class ConversationSummarizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversationSummarizer.class);
+
+    private static final int MAX_SUMMARIES = 10_000;
+
+    /**
+     * What to send to the LLM for a turn.
+     *
+     * @param recent          the most recent messages, sent verbatim
+     * @param summary         summary of the messages before them, if any
+     * @param estimatedTokens estimated tokens of the recent messages and summary
+     * @param tokensSaved     estimated tokens of summarized messages not sent, less the tokens of the summary
+     */
+    public record Window(Conversation recent, @Nullable String summary, int estimatedTokens, int tokensSaved) {
+    }
+
+    private final HistoryOptions options;
+    private final LlmOptions summaryLlm;
+    private final Ai ai;
+    private final TemplateRenderer templateRenderer;
+    private final LlmScheduler llmScheduler;
+    private final Map<String, PersistentConversation.Summary> summaries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PersistentConversation.Summary> eldest) {
+            return size() > MAX_SUMMARIES;
+        }
+    };
+    private final Set<String> summarizing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("conversation-summarizer-", 0).factory());
+    private final DistributionSummary tokensSaved;
+    private final DistributionSummary tokensSent;
+    private final Counter summaryUpdates;
+
+    ConversationSummarizer(UrbotProperties properties, AiBuilder aiBuilder,
+                           TemplateRenderer templateRenderer, LlmScheduler llmScheduler,
+                           MeterRegistry meterRegistry) {
+        this.options = properties.chat().history();
+        this.summaryLlm = options.summaryLlm() != null ? options.summaryLlm() : properties.chat().llm();
+        this.ai = aiBuilder.ai();
+        this.templateRenderer = templateRenderer;
+        this.llmScheduler = llmScheduler;
+        this.tokensSaved = DistributionSummary.builder("urbot.chat.context.tokens-saved")
+                .description("Estimated conversation tokens per turn replaced by the rolling summary")
+                .baseUnit("tokens")
+                .register(meterRegistry);
+        this.tokensSent = DistributionSummary.builder("urbot.chat.context.tokens")
+                .description("Estimated conversation tokens per turn sent as recent messages and summary")
+                .baseUnit("tokens")
+                .register(meterRegistry);
+        this.summaryUpdates = Counter.builder("urbot.chat.context.summary-updates")
+                .description("Incremental updates of conversation summaries")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The recent messages and summary to send for the conversation's next response.
+     */
+    public Window window(Conversation conversation) {
+        var firstId = firstId(conversation);
+        var messages = conversation.getMessages();
+        var total = messages.size();
+        var totalTokens = 0;
+        var budgetStart = total;
+        var hardStart = total;
+        var budget = options.tokenBudget();
+        if (budget <= 0) {
+            return new Window(conversation, null, 0, 0);
+        }
+        // Walk back from the latest message, always keeping it
+        for (var i = total - 1; i >= 0; i--) {
+            totalTokens += estimateTokens(messages.get(i));
+            if (totalTokens <= budget || i == total - 1) {
+                budgetStart = i;
+            }
+            if (totalTokens <= 2 * budget || i == total - 1) {
+                hardStart = i;
+            } else {
+                break;
+            }
+        }
+        // Everything fits, unless compaction has dropped earlier messages that only a summary still holds
+        if (budgetStart == 0 && firstId == 0) {
+            tokensSent.record(totalTokens);
+            tokensSaved.record(0);
+            return new Window(conversation, null, totalTokens, 0);
+        }
+
+        var summary = summary(conversation);
+        var covered = covered(summary, firstId, total);
+        // Send messages the summary does not cover yet, within the hard limit
+        var start = Math.max(Math.min(budgetStart, covered), hardStart);
+        var recent = conversation.last(total - start);
+        // Sent even when compaction has dropped every message it covers, as it is all that is left of them
+        var summaryText = summary != null ? summary.text() : null;
+        var summaryTokens = summaryText != null ? estimateTokens(summaryText) : 0;
+        var recentTokens = 0;
+        var omittedTokens = summaryText != null ? summary.coveredTokens() : 0;
+        for (var i = start; i < total; i++) {
+            var messageTokens = estimateTokens(messages.get(i));
+            recentTokens += messageTokens;
+            if (i < covered) {
+                // Both summarized and sent
+                omittedTokens -= messageTokens;
+            }
+        }
+        var sent = recentTokens + summaryTokens;
+        var saved = Math.max(0, omittedTokens - summaryTokens);
+        tokensSent.record(sent);
+        tokensSaved.record(saved);
+        logger.debug("Conversation {}: sending {} of {} messages and a summary of {}, ~{} tokens saved",
+                conversation.getId(), total - start, total, covered, saved);
+        return new Window(recent, summaryText, sent, saved);
+    }
+
+    /**
+     * Bring the conversation's summary up to date in the background, if enough messages have left
+     * the recent window since it was last updated.
+     */
+    public void summarizeInBackground(Conversation conversation) {
+        if (options.tokenBudget() <= 0 || !summarizing.add(conversation.getId())) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                summarize(conversation);
+            } catch (Exception e) {
+                logger.warn("Failed to summarize conversation {}: {}", conversation.getId(), e.getMessage());
+            } finally {
+                summarizing.remove(conversation.getId());
+            }
+        });
+    }
+
+    void summarize(Conversation conversation) {
+        var firstId = firstId(conversation);
+        var messages = conversation.getMessages();
+        var total = messages.size();
+        // Messages outside the budget window are due for summarizing
+        var tokens = 0;
+        var due = total;
+        for (var i = total - 1; i >= 0 && tokens <= options.tokenBudget(); i--) {
+            tokens += estimateTokens(messages.get(i));
+            due = i;
+        }
+        if (tokens > options.tokenBudget()) {
+            due++;
+        }
+        var previous = summary(conversation);
+        var covered = covered(previous, firstId, total);
+        if (due - covered < Math.max(1, options.summarizeAfter())) {
+            return;
+        }
+        // Fold in at most a few budgets' worth at once; a long unsummarized history,
+        // as after a restart, is summarized from its most recent part
+        var from = due;
+        var newTokens = 0;
+        while (from > covered && newTokens < 4 * options.tokenBudget()) {
+            newTokens += estimateTokens(messages.get(--from));
+        }
+        var formatted = messages.subList(from, due).stream()
+                .map(message -> message.getRole().name() + ": " + message.getContent())
+                .toList();
+        var prompt = templateRenderer.renderLoadedTemplate("summarize_conversation", Map.of(
+                "summary", previous != null ? previous.text() : "",
+                "messages", formatted));
+        var text = llmScheduler.inLane(LlmScheduler.Lane.CONSOLIDATION, conversation.getId(),
+                () -> ai.withLlm(summaryLlm).generateText(prompt));
+        var coveredTokens = (from == covered && previous != null ? previous.coveredTokens() : 0) + newTokens;
+        var updated = new PersistentConversation.Summary(text.strip(), firstId + due, coveredTokens);
+        if (conversation instanceof PersistentConversation stored) {
+            stored.storeSummary(updated);
+        } else {
+            synchronized (summaries) {
+                summaries.put(conversation.getId(), updated);
+            }
+        }
+        summaryUpdates.increment();
+        logger.info("Summarized messages {} to {} of conversation {}", firstId + from, firstId + due,
+                conversation.getId());
+    }
+
+    private @Nullable PersistentConversation.Summary summary(Conversation conversation) {
+        if (conversation instanceof PersistentConversation stored) {
+            return stored.summary();
+        }
+        synchronized (summaries) {
+            return summaries.get(conversation.getId());
+        }
+    }
+
+    /**
+     * Id of the first message in the conversation's message list. Only stored conversations
+     * drop earlier messages; any other conversation starts at its first message.
+     */
+    private static long firstId(Conversation conversation) {
+        return conversation instanceof PersistentConversation stored ? stored.firstId() : 0;
+    }
+
+    /**
+     * How many messages at the start of the list the summary covers.
+     */
+    static int covered(@Nullable PersistentConversation.Summary summary, long firstId, int total) {
+        if (summary == null) {
+            return 0;
+        }
+        return (int) Math.max(0, Math.min(summary.endId() - firstId, total));
+    }
+
+    static int estimateTokens(Message message) {
+        return estimateTokens(message.getContent()) + 4;
+    }
+
+    /**
+     * Rough token count of text, at four characters a token.
+     */
+    public static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
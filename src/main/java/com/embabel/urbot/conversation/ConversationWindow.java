@@ -0,0 +1,40 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.chat.Conversation;
+import com.embabel.chat.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * View of some of the most recent messages of a conversation.
+ * Messages added to the window are added to the conversation it views; the window itself
+ * keeps the messages it was made with.
+ *
+ * @param conversation the conversation the messages come from
+ * @param messages     the messages in view, which may differ from the conversation's,
+ *                     as when context for a turn is added
+ */
+public record ConversationWindow(Conversation conversation, List<Message> messages) implements Conversation {
+
+    @Override
+    public @NotNull String getId() {
+        return conversation.getId();
+    }
+
+    @Override
+    public @NotNull List<Message> getMessages() {
+        return messages;
+    }
+
+    @Override
+    public @NotNull Message addMessage(@NotNull Message message) {
+        return conversation.addMessage(message);
+    }
+
+    @Override
+    public @NotNull Conversation last(int n) {
+        return new ConversationWindow(conversation,
+                messages.subList(Math.max(0, messages.size() - n), messages.size()));
+    }
+}
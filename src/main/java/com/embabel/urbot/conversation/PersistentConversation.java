@@ -0,0 +1,269 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.chat.AssistantMessage;
+import com.embabel.chat.Conversation;
+import com.embabel.chat.Message;
+import com.embabel.chat.SystemMessage;
+import com.embabel.chat.UserMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Conversation whose messages are written to a {@link ConversationLog} as they are added.
+ * Only the most recent messages are held in memory; older messages are read from the log
+ * a page at a time when {@link #getMessages()} or {@link #last(int)} reaches them.
+ * <p>
+ * Each message is logged with its timestamp and its id, the message's position in the
+ * conversation since it began. Ids are kept when compaction drops earlier messages, including
+ * across a restart, so they can anchor anything derived from a prefix of the conversation.
+ * <p>
+ * A summary of the conversation can be stored beside the log, so it also survives a restart.
+ */
+class PersistentConversation implements Conversation {
+
+    /**
+     * Summary of the messages before {@code endId}.
+     *
+     * @param coveredTokens estimated tokens of the messages summarized
+     */
+    record Summary(String text, long endId, int coveredTokens) {
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final String id;
+    private final ConversationLog log;
+    private final int hotMessages;
+    private final int pageSize;
+
+    // Messages dropped from the start of the log by compaction; ids count from the first message ever added
+    private long dropped;
+    // The last hot.size() messages of the log
+    private final List<Message> hot = new ArrayList<>();
+    // One page of older messages, read from the log
+    private int pageStart = -1;
+    private List<Message> page = List.of();
+    private final Path summaryFile;
+    private @Nullable Summary summary;
+
+    PersistentConversation(String id, ConversationLog log, int hotMessages, int pageSize) {
+        this.id = id;
+        this.log = log;
+        this.hotMessages = Math.max(1, hotMessages);
+        this.pageSize = Math.max(1, pageSize);
+        this.summaryFile = summaryFile(log.file());
+        this.summary = readSummary(summaryFile);
+        var size = log.size();
+        if (size > 0) {
+            dropped = log.read(0, 1).getFirst().id();
+        }
+        log.read(size - this.hotMessages, size).stream()
+                .map(PersistentConversation::toMessage)
+                .forEach(hot::add);
+    }
+
+    @Override
+    public @NotNull String getId() {
+        return id;
+    }
+
+    /**
+     * The messages as of this call. Messages older than the in-memory tail are read
+     * from the log as the list is traversed. If compaction later drops some of them,
+     * the list continues with the first message still stored.
+     */
+    @Override
+    public synchronized @NotNull List<Message> getMessages() {
+        return new LoggedMessages(dropped, dropped + log.size());
+    }
+
+    @Override
+    public synchronized @NotNull Message addMessage(@NotNull Message message) {
+        var name = message instanceof UserMessage user ? user.getName() : null;
+        log.append(new ConversationLog.Entry(message.getRole().name(), message.getContent(), name,
+                message.getTimestamp().toEpochMilli(), dropped + log.size()));
+        hot.add(message);
+        if (hot.size() > hotMessages) {
+            hot.subList(0, hot.size() - hotMessages).clear();
+        }
+        return message;
+    }
+
+    /**
+     * The last {@code n} messages, served from memory when they are all in the hot tail.
+     */
+    @Override
+    public synchronized @NotNull Conversation last(int n) {
+        var size = dropped + log.size();
+        var from = Math.max(dropped, size - n);
+        return new ConversationWindow(this, List.copyOf(new LoggedMessages(from, size)));
+    }
+
+    /**
+     * Number of messages in the log.
+     */
+    synchronized int size() {
+        return log.size();
+    }
+
+    /**
+     * Id of the first message still stored, which is the number of messages compaction has dropped.
+     */
+    synchronized long firstId() {
+        return dropped;
+    }
+
+    synchronized @Nullable Summary summary() {
+        return summary;
+    }
+
+    /**
+     * Replace the stored summary, writing it to a temporary file that is moved into place.
+     */
+    synchronized void storeSummary(Summary summary) {
+        var temp = summaryFile.resolveSibling(summaryFile.getFileName() + ".tmp");
+        try {
+            objectMapper.writeValue(temp.toFile(), summary);
+            Files.move(temp, summaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot store summary of conversation " + id, e);
+        }
+        this.summary = summary;
+    }
+
+    /**
+     * The file a conversation's summary is stored in, beside its log.
+     */
+    static Path summaryFile(Path logFile) {
+        var name = logFile.getFileName().toString();
+        var base = name.endsWith(".jsonl") ? name.substring(0, name.length() - ".jsonl".length()) : name;
+        return logFile.resolveSibling(base + ".summary.json");
+    }
+
+    private static @Nullable Summary readSummary(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(file.toFile(), Summary.class);
+        } catch (IOException e) {
+            // Summaries can be rebuilt from the messages, so a damaged one is dropped rather than fatal
+            return null;
+        }
+    }
+
+    /**
+     * Drop all but the most recent messages from the log.
+     *
+     * @return the number of messages dropped
+     */
+    synchronized int compact(int keep) {
+        pageStart = -1;
+        page = List.of();
+        var count = log.compact(Math.max(keep, hot.size()));
+        dropped += count;
+        return count;
+    }
+
+    private synchronized Message messageAt(long messageId) {
+        var index = Math.toIntExact(messageId - dropped);
+        var size = log.size();
+        var hotStart = size - hot.size();
+        if (index >= hotStart) {
+            return hot.get(index - hotStart);
+        }
+        if (pageStart < 0 || index < pageStart || index >= pageStart + page.size()) {
+            pageStart = index - index % pageSize;
+            page = log.read(pageStart, Math.min(pageStart + pageSize, hotStart)).stream()
+                    .map(PersistentConversation::toMessage)
+                    .toList();
+        }
+        return page.get(index - pageStart);
+    }
+
+    private static Message toMessage(ConversationLog.Entry entry) {
+        var timestamp = Instant.ofEpochMilli(entry.timestamp());
+        return switch (entry.role()) {
+            case "user" -> new UserMessage(entry.content(), entry.name(), timestamp);
+            case "system" -> new SystemMessage(entry.content(), timestamp);
+            default -> new AssistantMessage(entry.content(), null, null, timestamp);
+        };
+    }
+
+    /**
+     * A range of the conversation's messages by id, indexed from the first message of the range
+     * still stored. Compaction may drop the start of the range, which then shrinks from the front.
+     */
+    private class LoggedMessages extends AbstractList<Message> implements RandomAccess {
+
+        private final long from;
+        private final long to;
+
+        LoggedMessages(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Message get(int index) {
+            synchronized (PersistentConversation.this) {
+                var start = Math.max(from, dropped);
+                if (index < 0 || index >= to - start) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                return messageAt(start + index);
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (PersistentConversation.this) {
+                return (int) Math.max(0, to - Math.max(from, dropped));
+            }
+        }
+
+        /**
+         * Iterates by id, so messages dropped by a compaction during the traversal are skipped
+         * rather than shifting the messages that follow.
+         */
+        @Override
+        public Iterator<Message> iterator() {
+            return new Iterator<>() {
+
+                private long next = from;
+
+                @Override
+                public boolean hasNext() {
+                    synchronized (PersistentConversation.this) {
+                        return Math.max(next, dropped) < to;
+                    }
+                }
+
+                @Override
+                public Message next() {
+                    synchronized (PersistentConversation.this) {
+                        next = Math.max(next, dropped);
+                        if (next >= to) {
+                            throw new NoSuchElementException();
+                        }
+                        return messageAt(next++);
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.chat.Conversation;
+import com.embabel.chat.ConversationFactory;
+import com.embabel.urbot.ConversationOptions;
+import com.embabel.urbot.UrbotProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates conversations stored in append-only logs under {@code urbot.conversations.directory},
+ * so they survive a restart and hold only a bounded tail of messages in memory.
+ * Creating a conversation with the id of an existing log reopens it.
+ * <p>
+ * Logs are compacted in the background: conversations idle for longer than the retention
+ * period are deleted along with their summaries, and longer logs are cut down to their most
+ * recent messages.
+ */
+@Component
+public class PersistentConversationFactory implements ConversationFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentConversationFactory.class);
+
+    private static final String SUFFIX = ".jsonl";
+
+    private final ConversationOptions options;
+    // Conversations in use by log file name, so the same id always gets the same instance
+    // and compaction cannot race with reopening a log
+    private final Map<String, WeakReference<PersistentConversation>> open = new ConcurrentHashMap<>();
+
+    PersistentConversationFactory(UrbotProperties properties) {
+        this.options = properties.conversations();
+    }
+
+    @Override
+    public @NotNull Conversation create(@NotNull String id) {
+        var conversation = new PersistentConversation[1];
+        open.compute(fileName(id), (fileName, ref) -> {
+            var existing = ref != null ? ref.get() : null;
+            conversation[0] = existing != null ? existing : new PersistentConversation(
+                    id, new ConversationLog(options.directory().resolve(fileName)),
+                    options.hotMessages(), options.pageSize());
+            return existing != null ? ref : new WeakReference<>(conversation[0]);
+        });
+        return conversation[0];
+    }
+
+    private static String fileName(String id) {
+        return id.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX;
+    }
+
+    private enum Outcome {DELETED, TRIMMED, UNCHANGED}
+
+    private Outcome compact(Path file, @Nullable PersistentConversation conversation, Instant expiry) {
+        if (conversation != null) {
+            return conversation.compact(options.maxStoredMessages()) > 0 ? Outcome.TRIMMED : Outcome.UNCHANGED;
+        }
+        try {
+            if (Files.getLastModifiedTime(file).toInstant().isBefore(expiry)) {
+                Files.delete(file);
+                Files.deleteIfExists(PersistentConversation.summaryFile(file));
+                return Outcome.DELETED;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ConversationLog(file).compact(options.maxStoredMessages()) > 0 ? Outcome.TRIMMED : Outcome.UNCHANGED;
+    }
+
+    /**
+     * Delete idle conversations and cut long logs down to {@code maxStoredMessages}.
+     */
+    @Scheduled(initialDelayString = "${urbot.conversations.compaction-interval:1h}",
+            fixedDelayString = "${urbot.conversations.compaction-interval:1h}")
+    public void compact() {
+        open.values().removeIf(ref -> ref.get() == null);
+        if (!Files.isDirectory(options.directory())) {
+            return;
+        }
+        var expiry = Instant.now().minus(options.retention());
+        var deleted = 0;
+        var trimmed = 0;
+        try (var files = Files.list(options.directory())) {
+            for (var file : files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).toList()) {
+                var outcome = new Outcome[1];
+                try {
+                    // Holding the entry for this log, so the conversation cannot be opened meanwhile
+                    open.compute(file.getFileName().toString(), (fileName, ref) -> {
+                        var conversation = ref != null ? ref.get() : null;
+                        outcome[0] = compact(file, conversation, expiry);
+                        return conversation != null ? ref : null;
+                    });
+                } catch (UncheckedIOException e) {
+                    logger.warn("Cannot compact conversation log {}: {}", file, e.getMessage());
+                    continue;
+                }
+                switch (outcome[0]) {
+                    case DELETED -> deleted++;
+                    case TRIMMED -> trimmed++;
+                    case UNCHANGED -> {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot list conversation logs in {}: {}", options.directory(), e.getMessage());
+        }
+        if (deleted > 0 || trimmed > 0) {
+            logger.info("Compacted conversation logs: {} idle conversations deleted, {} logs trimmed",
+                    deleted, trimmed);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.embabel.dice.proposition.extraction.LlmPropositionExtractor;
 import com.embabel.dice.proposition.revision.LlmPropositionReviser;
 import com.embabel.dice.proposition.revision.PropositionReviser;
 import com.embabel.dice.incremental.ChunkHistoryStore;
+import com.embabel.urbot.LlmScheduler;
 import com.embabel.urbot.UrbotProperties;
 import com.embabel.urbot.user.UrbotUser;
 import org.drivine.manager.GraphObjectManager;
@@ -39,6 +40,9 @@ import java.util.List;
 /**
  * Configuration for proposition extraction from chat conversations.
  * Sets up the DICE pipeline components for extracting and storing propositions.
+ * Components that call the LLM are wrapped so their calls are admitted by the {@link LlmScheduler}
+ * below chat: extraction and entity resolution in the extraction lane, revision and graph
+ * projection in the consolidation lane.
  */
 @Configuration
 @EnableAsync
@@ -100,7 +104,8 @@ class PropositionConfiguration {
     }
 
     @Bean
-    GraphProjector graphProjector(Relations relations, AiBuilder aiBuilder, UrbotProperties properties) {
+    GraphProjector graphProjector(Relations relations, AiBuilder aiBuilder, UrbotProperties properties,
+                                  LlmScheduler llmScheduler) {
         var extraction = properties.memory();
         var projectionLlm = extraction.getProjectionLlm() != null
                 ? extraction.getProjectionLlm()
@@ -113,11 +118,11 @@ class PropositionConfiguration {
                 .ai();
         logger.info("Creating LlmGraphProjector with model: {}, {} relations",
                 projectionLlm.getModel(), relations.size());
-        return LlmGraphProjector
+        return llmScheduler.inLane(LlmScheduler.Lane.CONSOLIDATION, GraphProjector.class, LlmGraphProjector
                 .withLlm(projectionLlm)
                 .withAi(ai)
                 .withRelations(relations)
-                .withLenientPolicy();
+                .withLenientPolicy());
     }
 
     @Bean
@@ -134,23 +139,24 @@ class PropositionConfiguration {
     }
 
     @Bean
-    LlmPropositionExtractor llmPropositionExtractor(
+    PropositionExtractor llmPropositionExtractor(
             AiBuilder aiBuilder,
             PropositionRepository propositionRepository,
-            UrbotProperties properties) {
+            UrbotProperties properties,
+            LlmScheduler llmScheduler) {
         var extraction = properties.memory();
         var ai = aiBuilder
                 .withShowPrompts(extraction.getShowPrompts())
                 .withShowLlmResponses(extraction.getShowResponses())
                 .ai();
         logger.info("Creating LlmPropositionExtractor with model: {}", extraction.getExtractionLlm());
-        return LlmPropositionExtractor
+        return llmScheduler.inLane(LlmScheduler.Lane.EXTRACTION, PropositionExtractor.class, LlmPropositionExtractor
                 .withLlm(extraction.getExtractionLlm())
                 .withAi(ai)
                 .withPropositionRepository(propositionRepository)
                 .withExistingPropositionsToShow(extraction.getExistingPropositionsToShow())
                 .withSchemaAdherence(SchemaAdherence.DEFAULT)
-                .withTemplate("dice/extract_urbot_user_propositions");
+                .withTemplate("dice/extract_urbot_user_propositions"));
     }
 
     @Bean
@@ -173,7 +179,8 @@ class PropositionConfiguration {
     EntityResolver entityResolver(
             NamedEntityDataRepository repository,
             AiBuilder aiBuilder,
-            UrbotProperties properties) {
+            UrbotProperties properties,
+            LlmScheduler llmScheduler) {
         var extraction = properties.memory();
         var llmOptions = extraction.getEntityResolutionLlm();
         var ai = aiBuilder
@@ -187,7 +194,8 @@ class PropositionConfiguration {
                 .withPromptStrategy(BakeoffPromptStrategies.FULL);
 
         logger.info("Creating EscalatingEntityResolver with model: {}", llmOptions.getModel());
-        return EscalatingEntityResolver.create(repository, llmBakeoff);
+        return llmScheduler.inLane(LlmScheduler.Lane.EXTRACTION, EntityResolver.class,
+                EscalatingEntityResolver.create(repository, llmBakeoff));
     }
 
     @Bean
@@ -204,7 +212,8 @@ class PropositionConfiguration {
     @Bean
     PropositionReviser propositionReviser(
             AiBuilder aiBuilder,
-            UrbotProperties properties) {
+            UrbotProperties properties,
+            LlmScheduler llmScheduler) {
         var extraction = properties.memory();
         var ai = aiBuilder
                 .withShowPrompts(extraction.getShowPrompts())
@@ -218,7 +227,7 @@ class PropositionConfiguration {
             reviser = reviser.withClassifyLlm(extraction.getClassifyLlm());
             logger.info("Using separate classification LLM: {}", extraction.getClassifyLlm().getModel());
         }
-        return reviser;
+        return llmScheduler.inLane(LlmScheduler.Lane.CONSOLIDATION, PropositionReviser.class, reviser);
     }
 
     @Bean
@@ -10,7 +10,11 @@ import com.embabel.dice.proposition.Proposition;
 import com.embabel.dice.proposition.PropositionQuery;
 import com.embabel.dice.proposition.PropositionRepository;
 import com.embabel.dice.proposition.PropositionStatus;
+import com.embabel.urbot.SingleFlight;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.annotation.Observed;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.drivine.manager.CascadeType;
 import org.drivine.manager.GraphObjectManager;
 import org.drivine.manager.PersistenceManager;
@@ -28,30 +32,81 @@ import java.util.Objects;
 
 /**
  * Drivine-based proposition repository that persists propositions to Neo4j.
+ * Each public method is observed as {@code urbot.propositions}, tagged with the method name.
+ * Identical similarity searches made at the same time share one query.
  */
 @Service
+@Observed(name = "urbot.propositions")
 public class DrivinePropositionRepository implements PropositionRepository {
 
     private static final Logger logger = LoggerFactory.getLogger(DrivinePropositionRepository.class);
     private static final String PROPOSITION_VECTOR_INDEX = "proposition_embedding_index";
 
+    /**
+     * Relationship from a proposition to each chunk in its grounding, so that propositions
+     * grounded in a chunk can be found through the chunk rather than by scanning grounding lists.
+     */
+    private static final String GROUNDED_IN = "GROUNDED_IN";
+
     private final GraphObjectManager graphObjectManager;
     private final PersistenceManager persistenceManager;
     private final EmbeddingService embeddingService;
+    private final SingleFlight<SimilarityKey, List<SimilarityResult<Proposition>>> similaritySearches;
+    private final SingleFlight<SimilarityKey, List<SimilarProposition>> embeddingSearches;
+
+    /**
+     * Identifies identical similarity searches.
+     *
+     * @param filter the proposition query filtering results, if any
+     */
+    private record SimilarityKey(String query, int topK, double threshold, @Nullable PropositionQuery filter) {
+
+        SimilarityKey(TextSimilaritySearchRequest request, @Nullable PropositionQuery filter) {
+            this(SingleFlight.normalize(request.getQuery()), request.getTopK(), request.getSimilarityThreshold(), filter);
+        }
+    }
 
     public DrivinePropositionRepository(
             GraphObjectManager graphObjectManager,
             PersistenceManager persistenceManager,
-            EmbeddingService embeddingService) {
+            EmbeddingService embeddingService,
+            MeterRegistry meterRegistry) {
         this.graphObjectManager = graphObjectManager;
         this.persistenceManager = persistenceManager;
         this.embeddingService = embeddingService;
+        this.similaritySearches = new SingleFlight<>("proposition-search", meterRegistry);
+        this.embeddingSearches = new SingleFlight<>("proposition-search-embeddings", meterRegistry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        similaritySearches.close();
+        embeddingSearches.close();
     }
 
     @PostConstruct
     public void provision() {
         logger.info("Provisioning proposition vector index");
         createVectorIndex(PROPOSITION_VECTOR_INDEX, "Proposition");
+        linkUnlinkedGrounding();
+    }
+
+    /**
+     * Link propositions saved before grounding relationships were maintained to their chunks.
+     */
+    private void linkUnlinkedGrounding() {
+        var cypher = """
+                MATCH (p:Proposition)
+                WHERE size(p.grounding) > 0 AND NOT (p)-[:%s]->()
+                UNWIND p.grounding AS chunkId
+                MATCH (c:Chunk {id: chunkId})
+                MERGE (p)-[:%s]->(c)
+                """.formatted(GROUNDED_IN, GROUNDED_IN);
+        try {
+            persistenceManager.execute(QuerySpecification.withStatement(cypher));
+        } catch (Exception e) {
+            logger.warn("Could not link proposition grounding: {}", e.getMessage());
+        }
     }
 
     private void createVectorIndex(String name, String label) {
@@ -98,9 +153,62 @@ public class DrivinePropositionRepository implements PropositionRepository {
         } catch (Exception e) {
             logger.warn("Failed to set embedding for proposition {}: {}", proposition.getId(), e.getMessage());
         }
+        if (!proposition.getGrounding().isEmpty()) {
+            linkGrounding(proposition.getId());
+        }
         return proposition;
     }
 
+    private void linkGrounding(String id) {
+        var cypher = """
+                MATCH (p:Proposition {id: $id})
+                OPTIONAL MATCH (p)-[old:%s]->()
+                DELETE old
+                WITH DISTINCT p
+                UNWIND p.grounding AS chunkId
+                MATCH (c:Chunk {id: chunkId})
+                MERGE (p)-[:%s]->(c)
+                """.formatted(GROUNDED_IN, GROUNDED_IN);
+        try {
+            persistenceManager.execute(QuerySpecification.withStatement(cypher).bind(Map.of("id", id)));
+        } catch (Exception e) {
+            logger.warn("Failed to link grounding for proposition {}: {}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove chunks that are about to be deleted from the grounding of the propositions
+     * grounded in them, found through the grounding relationship. Propositions left
+     * without any grounding are deleted.
+     *
+     * @return number of propositions deleted
+     */
+    @Transactional
+    public int releaseGrounding(@NonNull List<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return 0;
+        }
+        var cypher = """
+                MATCH (c:Chunk) WHERE c.id IN $chunkIds
+                MATCH (p:Proposition)-[:%s]->(c)
+                WITH DISTINCT p
+                SET p.grounding = [g IN p.grounding WHERE NOT g IN $chunkIds]
+                WITH p WHERE size(p.grounding) = 0
+                DETACH DELETE p
+                RETURN count(*) AS deleted
+                """.formatted(GROUNDED_IN);
+        Long deleted = persistenceManager.getOne(
+                QuerySpecification
+                        .withStatement(cypher)
+                        .bind(Map.of("chunkIds", chunkIds))
+                        .transform(Long.class)
+        );
+        if (deleted > 0) {
+            logger.info("Deleted {} propositions grounded only in deleted chunks", deleted);
+        }
+        return deleted.intValue();
+    }
+
     @Override
     @Transactional(readOnly = true)
     public @NonNull List<Proposition> findByMinLevel(int minLevel) {
@@ -183,6 +291,10 @@ public class DrivinePropositionRepository implements PropositionRepository {
     @Override
     @Transactional(readOnly = true)
     public @NonNull List<SimilarityResult<Proposition>> findSimilarWithScores(@NonNull TextSimilaritySearchRequest request) {
+        return similaritySearches.execute(new SimilarityKey(request, null), () -> searchSimilar(request));
+    }
+
+    private List<SimilarityResult<Proposition>> searchSimilar(TextSimilaritySearchRequest request) {
         var embedding = embeddingService.embed(request.getQuery());
         var cypher = """
                 CALL db.index.vector.queryNodes($vectorIndex, $topK, $queryVector)
@@ -370,6 +482,70 @@ public class DrivinePropositionRepository implements PropositionRepository {
     public @NonNull List<SimilarityResult<Proposition>> findSimilarWithScores(
             @NonNull TextSimilaritySearchRequest request,
             @NonNull PropositionQuery query) {
+        return similaritySearches.execute(new SimilarityKey(request, query), () -> searchSimilar(request, query));
+    }
+
+    private List<SimilarityResult<Proposition>> searchSimilar(TextSimilaritySearchRequest request,
+                                                              PropositionQuery query) {
+        try {
+            return similarRows(request, query, false).stream()
+                    .<SimilarityResult<Proposition>>map(row -> {
+                        var proposition = findById(row.id());
+                        return proposition != null
+                                ? new SimpleSimilaritySearchResult<>(proposition, row.score())
+                                : null;
+                    })
+                    .filter(r -> r != null)
+                    .toList();
+        } catch (Exception e) {
+            logger.error("Filtered vector search failed: {}", e.getMessage(), e);
+            return List.of();
+        }
+    }
+
+    /**
+     * A proposition found by similarity search, with its stored embedding.
+     */
+    public record SimilarProposition(Proposition proposition, double score, float[] embedding) {
+    }
+
+    /**
+     * Similarity search that also returns each proposition's embedding, so results can be compared
+     * with each other without embedding them again. Propositions without an embedding are left out.
+     * Identical searches in flight at the same time share one query; callers must not modify the
+     * embeddings returned.
+     *
+     * @param query filter applied after the vector search, if any
+     */
+    @Transactional(readOnly = true)
+    public @NonNull List<SimilarProposition> findSimilarWithEmbeddings(
+            @NonNull TextSimilaritySearchRequest request,
+            @Nullable PropositionQuery query) {
+        return embeddingSearches.execute(new SimilarityKey(request, query), () -> searchWithEmbeddings(request, query));
+    }
+
+    private List<SimilarProposition> searchWithEmbeddings(TextSimilaritySearchRequest request,
+                                                          @Nullable PropositionQuery query) {
+        try {
+            return similarRows(request, query, true).stream()
+                    .filter(row -> row.embedding() != null)
+                    .map(row -> {
+                        var proposition = findById(row.id());
+                        return proposition != null
+                                ? new SimilarProposition(proposition, row.score(), row.embedding())
+                                : null;
+                    })
+                    .filter(Objects::nonNull)
+                    .toList();
+        } catch (Exception e) {
+            logger.error("Vector search with embeddings failed: {}", e.getMessage(), e);
+            return List.of();
+        }
+    }
+
+    private List<PropositionSimilarityResult> similarRows(TextSimilaritySearchRequest request,
+                                                          @Nullable PropositionQuery query,
+                                                          boolean withEmbeddings) {
         var embedding = embeddingService.embed(request.getQuery());
 
         var whereConditions = new java.util.ArrayList<String>();
@@ -377,10 +553,10 @@ public class DrivinePropositionRepository implements PropositionRepository {
 
         // Over-fetch from the vector index to compensate for post-filter losses
         // (contextId, status, etc. are applied after the vector search)
-        boolean hasPostFilters = query.getContextIdValue() != null
+        boolean hasPostFilters = query != null && (query.getContextIdValue() != null
                 || query.getStatus() != null
                 || query.getMinLevel() != null
-                || query.getMaxLevel() != null;
+                || query.getMaxLevel() != null);
         int vectorTopK = hasPostFilters
                 ? Math.min(request.getTopK() * 5, 500)
                 : request.getTopK();
@@ -391,19 +567,19 @@ public class DrivinePropositionRepository implements PropositionRepository {
         params.put("queryVector", embedding);
         params.put("similarityThreshold", request.getSimilarityThreshold());
 
-        if (query.getContextIdValue() != null) {
+        if (query != null && query.getContextIdValue() != null) {
             whereConditions.add("p.contextId = $contextId");
             params.put("contextId", query.getContextIdValue());
         }
-        if (query.getStatus() != null) {
+        if (query != null && query.getStatus() != null) {
             whereConditions.add("p.status = $status");
             params.put("status", query.getStatus().name());
         }
-        if (query.getMinLevel() != null) {
+        if (query != null && query.getMinLevel() != null) {
             whereConditions.add("p.level >= $minLevel");
             params.put("minLevel", query.getMinLevel());
         }
-        if (query.getMaxLevel() != null) {
+        if (query != null && query.getMaxLevel() != null) {
             whereConditions.add("p.level <= $maxLevel");
             params.put("maxLevel", query.getMaxLevel());
         }
@@ -415,34 +591,19 @@ public class DrivinePropositionRepository implements PropositionRepository {
                 WHERE %s
                 RETURN {
                     id: p.id,
-                    score: score
+                    score: score%s
                 } AS result
                 ORDER BY score DESC
                 LIMIT $resultLimit
-                """.formatted(whereClause);
+                """.formatted(whereClause, withEmbeddings ? ",\n        embedding: p.embedding" : "");
         params.put("resultLimit", request.getTopK());
 
-        try {
-            var rows = persistenceManager.query(
-                    QuerySpecification
-                            .withStatement(cypher)
-                            .bind(params)
-                            .mapWith(new PropositionSimilarityMapper())
-            );
-
-            return rows.stream()
-                    .<SimilarityResult<Proposition>>map(row -> {
-                        var proposition = findById(row.id());
-                        return proposition != null
-                                ? new SimpleSimilaritySearchResult<>(proposition, row.score())
-                                : null;
-                    })
-                    .filter(r -> r != null)
-                    .toList();
-        } catch (Exception e) {
-            logger.error("Filtered vector search failed: {}", e.getMessage(), e);
-            return List.of();
-        }
+        return persistenceManager.query(
+                QuerySpecification
+                        .withStatement(cypher)
+                        .bind(params)
+                        .mapWith(new PropositionSimilarityMapper())
+        );
     }
 
     @Override
@@ -3,10 +3,11 @@ package com.embabel.urbot.proposition.persistence;
 import org.drivine.mapper.RowMapper;
 import org.jspecify.annotations.NonNull;
 
+import java.util.List;
 import java.util.Map;
 
 /**
- * Maps Neo4j vector search results to proposition ID and score pairs.
+ * Maps Neo4j vector search results to proposition ID and score pairs, with the embedding if returned.
  * Uses Drivine's RowMapper interface which properly handles Neo4j driver value types.
  */
 class PropositionSimilarityMapper implements RowMapper<PropositionSimilarityResult> {
@@ -15,6 +16,13 @@ class PropositionSimilarityMapper implements RowMapper<PropositionSimilarityResu
     public @NonNull PropositionSimilarityResult map(@NonNull Map<String, ?> row) {
         var id = (String) row.get("id");
         var score = ((Number) row.get("score")).doubleValue();
-        return new PropositionSimilarityResult(id, score);
+        float[] embedding = null;
+        if (row.get("embedding") instanceof List<?> values) {
+            embedding = new float[values.size()];
+            for (var i = 0; i < embedding.length; i++) {
+                embedding[i] = ((Number) values.get(i)).floatValue();
+            }
+        }
+        return new PropositionSimilarityResult(id, score, embedding);
     }
 }
@@ -1,7 +1,10 @@
 package com.embabel.urbot.proposition.persistence;
 
+import org.jspecify.annotations.Nullable;
+
 /**
- * Intermediate result from vector similarity search containing proposition ID and score.
+ * Intermediate result from vector similarity search containing proposition ID and score,
+ * and the proposition's embedding when requested.
  */
-record PropositionSimilarityResult(String id, double score) {
+record PropositionSimilarityResult(String id, double score, float @Nullable [] embedding) {
 }
@@ -0,0 +1,434 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.urbot.DocumentOptions;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Ingests many documents at once, from a zip or tar archive or a local directory.
+ * <p>
+ * Entries are parsed in parallel on a pool sized to {@code urbot.documents.bulk-parallelism}.
+ * A single writer stores parsed documents in groups of {@code urbot.documents.bulk-batch-size},
+ * one transaction per group, with the chunks of the whole group embedded together beforehand.
+ * If a group fails, its documents are retried one per transaction, so a bad file is reported as
+ * a failure without losing the rest of the group.
+ * Entries above the streaming threshold are spooled to a temporary file and streamed.
+ * The number of entries read but not yet written is bounded, so memory use does not grow
+ * with the size of the archive.
+ * <p>
+ * An entry whose URI was already seen in the run, such as a file appended to a tar archive
+ * twice, is reported as a failure rather than written twice. If the writer fails, entries still
+ * waiting are reported as failures and no further entries are read.
+ */
+public final class BulkIngestion {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkIngestion.class);
+
+    /**
+     * A file that could not be ingested.
+     *
+     * @param name    entry name within the archive or directory
+     * @param message reason for the failure
+     */
+    public record Failure(String name, String message) {
+    }
+
+    /**
+     * Progress so far. Reported from ingestion threads after each entry completes.
+     *
+     * @param submitted entries read from the archive or directory so far
+     * @param written   documents written to the store
+     * @param unchanged documents skipped because their content is unchanged
+     * @param failed    entries that could not be ingested
+     * @param lastName  name of the entry that just completed
+     */
+    public record Progress(int submitted, int written, int unchanged, int failed, String lastName) {
+
+        public int completed() {
+            return written + unchanged + failed;
+        }
+    }
+
+    /**
+     * Outcome of a bulk ingestion.
+     */
+    public record Result(int written, int unchanged, List<Failure> failures, Duration elapsed) {
+
+        public int total() {
+            return written + unchanged + failures.size();
+        }
+    }
+
+    private record ParsedEntry(String name, DocumentService.ParsedDocument parsed) {
+    }
+
+    private static final ParsedEntry END = new ParsedEntry(null, null);
+
+    private final DocumentService documentService;
+    private final TransactionTemplate transactionTemplate;
+    private final DocumentService.Context context;
+    private final Consumer<Progress> progressListener;
+    private final long streamingThreshold;
+    private final int batchSize;
+    private final int parallelism;
+
+    private final BlockingQueue<ParsedEntry> parsedQueue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private final Set<String> seenUris = ConcurrentHashMap.newKeySet();
+    private volatile @Nullable Throwable writerFailure;
+
+    BulkIngestion(DocumentService documentService,
+                  TransactionTemplate transactionTemplate,
+                  DocumentService.Context context,
+                  DocumentOptions options,
+                  Consumer<Progress> progressListener) {
+        this.documentService = documentService;
+        this.transactionTemplate = transactionTemplate;
+        this.context = context;
+        this.progressListener = progressListener;
+        this.streamingThreshold = options.streamingThreshold().toBytes();
+        this.batchSize = Math.max(1, options.bulkBatchSize());
+        this.parallelism = options.bulkParallelism() > 0
+                ? options.bulkParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        this.inFlight = new Semaphore(parallelism + 2 * batchSize);
+    }
+
+    /**
+     * Ingest every regular, non-hidden file below a directory. Documents are identified by file URI.
+     */
+    Result ingestDirectory(Path directory) {
+        return run(parsers -> {
+            try (var files = Files.walk(directory)) {
+                files.filter(Files::isRegularFile)
+                        .filter(path -> !path.getFileName().toString().startsWith("."))
+                        .forEach(path -> {
+                            var name = directory.relativize(path).toString();
+                            var uri = path.toUri().toString();
+                            if (!firstSeen(name, uri)) {
+                                return;
+                            }
+                            if (path.toFile().length() > streamingThreshold) {
+                                submitLarge(parsers, name, uri, path.toFile(), false);
+                            } else {
+                                submit(parsers, name, () -> {
+                                    try (var inputStream = Files.newInputStream(path)) {
+                                        return documentService.parse(inputStream, uri);
+                                    }
+                                });
+                            }
+                        });
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to list " + directory, e);
+            }
+        });
+    }
+
+    /**
+     * Ingest every file in a zip, tar, tar.gz or tgz archive, detected from the archive name.
+     * Documents are identified by the archive name and entry path, scoped to the context.
+     */
+    Result ingestArchive(InputStream archive, String archiveName) {
+        return run(parsers -> {
+            try (var entries = openArchive(archive, archiveName)) {
+                ArchiveEntry entry;
+                while ((entry = entries.getNextEntry()) != null) {
+                    if (entry.isDirectory() || !entries.canReadEntryData(entry)) {
+                        continue;
+                    }
+                    var name = entry.getName();
+                    var uri = context.uploadUri(archiveName + "/" + name);
+                    if (!firstSeen(name, uri)) {
+                        continue;
+                    }
+                    var head = entries.readNBytes((int) Math.min(streamingThreshold + 1, Integer.MAX_VALUE - 8));
+                    if (head.length > streamingThreshold) {
+                        var spooled = Files.createTempFile("urbot-bulk-", ".part");
+                        Files.copy(new SequenceInputStream(new ByteArrayInputStream(head), entries), spooled,
+                                StandardCopyOption.REPLACE_EXISTING);
+                        submitLarge(parsers, name, uri, spooled.toFile(), true);
+                    } else {
+                        submit(parsers, name, () -> documentService.parse(new ByteArrayInputStream(head), uri));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read archive " + archiveName, e);
+            }
+        });
+    }
+
+    /**
+     * Whether a file name is that of a supported archive.
+     */
+    static boolean isArchive(String filename) {
+        var name = filename.toLowerCase(Locale.ROOT);
+        return name.endsWith(".zip") || name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    private boolean firstSeen(String name, String uri) {
+        if (seenUris.add(uri)) {
+            return true;
+        }
+        submitted.incrementAndGet();
+        fail(name, new IllegalArgumentException("Duplicate of an earlier entry, not ingested again"));
+        return false;
+    }
+
+    private static ArchiveInputStream<?> openArchive(InputStream archive, String archiveName) throws IOException {
+        var name = archiveName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip")) {
+            return new ZipArchiveInputStream(archive);
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return new TarArchiveInputStream(new GZIPInputStream(archive));
+        }
+        if (name.endsWith(".tar")) {
+            return new TarArchiveInputStream(archive);
+        }
+        throw new IllegalArgumentException("Unsupported archive type: " + archiveName);
+    }
+
+    @FunctionalInterface
+    private interface Parse {
+        DocumentService.ParsedDocument parse() throws IOException;
+    }
+
+    private Result run(Consumer<ExecutorService> producer) {
+        var start = System.currentTimeMillis();
+        var threadIndex = new AtomicInteger();
+        var parsers = Executors.newFixedThreadPool(parallelism, r -> {
+            var thread = new Thread(r, "bulk-ingest-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        var writer = Thread.ofPlatform().daemon().name("bulk-ingest-writer").start(this::writeLoop);
+        try {
+            producer.accept(parsers);
+        } catch (IllegalStateException e) {
+            if (writerFailure == null) {
+                throw e;
+            }
+            // Entries not yet read are left; those read but not written are reported below
+        } finally {
+            parsers.shutdown();
+            try {
+                parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                parsedQueue.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                parsers.shutdownNow();
+                writer.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            if (writerFailure != null) {
+                failUnwritten();
+            }
+        }
+        var result = new Result(written.get(), unchanged.get(), List.copyOf(failures),
+                Duration.ofMillis(System.currentTimeMillis() - start));
+        logger.info("Bulk ingestion into {} complete: {} written, {} unchanged, {} failed in {}ms",
+                context.effectiveContext(), result.written(), result.unchanged(), failures.size(),
+                result.elapsed().toMillis());
+        return result;
+    }
+
+    private void submit(ExecutorService parsers, String name, Parse parse) {
+        acquire();
+        submitted.incrementAndGet();
+        parsers.execute(() -> {
+            try {
+                parsedQueue.put(new ParsedEntry(name, parse.parse()));
+            } catch (Exception e) {
+                fail(name, e);
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Stream a large entry on a parser thread, outside the grouped transactions.
+     */
+    private void submitLarge(ExecutorService parsers, String name, String uri, File file, boolean deleteAfter) {
+        acquire();
+        submitted.incrementAndGet();
+        parsers.execute(() -> {
+            try {
+                if (documentService.ingestLargeFile(file, uri, name, context) != null) {
+                    written.incrementAndGet();
+                } else {
+                    unchanged.incrementAndGet();
+                }
+                report(name);
+            } catch (Exception e) {
+                fail(name, e);
+            } finally {
+                if (deleteAfter && !file.delete()) {
+                    file.deleteOnExit();
+                }
+                inFlight.release();
+            }
+        });
+    }
+
+    private void acquire() {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Bulk ingestion interrupted", e);
+        }
+        var failure = writerFailure;
+        if (failure != null) {
+            inFlight.release();
+            throw new IllegalStateException("Bulk ingestion writer failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            writeParsed();
+        } catch (RuntimeException | Error e) {
+            logger.error("Bulk ingestion writer failed: {}", e.getMessage(), e);
+            writerFailure = e;
+            // Let producers waiting for room through, to see the failure
+            inFlight.release(Integer.MAX_VALUE / 2);
+        }
+    }
+
+    /**
+     * Report every entry parsed but not written because the writer failed.
+     */
+    private void failUnwritten() {
+        var unwritten = new ArrayList<ParsedEntry>();
+        parsedQueue.drainTo(unwritten);
+        var cause = new IllegalStateException("Not written: bulk ingestion writer failed");
+        unwritten.stream()
+                .filter(entry -> entry != END)
+                .forEach(entry -> fail(entry.name(), cause));
+    }
+
+    private void writeParsed() {
+        var batch = new ArrayList<ParsedEntry>(batchSize);
+        try {
+            while (true) {
+                var next = parsedQueue.take();
+                if (next != END) {
+                    batch.add(next);
+                    parsedQueue.drainTo(batch, batchSize - batch.size());
+                }
+                var done = next == END || batch.remove(END);
+                if (!batch.isEmpty() && (batch.size() >= batchSize || done || parsedQueue.isEmpty())) {
+                    try {
+                        writeBatch(batch, embedAhead(batch));
+                    } catch (RuntimeException | Error e) {
+                        var cause = new IllegalStateException("Not written: bulk ingestion writer failed", e);
+                        batch.forEach(entry -> fail(entry.name(), cause));
+                        throw e;
+                    }
+                    inFlight.release(batch.size());
+                    batch.clear();
+                }
+                if (done) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Embed the chunks of a group together. If that fails, each document is embedded as it is written.
+     */
+    private Map<String, float[]> embedAhead(List<ParsedEntry> batch) {
+        try {
+            return documentService.embedAhead(batch.stream().map(ParsedEntry::parsed).toList(), context);
+        } catch (Exception e) {
+            logger.warn("Embedding {} documents together failed, embedding each on write: {}",
+                    batch.size(), e.getMessage());
+            return Map.of();
+        }
+    }
+
+    private void writeBatch(List<ParsedEntry> batch, Map<String, float[]> embeddedAhead) {
+        List<DocumentService.WrittenDocument> results;
+        try {
+            results = transactionTemplate.execute(status -> batch.stream()
+                    .map(entry -> documentService.write(entry.parsed(), context, embeddedAhead))
+                    .toList());
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                fail(batch.getFirst().name(), e);
+                return;
+            }
+            logger.warn("Write of {} documents failed, retrying individually: {}", batch.size(), e.getMessage());
+            batch.forEach(entry -> writeBatch(List.of(entry), embeddedAhead));
+            return;
+        }
+        if (results == null) {
+            throw new IllegalStateException("No result from writing " + batch.size() + " documents");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            var result = results.get(i);
+            if (result != null) {
+                documentService.track(result);
+                written.incrementAndGet();
+            } else {
+                unchanged.incrementAndGet();
+            }
+            report(batch.get(i).name());
+        }
+    }
+
+    private void fail(String name, Exception e) {
+        logger.warn("Failed to ingest {}: {}", name, e.getMessage());
+        failures.add(new Failure(name, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+        report(name);
+    }
+
+    private void report(String name) {
+        try {
+            progressListener.accept(new Progress(submitted.get(), written.get(), unchanged.get(),
+                    failures.size(), name));
+        } catch (Exception e) {
+            logger.debug("Progress listener failed: {}", e.getMessage());
+        }
+    }
+}
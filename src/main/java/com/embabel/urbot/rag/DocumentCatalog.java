@@ -0,0 +1,282 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.vaadin.document.DocumentInfoProvider.DocumentInfo;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory catalog of ingested documents, indexed by URI and by context.
+ * Within a context, documents are kept sorted by title in a skip list, so that listing
+ * the page after a known document costs the logarithm of the context size plus the size
+ * of the page. Listing by offset must walk past the skipped documents.
+ * <p>
+ * Each update to a URI runs inside {@link ConcurrentHashMap#compute}, so the
+ * URI and context indexes change together: concurrent ingestion and deletion
+ * of the same document cannot leave a stale entry in either index.
+ */
+final class DocumentCatalog {
+
+    /**
+     * A catalogued document.
+     *
+     * @param info        document information shown in the UI
+     * @param contentHash hash of the raw content, used to skip unchanged re-ingestion
+     */
+    record Entry(DocumentInfo info, String contentHash, boolean deleted) {
+
+        Entry(DocumentInfo info, String contentHash) {
+            this(info, contentHash, false);
+        }
+    }
+
+    /**
+     * Sort position of a document within its context: by title, ignoring case, then by URI.
+     */
+    private record SortKey(String title, String uri) {
+
+        static final Comparator<SortKey> ORDER = Comparator
+                .comparing(SortKey::title, String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(SortKey::uri);
+
+        static SortKey of(DocumentInfo info) {
+            return new SortKey(info.title() != null ? info.title() : info.uri(), info.uri());
+        }
+    }
+
+    private static final class ContextIndex {
+        final ConcurrentNavigableMap<SortKey, DocumentInfo> documents = new ConcurrentSkipListMap<>(SortKey.ORDER);
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicLong chunks = new AtomicLong();
+    }
+
+    private final Map<String, Entry> byUri = new ConcurrentHashMap<>();
+    private final Map<String, ContextIndex> byContext = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> contextVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Add or replace the entry for a document.
+     */
+    void put(DocumentInfo info, String contentHash) {
+        byUri.compute(info.uri(), (uri, previous) -> {
+            if (previous != null && !previous.deleted()) {
+                unindex(previous.info());
+            }
+            index(info);
+            return new Entry(info, contentHash);
+        });
+    }
+
+    /**
+     * Add an entry unless the URI is already catalogued.
+     *
+     * @return true if the entry was added
+     */
+    boolean putIfAbsent(DocumentInfo info, String contentHash) {
+        var added = new boolean[1];
+        byUri.computeIfAbsent(info.uri(), uri -> {
+            index(info);
+            added[0] = true;
+            return new Entry(info, contentHash);
+        });
+        return added[0];
+    }
+
+    /**
+     * Hide a document that is being deleted. The entry stays, marked deleted, until
+     * {@link #purge(String)} or {@link #restore(String)}, but is no longer listed or counted.
+     *
+     * @return true if a listed document was hidden
+     */
+    boolean tombstone(String uri) {
+        var hidden = new boolean[1];
+        byUri.computeIfPresent(uri, (key, entry) -> {
+            if (entry.deleted()) {
+                return entry;
+            }
+            unindex(entry.info());
+            hidden[0] = true;
+            return new Entry(entry.info(), entry.contentHash(), true);
+        });
+        return hidden[0];
+    }
+
+    /**
+     * Drop a tombstone once the document has been deleted. A document re-ingested
+     * in the meantime is kept.
+     */
+    void purge(String uri) {
+        byUri.computeIfPresent(uri, (key, entry) -> entry.deleted() ? null : entry);
+    }
+
+    /**
+     * List a tombstoned document again, after its deletion failed.
+     */
+    void restore(String uri) {
+        byUri.computeIfPresent(uri, (key, entry) -> {
+            if (!entry.deleted()) {
+                return entry;
+            }
+            index(entry.info());
+            return new Entry(entry.info(), entry.contentHash());
+        });
+    }
+
+    /**
+     * The listed entry for a document; tombstoned documents are not returned.
+     */
+    Optional<Entry> get(String uri) {
+        return Optional.ofNullable(byUri.get(uri)).filter(entry -> !entry.deleted());
+    }
+
+    @Nullable String contentHash(String uri) {
+        return get(uri).map(Entry::contentHash).orElse(null);
+    }
+
+    /**
+     * Content hash of a document as stored in the given context, or null if it is not stored
+     * there. Content stored under the same URI in another context does not count as unchanged.
+     */
+    @Nullable String contentHash(String uri, String context) {
+        return get(uri)
+                .filter(entry -> context.equals(entry.info().context()))
+                .map(Entry::contentHash)
+                .orElse(null);
+    }
+
+    /**
+     * All documents, grouped by context and sorted by title within each context.
+     */
+    List<DocumentInfo> all() {
+        return byContext.values().stream()
+                .flatMap(index -> index.documents.values().stream())
+                .toList();
+    }
+
+    /**
+     * A page of the documents in a context, sorted by title. Cost grows with the offset, as the
+     * skipped documents are walked past; use {@link #pageAfter} to page through a large context.
+     */
+    List<DocumentInfo> page(String context, int offset, int limit) {
+        var index = byContext.get(context);
+        if (index == null || limit <= 0) {
+            return List.of();
+        }
+        return index.documents.values().stream()
+                .skip(Math.max(0, offset))
+                .limit(limit)
+                .toList();
+    }
+
+    /**
+     * The page of documents in a context that follows the given document in title order,
+     * or the first page if {@code after} is null. The start of the page is found by a skip list
+     * search, so cost does not depend on how far into the context the page is.
+     */
+    List<DocumentInfo> pageAfter(String context, @Nullable DocumentInfo after, int limit) {
+        var index = byContext.get(context);
+        if (index == null || limit <= 0) {
+            return List.of();
+        }
+        var documents = after != null
+                ? index.documents.tailMap(SortKey.of(after), false)
+                : index.documents;
+        return documents.values().stream()
+                .limit(limit)
+                .toList();
+    }
+
+    /**
+     * Number of documents in a context, without scanning it.
+     */
+    int count(String context) {
+        var index = byContext.get(context);
+        return index != null ? index.size.get() : 0;
+    }
+
+    int size() {
+        return byContext.values().stream().mapToInt(index -> index.size.get()).sum();
+    }
+
+    /**
+     * Number of chunks in a context, maintained on every update and
+     * corrected by {@link #reconcileChunks(String, long)}.
+     */
+    long chunkCount(String context) {
+        var index = byContext.get(context);
+        return index != null ? index.chunks.get() : 0;
+    }
+
+    long chunkCount() {
+        return byContext.values().stream().mapToLong(index -> index.chunks.get()).sum();
+    }
+
+    /**
+     * Set the chunk count of a context to the value found in the database.
+     *
+     * @return the difference between the stored and the maintained count
+     */
+    long reconcileChunks(String context, long storedChunks) {
+        var drift = new long[1];
+        byContext.computeIfPresent(context, (key, index) -> {
+            drift[0] = storedChunks - index.chunks.getAndSet(storedChunks);
+            return index;
+        });
+        return drift[0];
+    }
+
+    /**
+     * Contexts that currently hold at least one document.
+     */
+    List<String> contexts() {
+        return byContext.entrySet().stream()
+                .filter(entry -> entry.getValue().size.get() > 0)
+                .map(Map.Entry::getKey)
+                .sorted()
+                .toList();
+    }
+
+    /**
+     * Incremented whenever a document in the context is listed or unlisted, so that anything
+     * derived from the context's documents can tell whether it is stale.
+     */
+    long version(String context) {
+        var contextVersion = contextVersions.get(context);
+        return contextVersion != null ? contextVersion.get() : 0;
+    }
+
+    private void changed(String context) {
+        contextVersions.computeIfAbsent(context, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void index(DocumentInfo info) {
+        changed(info.context());
+        byContext.compute(info.context(), (context, index) -> {
+            var target = index != null ? index : new ContextIndex();
+            if (target.documents.put(SortKey.of(info), info) == null) {
+                target.size.incrementAndGet();
+            }
+            target.chunks.addAndGet(info.chunkCount());
+            return target;
+        });
+    }
+
+    private void unindex(DocumentInfo info) {
+        changed(info.context());
+        byContext.computeIfPresent(info.context(), (context, index) -> {
+            if (index.documents.remove(SortKey.of(info)) != null) {
+                index.size.decrementAndGet();
+                index.chunks.addAndGet(-info.chunkCount());
+            }
+            return index.size.get() > 0 ? index : null;
+        });
+    }
+}
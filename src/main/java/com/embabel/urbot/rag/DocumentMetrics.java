@@ -0,0 +1,54 @@
+package com.embabel.urbot.rag;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exports document and chunk counts as gauges. Values are read from the counters
+ * {@link DocumentService} maintains in memory, so scraping adds no database load.
+ */
+@Component
+class DocumentMetrics {
+
+    private final DocumentService documentService;
+    private final MultiGauge documentsByContext;
+    private final MultiGauge chunksByContext;
+
+    DocumentMetrics(DocumentService documentService, MeterRegistry meterRegistry) {
+        this.documentService = documentService;
+        Gauge.builder("urbot.documents.total", documentService, DocumentService::getDocumentCount)
+                .description("Ingested documents across all contexts")
+                .register(meterRegistry);
+        Gauge.builder("urbot.chunks.total", documentService, DocumentService::getChunkCount)
+                .description("Stored chunks across all contexts")
+                .register(meterRegistry);
+        this.documentsByContext = MultiGauge.builder("urbot.documents")
+                .description("Ingested documents per context")
+                .register(meterRegistry);
+        this.chunksByContext = MultiGauge.builder("urbot.chunks")
+                .description("Stored chunks per context")
+                .register(meterRegistry);
+        refreshContexts();
+    }
+
+    /**
+     * Register a row per context, so that contexts created since the last refresh are exported
+     * and contexts that no longer hold documents are dropped.
+     */
+    @Scheduled(fixedDelay = 30_000)
+    void refreshContexts() {
+        var contexts = documentService.contexts();
+        documentsByContext.register(contexts.stream()
+                .map(context -> MultiGauge.Row.of(Tags.of("context", context), documentService,
+                        service -> service.getDocumentCount(context)))
+                .toList(), true);
+        chunksByContext.register(contexts.stream()
+                .map(context -> MultiGauge.Row.of(Tags.of("context", context), documentService,
+                        service -> service.getChunkCount(context)))
+                .toList(), true);
+    }
+}
@@ -1,28 +1,64 @@
 package com.embabel.urbot.rag;
 
-import com.embabel.agent.filter.PropertyFilter;
+import com.embabel.agent.rag.ingestion.ChunkTransformer;
+import com.embabel.agent.rag.ingestion.InMemoryContentChunker;
 import com.embabel.agent.rag.ingestion.TikaHierarchicalContentReader;
-import com.embabel.agent.rag.model.Chunk;
-import com.embabel.agent.rag.model.ContentRoot;
+import com.embabel.agent.rag.model.LeafSection;
+import com.embabel.agent.rag.model.MaterializedDocument;
 import com.embabel.agent.rag.model.NavigableDocument;
 import com.embabel.agent.rag.store.ChunkingContentElementRepository;
+import com.embabel.urbot.DocumentOptions;
 import com.embabel.urbot.UrbotProperties;
+import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository;
 import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.xml.sax.SAXException;
 
 import com.embabel.vaadin.document.DocumentInfoProvider;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Service for managing document ingestion and retrieval.
@@ -32,10 +68,47 @@ public class DocumentService implements DocumentInfoProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(DocumentService.class);
 
+    /**
+     * Metadata key for the SHA-256 hash of a document's raw content (on the root)
+     * or of a chunk's text (on each chunk).
+     */
+    public static final String CONTENT_HASH_KEY = "contentHash";
+
+    /**
+     * Metadata key linking a document's root and chunks to the document URI.
+     */
+    public static final String DOCUMENT_URI_KEY = "documentUri";
+
+    /**
+     * Metadata key for the title of a streamed document, on each of its section roots.
+     */
+    public static final String DOCUMENT_TITLE_KEY = "documentTitle";
+
+    /**
+     * Metadata key for the nearest heading of a streamed section.
+     */
+    public static final String SECTION_TITLE_KEY = "sectionTitle";
+
     private final ChunkingContentElementRepository contentRepository;
+    private final DrivineDocumentRepository documentRepository;
+    private final DrivinePropositionRepository propositionRepository;
+    private final ReusingEmbeddingService chunkEmbeddingService;
+    private final ChunkTransformer chunkTransformer;
+    private final NearDuplicateDetector nearDuplicateDetector;
+    private final TransactionTemplate transactionTemplate;
     private final TikaHierarchicalContentReader contentReader;
+    private final ResourceLoader resourceLoader = new DefaultResourceLoader();
+    private final HttpDocumentCache httpCache;
     private final UrbotProperties properties;
-    private final List<DocumentInfoProvider.DocumentInfo> documents = new CopyOnWriteArrayList<>();
+    private final ObservationRegistry observationRegistry;
+    private final DocumentCatalog catalog = new DocumentCatalog();
+    private final CompletableFuture<Void> catalogLoaded = new CompletableFuture<>();
+    private final Map<String, CompletableFuture<Void>> pendingDeletions = new ConcurrentHashMap<>();
+    private final ExecutorService deleter = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "document-deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public record Context(UrbotUser user, String overrideContext) {
 
@@ -55,6 +128,14 @@ public class DocumentService implements DocumentInfoProvider {
             return overrideContext != null ? overrideContext : user.effectiveContext();
         }
 
+        /**
+         * URI for a document uploaded into this context. Scoped by context so that
+         * re-uploading a file replaces it, while the same file name in another context does not.
+         */
+        public String uploadUri(String filename) {
+            return "upload://" + effectiveContext() + "/" + filename;
+        }
+
         public Map<String, Object> metadata() {
             return Map.of(
                     "ingestedBy", user.getId(),
@@ -63,184 +144,882 @@ public class DocumentService implements DocumentInfoProvider {
         }
     }
 
-    public DocumentService(ChunkingContentElementRepository contentRepository, UrbotProperties properties) {
+    public DocumentService(ChunkingContentElementRepository contentRepository,
+                           DrivineDocumentRepository documentRepository,
+                           DrivinePropositionRepository propositionRepository,
+                           ReusingEmbeddingService chunkEmbeddingService,
+                           ChunkTransformer chunkTransformer,
+                           NearDuplicateDetector nearDuplicateDetector,
+                           PlatformTransactionManager transactionManager,
+                           UrbotProperties properties,
+                           ObservationRegistry observationRegistry) {
         this.contentRepository = contentRepository;
+        this.documentRepository = documentRepository;
+        this.propositionRepository = propositionRepository;
+        this.chunkEmbeddingService = chunkEmbeddingService;
+        this.chunkTransformer = chunkTransformer;
+        this.nearDuplicateDetector = nearDuplicateDetector;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
         this.contentReader = new TikaHierarchicalContentReader();
         this.properties = properties;
+        this.observationRegistry = observationRegistry;
+        this.httpCache = new HttpDocumentCache(properties.documents().httpCacheDirectory(),
+                properties.documents().httpTimeout());
     }
 
+    /**
+     * Loads the catalog of already ingested documents in the background, a page at a time,
+     * reading only catalog fields and chunk counts. Ingestion and deletion wait for
+     * the load to finish, so that content hashes of stored documents are known.
+     * Initial documents are ingested by {@link InitialDocumentSeeder}.
+     */
     @PostConstruct
     void loadDocumentsFromDatabase() {
-        try {
-            for (var root : contentRepository.findAll(ContentRoot.class)) {
-                var context = (String) root.getMetadata().get(Context.CONTEXT_KEY);
-                if (context == null) continue;
-                documents.add(new DocumentInfoProvider.DocumentInfo(
-                        root.getUri(),
-                        root.getTitle(),
-                        context,
-                        0,
-                        root.getIngestionTimestamp()
-                ));
+        Thread.ofPlatform().daemon().name("document-catalog-loader").start(() -> {
+            try {
+                loadCatalog();
+            } catch (Exception e) {
+                logger.warn("Failed to load documents from database: {}", e.getMessage());
+            } finally {
+                catalogLoaded.complete(null);
             }
-            logger.info("Loaded {} documents from database", documents.size());
-        } catch (Exception e) {
-            logger.warn("Failed to load documents from database: {}", e.getMessage());
-        }
-        ingestInitialDocuments();
+        });
     }
 
-    private void ingestInitialDocuments() {
-        var initialDocs = properties.initialDocuments();
-        if (initialDocs == null || initialDocs.isEmpty()) {
-            return;
+    /**
+     * Sections of streamed documents are listed once, under their document URI.
+     */
+    private void loadCatalog() {
+        backfillChunkDocumentUris();
+        var start = System.currentTimeMillis();
+        var pageSize = properties.documents().catalogPageSize();
+        var after = "";
+        List<DrivineDocumentRepository.CatalogRow> page;
+        do {
+            page = documentRepository.catalogPage(after, pageSize);
+            for (var row : page) {
+                catalog.putIfAbsent(new DocumentInfoProvider.DocumentInfo(
+                        row.uri(),
+                        row.title(),
+                        row.context(),
+                        row.chunkCount(),
+                        row.ingestedAt() != null ? row.ingestedAt() : Instant.EPOCH
+                ), row.contentHash());
+            }
+            if (!page.isEmpty()) {
+                after = page.getLast().rootUri();
+            }
+        } while (page.size() == pageSize);
+        logger.info("Loaded {} documents from database in {}ms", catalog.size(), System.currentTimeMillis() - start);
+        reconcileCounts();
+    }
+
+    /**
+     * Record the document URI on chunks stored before it was recorded, so that chunk counts,
+     * deletion and grounding release, which find chunks by document URI, include them.
+     */
+    private void backfillChunkDocumentUris() {
+        var batchSize = Math.max(1, properties.documents().deleteBatchSize());
+        var after = "";
+        var updated = 0;
+        List<String> batch;
+        do {
+            batch = documentRepository.chunksWithoutDocumentUri(after, batchSize);
+            if (!batch.isEmpty()) {
+                updated += documentRepository.backfillDocumentUri(batch);
+                after = batch.getLast();
+            }
+        } while (batch.size() == batchSize);
+        if (updated > 0) {
+            logger.info("Recorded the document URI on {} chunks stored without it", updated);
         }
+    }
 
-        Set<String> existingUris = documents.stream()
-                .map(DocumentInfo::uri)
-                .collect(Collectors.toSet());
+    /**
+     * Completes once the catalog of stored documents has been loaded.
+     */
+    public CompletableFuture<Void> catalogLoaded() {
+        return catalogLoaded.copy();
+    }
 
-        var systemUser = new UrbotUser("system", "System", "system");
-        var context = Context.global(systemUser);
+    private void awaitCatalog() {
+        catalogLoaded.join();
+    }
 
-        for (String uri : initialDocs) {
-            if (existingUris.contains(uri)) {
-                logger.info("Initial document already loaded, skipping: {}", uri);
-                continue;
-            }
-            try {
-                var file = new File(uri);
-                if (file.exists()) {
-                    ingestFile(file, context);
-                } else {
-                    ingestUrl(uri, context);
+    /**
+     * Ingest a file into the RAG store, unless its content is stored unchanged in the context.
+     * Files larger than {@code urbot.documents.streaming-threshold} are streamed.
+     *
+     * @return the document ingested, or null if the content is unchanged
+     */
+    public NavigableDocument ingestFile(File file, Context context) {
+        logger.info("Ingesting file: {}", file.getName());
+        var uri = file.toURI().toString();
+        if (isUnchanged(file, context)) {
+            logger.info("Content unchanged, not re-ingesting: {}", uri);
+            return null;
+        }
+        try {
+            NavigableDocument document;
+            if (file.length() > properties.documents().streamingThreshold().toBytes()) {
+                document = ingestLargeFile(file, uri, file.getName(), context);
+            } else {
+                try (var inputStream = new FileInputStream(file)) {
+                    document = ingest(inputStream, uri, context);
                 }
-                logger.info("Ingested initial document: {}", uri);
-            } catch (Exception e) {
-                logger.warn("Failed to ingest initial document {}: {}", uri, e.getMessage());
             }
+            logger.info("Ingested file: {}", file.getName());
+            return document;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file, e);
         }
     }
 
     /**
-     * Ingest a file into the RAG store.
+     * Whether a file's content is stored unchanged in the context. Compares content hashes,
+     * which costs one read of the file but no parsing or embedding.
      */
-    public NavigableDocument ingestFile(File file, Context context) {
-        logger.info("Ingesting file: {}", file.getName());
-        var document = contentReader.parseFile(file, file.toURI().toString())
-                .withMetadata(context.metadata());
-        var chunkIds = contentRepository.writeAndChunkDocument(document);
-        trackDocument(document, context, chunkIds.size());
-        logger.info("Ingested file: {}", file.getName());
-        return document;
+    public boolean isUnchanged(File file, Context context) {
+        awaitCatalog();
+        var stored = catalog.contentHash(file.toURI().toString(), context.effectiveContext());
+        if (stored == null) {
+            return false;
+        }
+        try {
+            return stored.equals(hashFile(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file, e);
+        }
     }
 
     /**
      * Ingest content from an input stream.
+     * Content larger than {@code urbot.documents.streaming-threshold} is streamed.
      */
     public NavigableDocument ingestStream(InputStream inputStream, String uri, String filename, Context context) {
         logger.info("Ingesting stream: {}", filename);
-        var document = contentReader.parseContent(inputStream, uri)
-                .withMetadata(context.metadata());
-        var chunkIds = contentRepository.writeAndChunkDocument(document);
-        trackDocument(document, context, chunkIds.size());
-        logger.info("Ingested: {}", filename);
-        return document;
+        awaitCatalog();
+        try {
+            var document = ingestBuffered(inputStream, uri, filename, context);
+            logger.info("Ingested: {}", filename);
+            return document;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + filename, e);
+        }
     }
 
     /**
-     * Ingest content from a URL.
+     * Ingest content from a URL. HTTP(S) URLs go through an on-disk cache and are revalidated
+     * with a conditional request; if the server reports the document unchanged and it is already
+     * stored, nothing is parsed or embedded.
+     *
+     * @return the document, or null if it was not modified since it was stored
      */
     public NavigableDocument ingestUrl(String url, Context context) {
         logger.info("Ingesting URL: {}", url);
-        var document = contentReader.parseResource(url)
-                .withMetadata(context.metadata());
-        var chunkIds = contentRepository.writeAndChunkDocument(document);
-        trackDocument(document, context, chunkIds.size());
-        logger.info("Ingested URL: {}", url);
-        return document;
-    }
-
-    private void trackDocument(NavigableDocument document, Context context, int chunkCount) {
-        documents.add(new DocumentInfoProvider.DocumentInfo(
-                document.getUri(),
-                document.getTitle(),
+        awaitCatalog();
+        if (HttpDocumentCache.supports(url)) {
+            var fetch = httpCache.fetch(url);
+            if (fetch.notModified() && catalog.contentHash(url, context.effectiveContext()) != null) {
+                logger.info("URL not modified since ingested, skipping: {}", url);
+                return null;
+            }
+            try (var inputStream = fetch.open()) {
+                var document = ingestBuffered(inputStream, url, url, context);
+                logger.info("Ingested URL: {}", url);
+                return document;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read cached copy of " + url, e);
+            }
+        }
+        try (var inputStream = resourceLoader.getResource(url).getInputStream()) {
+            var document = ingestBuffered(inputStream, url, url, context);
+            logger.info("Ingested URL: {}", url);
+            return document;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to fetch " + url, e);
+        }
+    }
+
+    /**
+     * Ingest every file in a zip, tar, tar.gz or tgz archive, parsing entries in parallel
+     * and writing them in grouped transactions. Failed entries are reported in the result
+     * rather than aborting the batch.
+     *
+     * @param archiveName name of the archive, used to detect its type and to build document URIs
+     * @param progress    receives progress after each entry; called from ingestion threads
+     */
+    public BulkIngestion.Result ingestArchive(InputStream archive, String archiveName, Context context,
+                                              Consumer<BulkIngestion.Progress> progress) {
+        logger.info("Ingesting archive: {}", archiveName);
+        awaitCatalog();
+        return bulkIngestion(context, progress).ingestArchive(archive, archiveName);
+    }
+
+    /**
+     * Ingest every file below a local directory, parsing files in parallel
+     * and writing them in grouped transactions. Failed files are reported in the result
+     * rather than aborting the batch.
+     *
+     * @param progress receives progress after each file; called from ingestion threads
+     */
+    public BulkIngestion.Result ingestDirectory(Path directory, Context context,
+                                                Consumer<BulkIngestion.Progress> progress) {
+        logger.info("Ingesting directory: {}", directory);
+        awaitCatalog();
+        return bulkIngestion(context, progress).ingestDirectory(directory);
+    }
+
+    /**
+     * Ingest an uploaded file. A zip or tar archive is unpacked and its entries ingested in bulk;
+     * anything else is ingested as a single document.
+     *
+     * @return the document ingested, or null for an archive or unchanged content
+     */
+    public NavigableDocument ingestUpload(InputStream inputStream, String filename, Context context) {
+        if (!BulkIngestion.isArchive(filename)) {
+            return ingestStream(inputStream, context.uploadUri(filename), filename, context);
+        }
+        var result = ingestArchive(inputStream, filename, context, progress -> {
+        });
+        if (!result.failures().isEmpty()) {
+            logger.warn("{} of {} entries of {} could not be ingested: {}", result.failures().size(),
+                    result.total(), filename, result.failures());
+            if (result.written() + result.unchanged() == 0) {
+                throw new IllegalStateException("No entries of " + filename + " could be ingested");
+            }
+        }
+        return null;
+    }
+
+    private BulkIngestion bulkIngestion(Context context, Consumer<BulkIngestion.Progress> progress) {
+        return new BulkIngestion(this, transactionTemplate, context, properties.documents(), progress);
+    }
+
+    /**
+     * Buffer up to the streaming threshold to find out whether the content is small enough
+     * to parse into a document tree, or must be streamed.
+     */
+    private NavigableDocument ingestBuffered(InputStream inputStream, String uri, String filename, Context context)
+            throws IOException {
+        var threshold = (int) Math.min(properties.documents().streamingThreshold().toBytes(), Integer.MAX_VALUE - 8);
+        var head = inputStream.readNBytes(threshold + 1);
+        if (head.length <= threshold) {
+            return ingest(new ByteArrayInputStream(head), uri, context);
+        }
+        logger.info("{} exceeds {}, ingesting in streaming mode", filename, properties.documents().streamingThreshold());
+        return ingestStreaming(
+                new SequenceInputStream(new ByteArrayInputStream(head), inputStream), uri, filename, context);
+    }
+
+    /**
+     * Stream a file above the streaming threshold into the store under the given URI,
+     * unless its content hash matches the stored version.
+     *
+     * @return the first section written, or null if the content is unchanged
+     */
+    NavigableDocument ingestLargeFile(File file, String uri, String filename, Context context) throws IOException {
+        var contentHash = hashFile(file);
+        if (contentHash.equals(catalog.contentHash(uri, context.effectiveContext()))) {
+            logger.info("Content unchanged, not re-ingesting: {}", uri);
+            return null;
+        }
+        try (var inputStream = new FileInputStream(file)) {
+            return ingestStreaming(inputStream, uri, filename, context);
+        }
+    }
+
+    /**
+     * A parsed document and the hash of its raw content.
+     */
+    record ParsedDocument(String uri, NavigableDocument document, String contentHash) {
+    }
+
+    /**
+     * A document written to the store, not yet recorded in the catalog.
+     */
+    record WrittenDocument(String uri, NavigableDocument document, Context context, int chunkCount,
+                           String contentHash) {
+    }
+
+    /**
+     * Parse and store a document. See {@link #write(ParsedDocument, Context)}.
+     */
+    private NavigableDocument ingest(InputStream inputStream, String uri, Context context) {
+        var parsed = parse(inputStream, uri);
+        var written = write(parsed, context);
+        if (written == null) {
+            return parsed.document();
+        }
+        track(written);
+        return written.document();
+    }
+
+    /**
+     * Parse a document, hashing its raw content on the way through.
+     */
+    ParsedDocument parse(InputStream inputStream, String uri) {
+        return stage("parse", () -> {
+            var digest = ContentHashes.newDigest();
+            var digestStream = new DigestInputStream(inputStream, digest);
+            var parsed = contentReader.parseContent(digestStream, uri);
+            drain(digestStream);
+            return new ParsedDocument(uri, parsed, ContentHashes.hex(digest));
+        });
+    }
+
+    /**
+     * Store a parsed document. A document whose content hash matches the version stored in the
+     * same context is not written again. A changed document replaces the stored version chunk by
+     * chunk: chunks whose content hash is unchanged keep their id and embedding, so proposition
+     * grounding and near-duplicate links to them survive, only new or modified chunks are embedded,
+     * and chunks that disappeared are deleted and released from grounding. Joins the caller's
+     * transaction if there is one; the catalog is only updated by {@link #track(WrittenDocument)}.
+     *
+     * @return the written document, or null if the content is unchanged
+     */
+    WrittenDocument write(ParsedDocument parsed, Context context) {
+        return write(parsed, context, Map.of());
+    }
+
+    /**
+     * Store a parsed document as {@link #write(ParsedDocument, Context)} does, taking chunk
+     * embeddings computed ahead by {@link #embedAhead(List, Context)}.
+     *
+     * @param embeddedAhead chunk embeddings keyed by content hash of the chunk text
+     */
+    WrittenDocument write(ParsedDocument parsed, Context context, Map<String, float[]> embeddedAhead) {
+        var uri = parsed.uri();
+        awaitDeletion(uri);
+        var contentHash = parsed.contentHash();
+        if (contentHash.equals(catalog.contentHash(uri, context.effectiveContext()))) {
+            logger.info("Content unchanged, not re-ingesting: {}", uri);
+            return null;
+        }
+        // Stored under this URI, possibly in another context
+        var previousHash = catalog.contentHash(uri);
+
+        var metadata = new HashMap<>(context.metadata());
+        metadata.put(CONTENT_HASH_KEY, contentHash);
+        metadata.put(DOCUMENT_URI_KEY, uri);
+        var document = parsed.document().withMetadata(metadata);
+
+        Map<String, float[]> reusable = Map.of();
+        Map<String, String> previousChunks = Map.of();
+        if (previousHash != null) {
+            reusable = documentRepository.chunkEmbeddingsByHash(uri);
+            previousChunks = documentRepository.chunkHashesById(uri);
+            deleteStored(uri, false);
+            logger.info("Content changed, replacing {} with up to {} reusable chunk embeddings",
+                    uri, reusable.size());
+        }
+        if (!embeddedAhead.isEmpty()) {
+            var combined = new HashMap<>(embeddedAhead);
+            combined.putAll(reusable);
+            reusable = combined;
+        }
+        var nearDuplicates = chunkEmbeddingService.openScope(context.effectiveContext(), reusable);
+        List<String> chunkIds;
+        try {
+            chunkIds = stage("chunk-and-embed", () -> contentRepository.writeAndChunkDocument(document));
+        } finally {
+            chunkEmbeddingService.closeScope();
+        }
+        var recorded = documentRepository.recordChunkHashes(uri, chunkIds);
+        var chunkHashes = previousHash == null
+                ? recorded
+                : keepUnchangedChunkIds(uri, chunkIds, recorded, previousChunks);
+        var chunkCount = stage("near-duplicates",
+                () -> handleNearDuplicates(uri, context, chunkHashes, nearDuplicates));
+        return new WrittenDocument(uri, document, context, chunkCount, contentHash);
+    }
+
+    /**
+     * Embed the chunks of several parsed documents together, in as few provider calls as the
+     * embedding batch size allows, for their writes to reuse. Chunks are cut with the store's
+     * chunker configuration and transformer, so they match the chunks written. Documents already
+     * stored under their URI are left out, as their unchanged chunks are reused at write time,
+     * and so are chunks that nearly duplicate a chunk already stored in the context.
+     *
+     * @return embeddings keyed by content hash of the chunk text
+     */
+    Map<String, float[]> embedAhead(List<ParsedDocument> documents, Context context) {
+        var chunker = new InMemoryContentChunker(properties.ingestion(), chunkTransformer);
+        var texts = new LinkedHashMap<String, String>();
+        for (var parsed : documents) {
+            if (catalog.contentHash(parsed.uri()) != null) {
+                continue;
+            }
+            for (var chunk : chunker.chunk(parsed.document())) {
+                var text = chunk.getText();
+                var hash = ContentHashes.of(text);
+                if (!texts.containsKey(hash) && !nearlyDuplicatesStoredChunk(context, text)) {
+                    texts.put(hash, text);
+                }
+            }
+        }
+        if (texts.isEmpty()) {
+            return Map.of();
+        }
+        var hashes = List.copyOf(texts.keySet());
+        var pending = List.copyOf(texts.values());
+        var batchSize = Math.max(1, properties.ingestion().getEmbeddingBatchSize());
+        var embeddings = new HashMap<String, float[]>();
+        for (var from = 0; from < pending.size(); from += batchSize) {
+            var to = Math.min(pending.size(), from + batchSize);
+            var embedded = chunkEmbeddingService.embed(pending.subList(from, to));
+            for (var i = from; i < to; i++) {
+                embeddings.put(hashes.get(i), embedded.get(i - from));
+            }
+        }
+        logger.info("Embedded {} chunks ahead for {} documents", embeddings.size(), documents.size());
+        return embeddings;
+    }
+
+    private boolean nearlyDuplicatesStoredChunk(Context context, String text) {
+        if (!nearDuplicateDetector.isEnabled()) {
+            return false;
+        }
+        var signature = MinHash.signature(text);
+        return signature != null && nearDuplicateDetector.find(context.effectiveContext(), signature).isPresent();
+    }
+
+    /**
+     * Give chunks whose content is unchanged the ids they had in the previous version, and release
+     * the grounding of previous chunks that have no unchanged counterpart.
+     *
+     * @return chunk content hashes keyed by the chunk ids now stored
+     */
+    private Map<String, String> keepUnchangedChunkIds(String uri, List<String> chunkIds,
+                                                      Map<String, String> chunkHashes,
+                                                      Map<String, String> previousChunks) {
+        var previousIds = matchUnchangedChunks(chunkIds, chunkHashes, previousChunks);
+        documentRepository.takeOverChunkIds(previousIds);
+        var kept = new HashMap<String, String>();
+        chunkHashes.forEach((chunkId, hash) -> kept.put(previousIds.getOrDefault(chunkId, chunkId), hash));
+        var removed = previousChunks.keySet().stream()
+                .filter(previousId -> !kept.containsKey(previousId))
+                .toList();
+        if (!removed.isEmpty()) {
+            propositionRepository.releaseGrounding(removed);
+        }
+        logger.info("Re-ingested {}: {} of {} chunks unchanged, {} removed",
+                uri, previousIds.size(), chunkIds.size(), removed.size());
+        return kept;
+    }
+
+    /**
+     * Pair each new chunk with a previous chunk of the same content hash, in document order,
+     * each previous chunk used at most once.
+     *
+     * @return id of the previous chunk, keyed by id of the new chunk it matches
+     */
+    static Map<String, String> matchUnchangedChunks(List<String> chunkIds, Map<String, String> chunkHashes,
+                                                    Map<String, String> previousChunks) {
+        var previousByHash = new HashMap<String, ArrayDeque<String>>();
+        previousChunks.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> previousByHash.computeIfAbsent(entry.getValue(), hash -> new ArrayDeque<>())
+                        .add(entry.getKey()));
+        var matches = new HashMap<String, String>();
+        for (var chunkId : chunkIds) {
+            var candidates = previousByHash.get(chunkHashes.get(chunkId));
+            if (candidates != null && !candidates.isEmpty()) {
+                matches.put(chunkId, candidates.poll());
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Index the signatures of newly written chunks, and link or delete the chunks that
+     * were found to nearly duplicate chunks already stored in the context.
+     *
+     * @return number of chunks the document keeps
+     */
+    private int handleNearDuplicates(String uri, Context context, Map<String, String> chunkHashes,
+                                     ReusingEmbeddingService.Scope scope) {
+        if (scope.signatures().isEmpty()) {
+            return chunkHashes.size();
+        }
+        var duplicates = new HashMap<String, String>();
+        var signatures = new HashMap<String, int[]>();
+        chunkHashes.forEach((chunkId, hash) -> {
+            var original = scope.duplicates().get(hash);
+            if (original != null && !original.equals(chunkId)) {
+                duplicates.put(chunkId, original);
+            } else if (scope.signatures().containsKey(hash)) {
+                signatures.put(chunkId, scope.signatures().get(hash));
+            }
+        });
+        documentRepository.recordSignatures(signatures);
+        signatures.forEach((chunkId, signature) ->
+                nearDuplicateDetector.add(context.effectiveContext(), chunkId, signature));
+        if (duplicates.isEmpty()) {
+            return chunkHashes.size();
+        }
+        var skip = nearDuplicateDetector.action() == DocumentOptions.NearDuplicateAction.SKIP;
+        if (skip) {
+            documentRepository.deleteChunks(List.copyOf(duplicates.keySet()));
+        } else {
+            documentRepository.linkDuplicates(duplicates);
+        }
+        var report = nearDuplicateDetector.report();
+        logger.info("{}: {} of {} chunks nearly duplicate stored chunks and were {}; " +
+                        "{} of {} chunks checked since startup were near-duplicates, {} characters not embedded",
+                uri, duplicates.size(), chunkHashes.size(), skip ? "skipped" : "linked",
+                report.duplicates(), report.checked(), report.charactersNotEmbedded());
+        return skip ? chunkHashes.size() - duplicates.size() : chunkHashes.size();
+    }
+
+    /**
+     * Record a written document in the catalog, once its transaction has committed.
+     */
+    void track(WrittenDocument written) {
+        trackDocument(written.uri(), written.document().getTitle(), written.context(),
+                written.chunkCount(), written.contentHash());
+    }
+
+    /**
+     * Ingest a large document in streaming mode. Text is cut into sections as Tika's SAX events
+     * arrive, and every {@code streaming-batch-size} sections are written in one transaction,
+     * each section as its own content root linked to the document by {@link #DOCUMENT_URI_KEY}.
+     * The full document tree is never built, so heap use depends on the section and batch size
+     * rather than the document size.
+     * <p>
+     * Sections are written under a pending document URI. Only once the whole document has been
+     * parsed is any previous version deleted and the new sections moved to the document URI, so
+     * a document that fails to parse leaves the stored version in place. Embeddings are not
+     * reused: staging the embeddings of a very large document would defeat the purpose of streaming.
+     *
+     * @return the first section written, or null if the document has no text
+     */
+    private NavigableDocument ingestStreaming(InputStream inputStream, String uri, String filename, Context context)
+            throws IOException {
+        var options = properties.documents();
+        awaitDeletion(uri);
+        var pendingUri = uri + "#pending-" + UUID.randomUUID();
+        var digest = ContentHashes.newDigest();
+        var metadata = new HashMap<>(context.metadata());
+        metadata.put(DOCUMENT_URI_KEY, pendingUri);
+        metadata.put(DOCUMENT_TITLE_KEY, filename);
+
+        var chunkCount = new AtomicInteger();
+        var first = new AtomicReference<NavigableDocument>();
+        var batcher = new StreamingSectionBatcher(options.streamingBatchSize(), batch -> {
+            var written = stage("write-sections", () -> writeSections(uri, pendingUri, batch, metadata));
+            if (!written.isEmpty()) {
+                first.compareAndSet(null, written.getFirst().document());
+            }
+            written.forEach(section -> chunkCount.addAndGet(section.chunkCount()));
+        });
+        var handler = new StreamingSectionHandler(options.streamingSectionSize(), batcher);
+
+        var tikaMetadata = new Metadata();
+        tikaMetadata.set(TikaCoreProperties.RESOURCE_NAME_KEY, filename);
+        try (var digestStream = new DigestInputStream(inputStream, digest)) {
+            new AutoDetectParser().parse(digestStream, handler, tikaMetadata, new ParseContext());
+            drain(digestStream);
+            batcher.finish();
+        } catch (SAXException | TikaException e) {
+            discardPending(pendingUri);
+            throw new IllegalStateException("Failed to parse " + filename + ": " + e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            discardPending(pendingUri);
+            throw e;
+        }
+
+        var contentHash = ContentHashes.hex(digest);
+        if (catalog.get(uri).isPresent() || !documentRepository.findSectionRootUris(uri).isEmpty()) {
+            deleteStored(uri, false);
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            documentRepository.moveSections(pendingUri, uri);
+            documentRepository.recordDocumentHash(uri, contentHash);
+        });
+        trackDocument(uri, filename, context, chunkCount.get(), contentHash);
+        logger.info("Streamed {}: {} characters in {} sections, {} chunks",
+                filename, handler.getTotalCharacters(), handler.getSectionCount(), chunkCount.get());
+        return first.get();
+    }
+
+    /**
+     * Delete the sections written for a streamed document that failed part way.
+     */
+    private void discardPending(String pendingUri) {
+        try {
+            deleteStored(pendingUri, false);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to delete partly streamed sections of {}: {}", pendingUri, e.getMessage(), e);
+        }
+    }
+
+    private record WrittenSection(NavigableDocument document, int chunkCount) {
+    }
+
+    private List<WrittenSection> writeSections(String uri, String pendingUri, List<StreamingSectionHandler.Section> sections,
+                                               Map<String, Object> metadata) {
+        var written = transactionTemplate.execute(status -> sections.stream()
+                .map(section -> {
+                    var sectionUri = "%s#section-%05d".formatted(pendingUri, section.index());
+                    var sectionMetadata = new HashMap<>(metadata);
+                    if (section.title() != null) {
+                        sectionMetadata.put(SECTION_TITLE_KEY, section.title());
+                    }
+                    var document = sectionDocument(sectionUri, section, sectionMetadata);
+                    var chunkIds = contentRepository.writeAndChunkDocument(document);
+                    if (chunkIds == null) {
+                        logger.warn("No chunks written for section {} of {}", section.index(), uri);
+                        chunkIds = List.of();
+                    }
+                    documentRepository.recordChunkHashes(pendingUri, chunkIds);
+                    return new WrittenSection(document, chunkIds.size());
+                })
+                .toList());
+        return written != null ? written : List.of();
+    }
+
+    /**
+     * A section of a streamed document as a document of its own. The section's text is already
+     * plain text extracted by Tika, so it is not parsed again.
+     */
+    private static NavigableDocument sectionDocument(String sectionUri, StreamingSectionHandler.Section section,
+                                                     Map<String, Object> metadata) {
+        var rootId = UUID.randomUUID().toString();
+        var title = section.title() != null ? section.title() : (String) metadata.get(DOCUMENT_TITLE_KEY);
+        var leaf = new LeafSection(UUID.randomUUID().toString(), sectionUri, title, section.text(), rootId, metadata);
+        return new MaterializedDocument(rootId, sectionUri, title, Instant.now(), List.of(leaf), metadata);
+    }
+
+    /**
+     * Delete the stored version of a document, including all sections of a streamed document.
+     * Chunks are deleted first, {@code delete-batch-size} at a time in separate transactions
+     * (or as part of the caller's transaction if there is one), so that what remains for
+     * {@code deleteRootAndDescendants} is the small document structure.
+     *
+     * @param releaseGrounding whether to remove the deleted chunks from proposition grounding
+     */
+    private boolean deleteStored(String uri, boolean releaseGrounding) {
+        return stage("delete", () -> deleteStoredChunksAndRoots(uri, releaseGrounding));
+    }
+
+    private boolean deleteStoredChunksAndRoots(String uri, boolean releaseGrounding) {
+        var batchSize = Math.max(1, properties.documents().deleteBatchSize());
+        var deletedChunks = 0;
+        int deleted;
+        do {
+            var batch = transactionTemplate.execute(status -> {
+                var chunkIds = documentRepository.chunkIdBatch(uri, batchSize);
+                if (!chunkIds.isEmpty()) {
+                    nearDuplicateDetector.remove(chunkIds);
+                    if (releaseGrounding) {
+                        propositionRepository.releaseGrounding(chunkIds);
+                    }
+                    documentRepository.deleteChunks(chunkIds);
+                }
+                return chunkIds.size();
+            });
+            deleted = batch != null ? batch : 0;
+            deletedChunks += deleted;
+        } while (deleted == batchSize);
+
+        var sectionUris = documentRepository.findSectionRootUris(uri);
+        for (var sectionUri : sectionUris) {
+            contentRepository.deleteRootAndDescendants(sectionUri);
+        }
+        var deletedRoot = contentRepository.deleteRootAndDescendants(uri) != null;
+        return deletedRoot || !sectionUris.isEmpty() || deletedChunks > 0;
+    }
+
+    /**
+     * Run an ingestion stage, observed as {@code urbot.ingest} tagged with the stage.
+     */
+    private <T> T stage(String stage, Supplier<T> work) {
+        return Observation.createNotStarted("urbot.ingest", observationRegistry)
+                .lowCardinalityKeyValue("stage", stage)
+                .observe(work);
+    }
+
+    private static String hashFile(File file) throws IOException {
+        var digest = ContentHashes.newDigest();
+        try (var inputStream = new DigestInputStream(new FileInputStream(file), digest)) {
+            drain(inputStream);
+        }
+        return ContentHashes.hex(digest);
+    }
+
+    /**
+     * Read any content the parser left unread so the content hash covers the whole input.
+     */
+    private static void drain(InputStream inputStream) {
+        try {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            // The parser consumed and closed the stream
+        }
+    }
+
+    private void trackDocument(String uri, String title, Context context, int chunkCount, String contentHash) {
+        catalog.put(new DocumentInfoProvider.DocumentInfo(
+                uri,
+                title,
                 context.effectiveContext(),
                 chunkCount,
                 Instant.now()
-        ));
+        ), contentHash);
     }
 
     /**
      * Get list of all ingested documents.
      */
     public List<DocumentInfoProvider.DocumentInfo> getDocuments() {
-        return List.copyOf(documents);
+        return catalog.all();
     }
 
     /**
-     * Get documents filtered by the user's effective context.
+     * Get documents in the user's effective context, sorted by title.
      */
     public List<DocumentInfoProvider.DocumentInfo> getDocuments(String effectiveContext) {
-        return documents.stream()
-                .filter(doc -> doc.context().equals(effectiveContext))
-                .toList();
+        return catalog.page(effectiveContext, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a page of the documents in a context, sorted by title.
+     * Cost grows with the offset; {@link #getDocumentsAfter} does not.
+     */
+    public List<DocumentInfoProvider.DocumentInfo> getDocuments(String effectiveContext, int offset, int limit) {
+        return catalog.page(effectiveContext, offset, limit);
+    }
+
+    /**
+     * Get the page of documents in a context that follows the last document of the previous page,
+     * sorted by title; the first page if {@code after} is null. Cost is proportional to the page
+     * plus the logarithm of the number of documents, however deep the page.
+     */
+    public List<DocumentInfoProvider.DocumentInfo> getDocumentsAfter(String effectiveContext,
+                                                                     DocumentInfoProvider.@Nullable DocumentInfo after,
+                                                                     int limit) {
+        return catalog.pageAfter(effectiveContext, after, limit);
+    }
+
+    /**
+     * Number of catalogued documents in a context, served from memory.
+     */
+    public int getCatalogedDocumentCount(String effectiveContext) {
+        return catalog.count(effectiveContext);
     }
 
     /**
      * Get list of distinct contexts found in documents
      */
     public List<String> contexts() {
-        return documents.stream()
-                .map(DocumentInfoProvider.DocumentInfo::context)
-                .distinct()
-                .toList();
+        return catalog.contexts();
     }
 
     /**
-     * Delete a document by its URI.
+     * Delete a document by its URI. The document disappears from the catalog immediately;
+     * its content is deleted in the background in bounded batches, together with any
+     * propositions grounded only in its chunks. Re-ingesting the same URI waits for the
+     * deletion to finish.
+     *
+     * @return whether the document was in the catalog
      */
     public boolean deleteDocument(String uri) {
         logger.info("Deleting document: {}", uri);
-        var result = contentRepository.deleteRootAndDescendants(uri);
-        if (result != null) {
-            documents.stream()
-                    .filter(doc -> doc.uri().equals(uri))
-                    .findFirst()
-                    .ifPresent(documents::remove);
-            return true;
+        awaitCatalog();
+        var catalogued = catalog.tombstone(uri);
+        var deletion = pendingDeletions.compute(uri, (key, pending) ->
+                (pending != null ? pending : CompletableFuture.<Void>completedFuture(null))
+                        .handleAsync((ignored, e) -> {
+                            purge(uri);
+                            return null;
+                        }, deleter));
+        deletion.whenComplete((ignored, e) -> pendingDeletions.remove(uri, deletion));
+        return catalogued;
+    }
+
+    private void purge(String uri) {
+        var start = System.currentTimeMillis();
+        try {
+            deleteStored(uri, true);
+            catalog.purge(uri);
+            logger.info("Deleted document {} in {}ms", uri, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.warn("Failed to delete document {}, restoring it to the catalog: {}", uri, e.getMessage());
+            catalog.restore(uri);
+        }
+    }
+
+    /**
+     * Wait for a pending background deletion of the URI, so new content is not deleted with the old.
+     */
+    private void awaitDeletion(String uri) {
+        var pending = pendingDeletions.get(uri);
+        if (pending != null) {
+            pending.join();
         }
-        return false;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        deleter.shutdown();
+    }
+
+    /**
+     * Version of the documents in one context, which changes whenever a document is ingested,
+     * replaced or deleted in that context.
+     */
+    public long getCatalogVersion(String effectiveContext) {
+        return catalog.version(effectiveContext);
     }
 
     /**
-     * Get total document count.
+     * Get total document count, served from the in-memory catalog.
      */
     public int getDocumentCount() {
-        return contentRepository.info().getDocumentCount();
+        return catalog.size();
     }
 
     /**
-     * Get document count for a specific context.
+     * Get document count for a specific context, served from the in-memory catalog.
      */
     public int getDocumentCount(String effectiveContext) {
-        return contentRepository.count(ContentRoot.class,
-                new PropertyFilter.Eq(Context.CONTEXT_KEY, effectiveContext));
+        return catalog.count(effectiveContext);
     }
 
     /**
-     * Get total chunk count.
+     * Get total chunk count, maintained on ingest and delete.
      */
     public int getChunkCount() {
-        return contentRepository.info().getChunkCount();
+        return (int) catalog.chunkCount();
     }
 
     /**
-     * Get chunk count for a specific context.
+     * Get chunk count for a specific context, maintained on ingest and delete.
      */
     public int getChunkCount(String effectiveContext) {
-        return contentRepository.count(Chunk.class,
-                new PropertyFilter.Eq(Context.CONTEXT_KEY, effectiveContext));
+        return (int) catalog.chunkCount(effectiveContext);
+    }
+
+    /**
+     * Correct the in-memory chunk counts against the database. Counts are maintained
+     * incrementally, but can drift when documents loaded at startup are deleted
+     * or when the graph is changed outside this service.
+     */
+    @Scheduled(initialDelayString = "${urbot.documents.count-reconcile-interval:5m}",
+            fixedDelayString = "${urbot.documents.count-reconcile-interval:5m}")
+    public void reconcileCounts() {
+        try {
+            var stored = documentRepository.chunkCountsByContext();
+            for (var context : catalog.contexts()) {
+                var drift = catalog.reconcileChunks(context, stored.getOrDefault(context, 0L));
+                if (drift != 0) {
+                    logger.info("Reconciled chunk count for context {}: corrected by {}", context, drift);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to reconcile document counts: {}", e.getMessage());
+        }
     }
 
 }
@@ -0,0 +1,577 @@
+package com.embabel.urbot.rag;
+
+import jakarta.annotation.PostConstruct;
+import org.drivine.manager.PersistenceManager;
+import org.drivine.mapper.RowMapper;
+import org.drivine.query.QuerySpecification;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cypher queries over stored documents and chunks that go beyond what the
+ * {@link com.embabel.agent.rag.store.ChunkingContentElementRepository} offers,
+ * such as content hash bookkeeping for incremental re-ingestion.
+ */
+@Service
+public class DrivineDocumentRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(DrivineDocumentRepository.class);
+
+    // Versioned: signatures stored under an earlier key used ASCII-only word splitting
+    // and fingerprinted texts shorter than a shingle, so they are recomputed from chunk text
+    private static final String MIN_HASH_KEY = "minHashV2";
+    private static final String DUPLICATE_OF_KEY = "duplicateOf";
+
+    private final PersistenceManager persistenceManager;
+
+    public DrivineDocumentRepository(PersistenceManager persistenceManager) {
+        this.persistenceManager = persistenceManager;
+    }
+
+    /**
+     * A stored document as needed for the catalog, without its content.
+     *
+     * @param rootUri     URI of the content root, used as the paging key
+     * @param uri         document URI; differs from the root URI for sections of a streamed document
+     * @param title       document title
+     * @param context     context the document belongs to
+     * @param contentHash hash of the raw content, or empty if not recorded
+     * @param ingestedAt  when the document was ingested, if known
+     * @param chunkCount  number of chunks stored for the document
+     */
+    public record CatalogRow(String rootUri, String uri, String title, String context,
+                             String contentHash, @Nullable Instant ingestedAt, int chunkCount) {
+    }
+
+    /**
+     * MinHash signature of a stored chunk, or its text if no signature has been recorded.
+     */
+    public record ChunkSignatureRow(String chunkId, int @Nullable [] signature, @Nullable String text) {
+    }
+
+    @PostConstruct
+    public void provision() {
+        createIndex("content_root_uri_index", "ContentRoot", "uri");
+        createIndex("content_root_document_uri_index", "ContentRoot", DocumentService.DOCUMENT_URI_KEY);
+        createIndex("chunk_document_uri_index", "Chunk", DocumentService.DOCUMENT_URI_KEY);
+        createIndex("chunk_id_index", "Chunk", "id");
+    }
+
+    private void createIndex(String name, String label, String property) {
+        var statement = "CREATE INDEX `%s` IF NOT EXISTS FOR (n:%s) ON (n.%s)".formatted(name, label, property);
+        try {
+            persistenceManager.execute(QuerySpecification.withStatement(statement));
+        } catch (Exception e) {
+            logger.warn("Could not create index {} on {}.{}: {}", name, label, property, e.getMessage());
+        }
+    }
+
+    /**
+     * A page of catalog rows, one per content root in a context, ordered by root URI.
+     * Only the catalog fields are read, and the chunk count is aggregated in the query,
+     * so the cost of a page does not depend on document size.
+     *
+     * @param afterRootUri return roots after this URI; empty string for the first page
+     * @param limit        maximum number of rows
+     */
+    @Transactional(readOnly = true)
+    public List<CatalogRow> catalogPage(@NonNull String afterRootUri, int limit) {
+        return persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (r:ContentRoot)
+                                WHERE r.uri > $after AND r.%1$s IS NOT NULL
+                                WITH r ORDER BY r.uri LIMIT $limit
+                                WITH r, coalesce(r.%2$s, r.uri) AS uri
+                                OPTIONAL MATCH (c:Chunk {%2$s: uri})
+                                WITH r, uri, count(c) AS chunks
+                                RETURN {
+                                    rootUri: r.uri,
+                                    uri: uri,
+                                    title: coalesce(r.%3$s, r.title, uri),
+                                    context: r.%1$s,
+                                    hash: coalesce(r.%4$s, ''),
+                                    ingestedAt: r.ingestionTimestamp,
+                                    chunks: chunks
+                                } AS document
+                                ORDER BY r.uri
+                                """.formatted(DocumentService.Context.CONTEXT_KEY, DocumentService.DOCUMENT_URI_KEY,
+                                DocumentService.DOCUMENT_TITLE_KEY, DocumentService.CONTENT_HASH_KEY))
+                        .bind(Map.of("after", afterRootUri, "limit", limit))
+                        .mapWith(new CatalogRowMapper())
+        );
+    }
+
+    /**
+     * Record the content hash of each chunk, and the document it belongs to.
+     *
+     * @return chunk content hashes keyed by chunk id
+     */
+    @Transactional
+    public Map<String, String> recordChunkHashes(@NonNull String documentUri, @NonNull List<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return Map.of();
+        }
+        var texts = persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk) WHERE c.id IN $ids
+                                RETURN {id: c.id, text: c.text} AS chunk
+                                """)
+                        .bind(Map.of("ids", chunkIds))
+                        .mapWith(new ChunkTextMapper())
+        );
+        var hashes = new HashMap<String, String>();
+        var rows = texts.stream()
+                .map(chunk -> {
+                    var hash = ContentHashes.of(chunk.getValue());
+                    hashes.put(chunk.getKey(), hash);
+                    return Map.of("id", chunk.getKey(), "hash", hash);
+                })
+                .toList();
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                UNWIND $rows AS row
+                                MATCH (c:Chunk {id: row.id})
+                                SET c.%s = row.hash, c.%s = $documentUri
+                                """.formatted(DocumentService.CONTENT_HASH_KEY, DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("rows", rows, "documentUri", documentUri))
+        );
+        logger.debug("Recorded {} chunk hashes for {}", rows.size(), documentUri);
+        return hashes;
+    }
+
+    /**
+     * Embeddings of the stored chunks of a document, keyed by chunk content hash.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, float[]> chunkEmbeddingsByHash(@NonNull String documentUri) {
+        var rows = persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk {%s: $documentUri})
+                                WHERE c.%s IS NOT NULL AND c.embedding IS NOT NULL
+                                RETURN {hash: c.%s, embedding: c.embedding} AS chunk
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY,
+                                DocumentService.CONTENT_HASH_KEY, DocumentService.CONTENT_HASH_KEY))
+                        .bind(Map.of("documentUri", documentUri))
+                        .mapWith(new ChunkEmbeddingMapper())
+        );
+        var embeddings = new HashMap<String, float[]>();
+        rows.forEach(entry -> embeddings.putIfAbsent(entry.getKey(), entry.getValue()));
+        return embeddings;
+    }
+
+    /**
+     * Content hashes of the stored chunks of a document, keyed by chunk id.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, String> chunkHashesById(@NonNull String documentUri) {
+        var rows = persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk {%s: $documentUri})
+                                WHERE c.%s IS NOT NULL
+                                RETURN {id: c.id, text: c.%2$s} AS chunk
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY, DocumentService.CONTENT_HASH_KEY))
+                        .bind(Map.of("documentUri", documentUri))
+                        .mapWith(new ChunkTextMapper())
+        );
+        var hashes = new HashMap<String, String>();
+        rows.forEach(entry -> hashes.put(entry.getKey(), entry.getValue()));
+        return hashes;
+    }
+
+    /**
+     * Give newly written chunks the ids of the chunks they replace, so that proposition grounding
+     * and near-duplicate links to the previous chunks stay valid. The previous chunks must already
+     * have been deleted.
+     *
+     * @param previousIdsByChunkId id to take over, keyed by id of the newly written chunk
+     */
+    @Transactional
+    public void takeOverChunkIds(@NonNull Map<String, String> previousIdsByChunkId) {
+        if (previousIdsByChunkId.isEmpty()) {
+            return;
+        }
+        var rows = previousIdsByChunkId.entrySet().stream()
+                .map(entry -> Map.of("id", entry.getKey(), "previous", entry.getValue()))
+                .toList();
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                UNWIND $rows AS row
+                                MATCH (c:Chunk {id: row.id})
+                                SET c.id = row.previous
+                                WITH c
+                                MATCH (d:Chunk {%s: c.id})
+                                MERGE (d)-[:DUPLICATE_OF]->(c)
+                                """.formatted(DUPLICATE_OF_KEY))
+                        .bind(Map.of("rows", rows))
+        );
+    }
+
+    /**
+     * Record the content hash of a streamed document on all of its section roots,
+     * once the whole document has been read.
+     */
+    @Transactional
+    public void recordDocumentHash(@NonNull String documentUri, @NonNull String contentHash) {
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (r:ContentRoot {%s: $documentUri})
+                                SET r.%s = $contentHash
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY, DocumentService.CONTENT_HASH_KEY))
+                        .bind(Map.of("documentUri", documentUri, "contentHash", contentHash))
+        );
+    }
+
+    /**
+     * URIs of the section roots a streamed document was written as.
+     * Empty for documents ingested as a single tree.
+     */
+    @Transactional(readOnly = true)
+    public List<String> findSectionRootUris(@NonNull String documentUri) {
+        return persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (r:ContentRoot {%s: $documentUri})
+                                WHERE r.uri <> $documentUri
+                                RETURN r.uri AS uri
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("documentUri", documentUri))
+                        .transform(String.class)
+        );
+    }
+
+    /**
+     * Move the sections and chunks of a streamed document written under a pending URI to the
+     * document URI, renaming section roots to match.
+     */
+    @Transactional
+    public void moveSections(@NonNull String pendingUri, @NonNull String documentUri) {
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (r:ContentRoot {%1$s: $pendingUri})
+                                SET r.%1$s = $documentUri,
+                                    r.uri = $documentUri + substring(r.uri, size($pendingUri))
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("pendingUri", pendingUri, "documentUri", documentUri))
+        );
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk {%1$s: $pendingUri})
+                                SET c.%1$s = $documentUri
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("pendingUri", pendingUri, "documentUri", documentUri))
+        );
+    }
+
+    /**
+     * Ids of up to {@code limit} chunks after the given id that have no document URI, such as
+     * chunks written before the document URI was recorded on chunks.
+     */
+    @Transactional(readOnly = true)
+    public List<String> chunksWithoutDocumentUri(@NonNull String afterChunkId, int limit) {
+        return persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk)
+                                WHERE c.id > $after AND c.%s IS NULL
+                                RETURN c.id AS id
+                                ORDER BY id
+                                LIMIT $limit
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("after", afterChunkId, "limit", limit))
+                        .transform(String.class)
+        );
+    }
+
+    /**
+     * Record the document URI on chunks that lack it, taken from the nearest content root reached
+     * through sections. Paths through other chunks, propositions or near-duplicate links are not
+     * followed, so a chunk is never attributed to another document. Chunks with no such root are
+     * left as they are.
+     *
+     * @return number of chunks updated
+     */
+    @Transactional
+    public int backfillDocumentUri(@NonNull List<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return 0;
+        }
+        var updated = persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk) WHERE c.id IN $ids AND c.%1$s IS NULL
+                                MATCH path = (r:ContentRoot)-[*1..10]-(c)
+                                WHERE all(n IN nodes(path)[1..-1] WHERE n:Section AND NOT n:ContentRoot)
+                                  AND none(rel IN relationships(path) WHERE type(rel) = 'DUPLICATE_OF')
+                                WITH c, r ORDER BY length(path)
+                                WITH c, head(collect(coalesce(r.%1$s, r.uri))) AS documentUri
+                                SET c.%1$s = documentUri
+                                RETURN count(c) AS updated
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("ids", chunkIds))
+                        .transform(Long.class)
+        );
+        return updated.isEmpty() ? 0 : updated.getFirst().intValue();
+    }
+
+    /**
+     * Ids of up to {@code limit} stored chunks of a document, for deletion in batches.
+     */
+    @Transactional(readOnly = true)
+    public List<String> chunkIdBatch(@NonNull String documentUri, int limit) {
+        return persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk {%s: $documentUri})
+                                RETURN c.id AS id
+                                LIMIT $limit
+                                """.formatted(DocumentService.DOCUMENT_URI_KEY))
+                        .bind(Map.of("documentUri", documentUri, "limit", limit))
+                        .transform(String.class)
+        );
+    }
+
+    /**
+     * Delete chunks by id, with their relationships.
+     */
+    @Transactional
+    public void deleteChunks(@NonNull List<String> chunkIds) {
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk) WHERE c.id IN $ids
+                                DETACH DELETE c
+                                """)
+                        .bind(Map.of("ids", chunkIds))
+        );
+    }
+
+    /**
+     * A page of chunk signatures in a context, ordered by chunk id. Chunks linked as
+     * near-duplicates of another chunk are excluded.
+     */
+    @Transactional(readOnly = true)
+    public List<ChunkSignatureRow> chunkSignaturePage(@NonNull String context, @NonNull String afterChunkId,
+                                                      int limit) {
+        return persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk {%s: $context})
+                                WHERE c.id > $after AND c.%s IS NULL
+                                WITH c ORDER BY c.id LIMIT $limit
+                                RETURN {
+                                    id: c.id,
+                                    signature: c.%s,
+                                    text: CASE WHEN c.%3$s IS NULL THEN c.text END
+                                } AS chunk
+                                ORDER BY c.id
+                                """.formatted(DocumentService.Context.CONTEXT_KEY, DUPLICATE_OF_KEY, MIN_HASH_KEY))
+                        .bind(Map.of("context", context, "after", afterChunkId, "limit", limit))
+                        .mapWith(new ChunkSignatureMapper())
+        );
+    }
+
+    /**
+     * Record the MinHash signature of each chunk, so near-duplicate indexes can be
+     * loaded without reading chunk text.
+     */
+    @Transactional
+    public void recordSignatures(@NonNull Map<String, int[]> signaturesByChunkId) {
+        if (signaturesByChunkId.isEmpty()) {
+            return;
+        }
+        var rows = signaturesByChunkId.entrySet().stream()
+                .map(entry -> Map.of("id", entry.getKey(),
+                        "signature", Arrays.stream(entry.getValue()).boxed().toList()))
+                .toList();
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                UNWIND $rows AS row
+                                MATCH (c:Chunk {id: row.id})
+                                SET c.%s = row.signature
+                                REMOVE c.minHash
+                                """.formatted(MIN_HASH_KEY))
+                        .bind(Map.of("rows", rows))
+        );
+    }
+
+    /**
+     * Embeddings of chunks by id, for reuse by near-duplicates. Missing chunks are left out.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, float[]> embeddingsByChunkId(@NonNull Collection<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return Map.of();
+        }
+        var rows = persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk) WHERE c.id IN $ids AND c.embedding IS NOT NULL
+                                RETURN {hash: c.id, embedding: c.embedding} AS chunk
+                                """)
+                        .bind(Map.of("ids", List.copyOf(chunkIds)))
+                        .mapWith(new ChunkEmbeddingMapper())
+        );
+        var embeddings = new HashMap<String, float[]>();
+        rows.forEach(entry -> embeddings.put(entry.getKey(), entry.getValue()));
+        return embeddings;
+    }
+
+    /**
+     * Link near-duplicate chunks to the chunks they duplicate, and remove their embeddings
+     * so that vector search returns only the original.
+     *
+     * @param originalsByChunkId id of the duplicated chunk, keyed by near-duplicate chunk id
+     */
+    @Transactional
+    public void linkDuplicates(@NonNull Map<String, String> originalsByChunkId) {
+        if (originalsByChunkId.isEmpty()) {
+            return;
+        }
+        var rows = originalsByChunkId.entrySet().stream()
+                .map(entry -> Map.of("id", entry.getKey(), "original", entry.getValue()))
+                .toList();
+        persistenceManager.execute(
+                QuerySpecification
+                        .withStatement("""
+                                UNWIND $rows AS row
+                                MATCH (c:Chunk {id: row.id})
+                                MATCH (o:Chunk {id: row.original})
+                                SET c.%s = row.original
+                                REMOVE c.embedding
+                                MERGE (c)-[:DUPLICATE_OF]->(o)
+                                """.formatted(DUPLICATE_OF_KEY))
+                        .bind(Map.of("rows", rows))
+        );
+    }
+
+    /**
+     * Number of stored chunks per context, counted in a single pass.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, Long> chunkCountsByContext() {
+        var rows = persistenceManager.query(
+                QuerySpecification
+                        .withStatement("""
+                                MATCH (c:Chunk)
+                                WHERE c.%s IS NOT NULL
+                                WITH c.%s AS context, count(c) AS chunks
+                                RETURN {context: context, chunks: chunks} AS counts
+                                """.formatted(DocumentService.Context.CONTEXT_KEY, DocumentService.Context.CONTEXT_KEY))
+                        .mapWith(new ContextCountMapper())
+        );
+        var counts = new HashMap<String, Long>();
+        rows.forEach(entry -> counts.put(entry.getKey(), entry.getValue()));
+        return counts;
+    }
+
+    static class CatalogRowMapper implements RowMapper<CatalogRow> {
+
+        @Override
+        public @NonNull CatalogRow map(@NonNull Map<String, ?> row) {
+            return new CatalogRow(
+                    (String) row.get("rootUri"),
+                    (String) row.get("uri"),
+                    (String) row.get("title"),
+                    (String) row.get("context"),
+                    (String) row.get("hash"),
+                    toInstant(row.get("ingestedAt")),
+                    ((Number) row.get("chunks")).intValue()
+            );
+        }
+
+        /**
+         * Ingestion time as stored. A date-time without an offset, as the driver returns for a
+         * Neo4j {@code LocalDateTime}, is taken to be UTC.
+         */
+        static @Nullable Instant toInstant(@Nullable Object value) {
+            return switch (value) {
+                case null -> null;
+                case Instant instant -> instant;
+                case LocalDateTime local -> local.toInstant(ZoneOffset.UTC);
+                case TemporalAccessor temporal -> Instant.from(temporal);
+                case Number epochMillis -> Instant.ofEpochMilli(epochMillis.longValue());
+                case String text -> parseInstant(text);
+                default -> null;
+            };
+        }
+
+        private static @Nullable Instant parseInstant(String text) {
+            try {
+                return Instant.parse(text);
+            } catch (DateTimeParseException e) {
+                try {
+                    return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+                } catch (DateTimeParseException notLocal) {
+                    logger.warn("Unreadable ingestion time '{}'", text);
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static class ChunkSignatureMapper implements RowMapper<ChunkSignatureRow> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public @NonNull ChunkSignatureRow map(@NonNull Map<String, ?> row) {
+            var signature = (List<? extends Number>) row.get("signature");
+            return new ChunkSignatureRow(
+                    (String) row.get("id"),
+                    signature != null ? signature.stream().mapToInt(Number::intValue).toArray() : null,
+                    (String) row.get("text")
+            );
+        }
+    }
+
+    private static class ChunkTextMapper implements RowMapper<Map.Entry<String, String>> {
+
+        @Override
+        public Map.@NonNull Entry<String, String> map(@NonNull Map<String, ?> row) {
+            var text = (String) row.get("text");
+            return Map.entry((String) row.get("id"), text != null ? text : "");
+        }
+    }
+
+    private static class ChunkEmbeddingMapper implements RowMapper<Map.Entry<String, float[]>> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.@NonNull Entry<String, float[]> map(@NonNull Map<String, ?> row) {
+            var embedding = (List<? extends Number>) row.get("embedding");
+            return Map.entry((String) row.get("hash"), ReusingEmbeddingService.toFloatArray(embedding));
+        }
+    }
+
+    private static class ContextCountMapper implements RowMapper<Map.Entry<String, Long>> {
+
+        @Override
+        public Map.@NonNull Entry<String, Long> map(@NonNull Map<String, ?> row) {
+            return Map.entry((String) row.get("context"), ((Number) row.get("chunks")).longValue());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.embabel.urbot.rag;
+
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * On-disk cache of documents fetched over HTTP, keyed by URL.
+ * Cached responses are revalidated with {@code If-None-Match} and {@code If-Modified-Since},
+ * so an unchanged document costs a 304 response rather than a download, parse and embedding.
+ * <p>
+ * Each URL is stored as a body file and a properties file holding its validators,
+ * named by the SHA-256 hash of the URL. Bodies are written to a temporary file and moved
+ * into place, so a failed download never replaces a good cached copy.
+ */
+class HttpDocumentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpDocumentCache.class);
+
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "lastModified";
+
+    /**
+     * Outcome of a fetch.
+     *
+     * @param body        the cached body, current as of this fetch
+     * @param notModified whether the server confirmed the cached body is unchanged
+     */
+    record Fetch(Path body, boolean notModified) {
+
+        InputStream open() throws IOException {
+            return Files.newInputStream(body);
+        }
+    }
+
+    private final Path directory;
+    private final HttpClient client;
+    private final Duration timeout;
+    private final ConcurrentHashMap<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    HttpDocumentCache(Path directory, Duration timeout) {
+        this(directory, HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(timeout)
+                .build(), timeout);
+    }
+
+    HttpDocumentCache(Path directory, HttpClient client, Duration timeout) {
+        this.directory = directory;
+        this.client = client;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether the URL is fetched through this cache.
+     */
+    static boolean supports(String url) {
+        var lower = url.toLowerCase(Locale.ROOT);
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    /**
+     * Fetch a URL, revalidating any cached copy.
+     *
+     * @throws UncheckedIOException if the server responds with an error or cannot be reached
+     */
+    Fetch fetch(String url) {
+        var key = ContentHashes.of(url);
+        var lock = locks.computeIfAbsent(key, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            return fetch(url, key);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to fetch " + url, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted fetching " + url, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Fetch fetch(String url, String key) throws IOException, InterruptedException {
+        Files.createDirectories(directory);
+        var body = directory.resolve(key + ".body");
+        var metaFile = directory.resolve(key + ".properties");
+        var meta = Files.exists(body) ? readMeta(metaFile) : null;
+
+        var request = HttpRequest.newBuilder(URI.create(url)).timeout(timeout).GET();
+        if (meta != null) {
+            var etag = meta.getProperty(ETAG);
+            var lastModified = meta.getProperty(LAST_MODIFIED);
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+        }
+
+        var temp = Files.createTempFile(directory, key, ".download");
+        try {
+            var response = client.send(request.build(), HttpResponse.BodyHandlers.ofFile(temp));
+            var status = response.statusCode();
+            if (status == 304 && meta != null) {
+                logger.info("Not modified, using cached copy of {}", url);
+                return new Fetch(body, true);
+            }
+            if (status < 200 || status >= 300) {
+                throw new IOException("HTTP " + status + " fetching " + url);
+            }
+            Files.move(temp, body, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            var updated = new Properties();
+            updated.setProperty("url", url);
+            response.headers().firstValue("ETag").ifPresent(value -> updated.setProperty(ETAG, value));
+            response.headers().firstValue("Last-Modified").ifPresent(value -> updated.setProperty(LAST_MODIFIED, value));
+            writeMeta(metaFile, updated);
+            logger.info("Fetched {} ({} bytes)", url, Files.size(body));
+            return new Fetch(body, false);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static @Nullable Properties readMeta(Path metaFile) {
+        if (!Files.exists(metaFile)) {
+            return null;
+        }
+        var meta = new Properties();
+        try (var reader = Files.newBufferedReader(metaFile)) {
+            meta.load(reader);
+            return meta;
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable cache metadata {}: {}", metaFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeMeta(Path metaFile, Properties meta) throws IOException {
+        var temp = Files.createTempFile(metaFile.getParent(), metaFile.getFileName().toString(), ".tmp");
+        try (var writer = Files.newBufferedWriter(temp)) {
+            meta.store(writer, null);
+        }
+        Files.move(temp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
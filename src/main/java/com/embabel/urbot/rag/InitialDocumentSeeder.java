@@ -0,0 +1,141 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.urbot.UrbotProperties;
+import com.embabel.urbot.user.UrbotUser;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ingests {@code urbot.initial-documents} into the global context once the application is ready.
+ * Documents are ingested in parallel on a dedicated pool so that startup is never blocked on
+ * parsing or embedding. A directory is ingested in bulk, with its files parsed in parallel and
+ * written in grouped transactions. Also reports seeding progress as a health indicator.
+ */
+@Component
+class InitialDocumentSeeder implements HealthIndicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(InitialDocumentSeeder.class);
+
+    private final DocumentService documentService;
+    private final UrbotProperties properties;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile CompletableFuture<Void> seeding;
+    private volatile ExecutorService executor;
+
+    InitialDocumentSeeder(DocumentService documentService, UrbotProperties properties) {
+        this.documentService = documentService;
+        this.properties = properties;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void seed() {
+        var initialDocs = properties.initialDocuments();
+        if (initialDocs == null || initialDocs.isEmpty()) {
+            seeding = CompletableFuture.completedFuture(null);
+            return;
+        }
+
+        var context = DocumentService.Context.global(new UrbotUser("system", "System", "system"));
+
+        var threads = Math.max(1, Math.min(properties.documents().seedingThreads(), initialDocs.size()));
+        var threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "initial-docs-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        total.set(initialDocs.size());
+        logger.info("Seeding {} initial documents with {} workers", initialDocs.size(), threads);
+
+        var start = System.nanoTime();
+        List<CompletableFuture<Void>> tasks = initialDocs.stream()
+                .map(uri -> CompletableFuture.runAsync(() -> seedOne(uri, context), executor))
+                .toList();
+        seeding = CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new))
+                .whenComplete((ignored, e) -> {
+                    executor.shutdown();
+                    logger.info("Initial document seeding finished in {} ms: {} processed, {} failed",
+                            Duration.ofNanos(System.nanoTime() - start).toMillis(),
+                            succeeded.get(), failed.get());
+                });
+    }
+
+    /**
+     * Already loaded documents are checked so that changed content is picked up;
+     * {@link DocumentService} skips files and documents whose content hash is unchanged.
+     */
+    private void seedOne(String uri, DocumentService.Context context) {
+        var start = System.nanoTime();
+        try {
+            var file = new File(uri);
+            if (file.isDirectory()) {
+                var result = documentService.ingestDirectory(file.toPath(), context, progress -> {
+                });
+                if (!result.failures().isEmpty()) {
+                    logger.warn("{} of {} files below {} could not be ingested",
+                            result.failures().size(), result.total(), uri);
+                }
+            } else if (file.exists()) {
+                documentService.ingestFile(file, context);
+            } else {
+                documentService.ingestUrl(uri, context);
+            }
+            succeeded.incrementAndGet();
+            logger.info("Processed initial document {} in {} ms",
+                    uri, Duration.ofNanos(System.nanoTime() - start).toMillis());
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.warn("Failed to ingest initial document {} after {} ms: {}",
+                    uri, Duration.ofNanos(System.nanoTime() - start).toMillis(), e.getMessage());
+        }
+    }
+
+    /**
+     * Whether all initial documents have been processed, successfully or not.
+     */
+    boolean isComplete() {
+        var current = seeding;
+        return current != null && current.isDone();
+    }
+
+    /**
+     * Reports seeding progress. Stays UP while seeding is in progress, as the chatbot
+     * is usable before all shared documents are available.
+     */
+    @Override
+    public Health health() {
+        var done = succeeded.get() + failed.get();
+        return Health.up()
+                .withDetail("complete", isComplete())
+                .withDetail("total", total.get())
+                .withDetail("processed", succeeded.get())
+                .withDetail("failed", failed.get())
+                .withDetail("pending", total.get() - done)
+                .build();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        var current = executor;
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.embabel.urbot.rag;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.regex.Pattern;
+
+/**
+ * MinHash signatures over word shingles, with locality-sensitive hashing bands.
+ * Texts whose signatures agree on all rows of at least one band are candidate near-duplicates;
+ * the fraction of agreeing signature positions estimates their Jaccard similarity.
+ * <p>
+ * With {@value #BANDS} bands of {@value #ROWS} rows, pairs above roughly 0.5 similarity
+ * are likely to share a band, so candidates are then filtered by the configured threshold.
+ * <p>
+ * Words are split on Unicode word boundaries. A text with fewer words than a shingle has no
+ * signature: two such texts would be judged identical on a word or two, so they are never
+ * fingerprinted or matched.
+ */
+final class MinHash {
+
+    static final int BANDS = 16;
+    static final int ROWS = 4;
+    static final int SIZE = BANDS * ROWS;
+
+    static final int SHINGLE_WORDS = 3;
+
+    private static final Pattern NON_WORD = Pattern.compile("(?U)\\W+");
+
+    private static final long[] SEEDS = new SplittableRandom(0x5eed_ca5e_1dea_f00dL)
+            .longs(SIZE)
+            .toArray();
+
+    private MinHash() {
+    }
+
+    /**
+     * Signature of a text, or null if it has fewer than {@value #SHINGLE_WORDS} words.
+     */
+    static int @Nullable [] signature(String text) {
+        var shingles = shingles(text);
+        if (shingles.isEmpty()) {
+            return null;
+        }
+        var signature = new int[SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (var shingle : shingles) {
+            for (int i = 0; i < SIZE; i++) {
+                var hash = (int) (mix(shingle ^ SEEDS[i]) >>> 33);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * One key per band, combining the band's rows and its position.
+     */
+    static long[] bandKeys(int[] signature) {
+        var keys = new long[BANDS];
+        for (int band = 0; band < BANDS; band++) {
+            long key = band;
+            for (int row = 0; row < ROWS; row++) {
+                key = mix(key * 31 + signature[band * ROWS + row]);
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / SIZE;
+    }
+
+    private static Set<Long> shingles(String text) {
+        var words = NON_WORD.splitAsStream(text.toLowerCase(Locale.ROOT))
+                .filter(word -> !word.isEmpty())
+                .toArray(String[]::new);
+        var shingles = new HashSet<Long>();
+        for (int i = 0; i + SHINGLE_WORDS <= words.length; i++) {
+            long hash = 0;
+            for (int j = 0; j < SHINGLE_WORDS; j++) {
+                hash = hash * 1_000_003 + words[i + j].hashCode();
+            }
+            shingles.add(mix(hash));
+        }
+        return shingles;
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
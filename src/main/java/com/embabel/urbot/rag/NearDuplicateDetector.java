@@ -0,0 +1,209 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.urbot.DocumentOptions;
+import com.embabel.urbot.UrbotProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds chunks that nearly duplicate chunks already stored in the same context,
+ * using MinHash signatures and an in-memory LSH index per context.
+ * <p>
+ * A context's index is loaded from the signatures stored on its chunks the first time
+ * a document is ingested into it. Signatures of chunks stored before detection was enabled
+ * are computed from their text while loading. Loading runs outside any map lock: concurrent
+ * users of the same context wait for the one load, and other contexts are not held up.
+ * Chunks too short to have a signature are never indexed.
+ */
+@Component
+class NearDuplicateDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(NearDuplicateDetector.class);
+
+    private static final int LOAD_PAGE_SIZE = 2_000;
+
+    /**
+     * A stored chunk that a new chunk nearly duplicates.
+     */
+    record Match(String chunkId, double similarity) {
+    }
+
+    /**
+     * Totals since startup.
+     *
+     * @param checked               chunks checked for near-duplicates
+     * @param duplicates            chunks found to be near-duplicates
+     * @param charactersNotEmbedded characters of chunk text whose embedding was reused instead of computed
+     */
+    record Report(long checked, long duplicates, long charactersNotEmbedded) {
+    }
+
+    private static final class ContextIndex {
+        final Map<Long, Set<String>> buckets = new ConcurrentHashMap<>();
+        final Map<String, int[]> signatures = new ConcurrentHashMap<>();
+
+        void add(String chunkId, int[] signature) {
+            signatures.put(chunkId, signature);
+            for (var key : MinHash.bandKeys(signature)) {
+                buckets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(chunkId);
+            }
+        }
+
+        void remove(String chunkId) {
+            var signature = signatures.remove(chunkId);
+            if (signature == null) {
+                return;
+            }
+            for (var key : MinHash.bandKeys(signature)) {
+                buckets.computeIfPresent(key, (k, ids) -> {
+                    ids.remove(chunkId);
+                    return ids.isEmpty() ? null : ids;
+                });
+            }
+        }
+    }
+
+    private final DrivineDocumentRepository documentRepository;
+    private final DocumentOptions options;
+    private final Map<String, CompletableFuture<ContextIndex>> contexts = new ConcurrentHashMap<>();
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong charactersNotEmbedded = new AtomicLong();
+    private final Counter duplicateCounter;
+    private final Counter savedCharactersCounter;
+
+    NearDuplicateDetector(DrivineDocumentRepository documentRepository,
+                          UrbotProperties properties,
+                          MeterRegistry meterRegistry) {
+        this.documentRepository = documentRepository;
+        this.options = properties.documents();
+        this.duplicateCounter = Counter.builder("urbot.ingest.near.duplicates")
+                .description("Chunks found to nearly duplicate a stored chunk")
+                .register(meterRegistry);
+        this.savedCharactersCounter = Counter.builder("urbot.ingest.near.duplicates.characters")
+                .description("Characters of near-duplicate chunk text not sent for embedding")
+                .register(meterRegistry);
+    }
+
+    boolean isEnabled() {
+        return options.nearDuplicateAction() != DocumentOptions.NearDuplicateAction.OFF;
+    }
+
+    DocumentOptions.NearDuplicateAction action() {
+        return options.nearDuplicateAction();
+    }
+
+    /**
+     * The most similar stored chunk in the context at or above the similarity threshold.
+     */
+    Optional<Match> find(String context, int[] signature) {
+        checked.incrementAndGet();
+        var index = index(context);
+        Match best = null;
+        for (var key : MinHash.bandKeys(signature)) {
+            var candidates = index.buckets.get(key);
+            if (candidates == null) {
+                continue;
+            }
+            for (var chunkId : candidates) {
+                var candidate = index.signatures.get(chunkId);
+                if (candidate == null) {
+                    continue;
+                }
+                var similarity = MinHash.similarity(signature, candidate);
+                if (similarity >= options.nearDuplicateThreshold()
+                        && (best == null || similarity > best.similarity())) {
+                    best = new Match(chunkId, similarity);
+                }
+            }
+        }
+        return Optional.ofNullable(best);
+    }
+
+    /**
+     * Record that a near-duplicate was stored with a reused embedding.
+     */
+    void recordDuplicate(int characters) {
+        duplicates.incrementAndGet();
+        charactersNotEmbedded.addAndGet(characters);
+        duplicateCounter.increment();
+        savedCharactersCounter.increment(characters);
+    }
+
+    void add(String context, String chunkId, int[] signature) {
+        index(context).add(chunkId, signature);
+    }
+
+    void remove(Collection<String> chunkIds) {
+        for (var loading : contexts.values()) {
+            // An index still loading may read chunks deleted meanwhile
+            loading.thenAccept(index -> chunkIds.forEach(index::remove));
+        }
+    }
+
+    Report report() {
+        return new Report(checked.get(), duplicates.get(), charactersNotEmbedded.get());
+    }
+
+    private ContextIndex index(String context) {
+        var loading = contexts.get(context);
+        if (loading == null) {
+            var created = new CompletableFuture<ContextIndex>();
+            loading = contexts.putIfAbsent(context, created);
+            if (loading == null) {
+                loading = created;
+                try {
+                    created.complete(load(context));
+                } catch (RuntimeException e) {
+                    contexts.remove(context, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        try {
+            return loading.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    private ContextIndex load(String context) {
+        var start = System.currentTimeMillis();
+        var index = new ContextIndex();
+        var after = "";
+        while (true) {
+            var page = documentRepository.chunkSignaturePage(context, after, LOAD_PAGE_SIZE);
+            for (var row : page) {
+                if (row.signature() != null) {
+                    index.add(row.chunkId(), row.signature());
+                } else if (row.text() != null) {
+                    var signature = MinHash.signature(row.text());
+                    if (signature != null) {
+                        index.add(row.chunkId(), signature);
+                    }
+                }
+            }
+            if (page.size() < LOAD_PAGE_SIZE) {
+                break;
+            }
+            after = page.getLast().chunkId();
+        }
+        logger.info("Loaded near-duplicate index for context {}: {} chunks in {}ms",
+                context, index.signatures.size(), System.currentTimeMillis() - start);
+        return index;
+    }
+}
@@ -0,0 +1,111 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.common.ai.model.EmbeddingService;
+import com.embabel.urbot.SingleFlight;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.jspecify.annotations.NonNull;
+import org.springframework.ai.embedding.EmbeddingModel;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedding service that remembers recent single-text embeddings, such as search queries.
+ * Texts are keyed, and embedded, with whitespace normalized.
+ * Lets the retrieval phase before a chat response embed the recent conversation once, in parallel
+ * with other work, and have memory and document searches made during the response reuse it.
+ * <p>
+ * Batch embedding, used when writing chunks, is passed straight through.
+ * <p>
+ * Calls to the embedding model, but not cache hits, are observed as {@code urbot.embedding}.
+ * Identical texts embedded at the same time, such as the same question from several users,
+ * share one call to the model.
+ * <p>
+ * Every caller is given its own copy of an embedding, so one caller changing it cannot
+ * affect the cached embedding or what other callers see.
+ */
+class QueryEmbeddingCache implements EmbeddingService, AutoCloseable {
+
+    private record Entry(float[] embedding, long expiresAt) {
+    }
+
+    private final EmbeddingService delegate;
+    private final long ttlMillis;
+    private final ObservationRegistry observationRegistry;
+    private final SingleFlight<String, float[]> inFlight;
+    private final Map<String, Entry> entries;
+
+    QueryEmbeddingCache(EmbeddingService delegate, int maxEntries, Duration ttl,
+                        ObservationRegistry observationRegistry, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.ttlMillis = ttl.toMillis();
+        this.observationRegistry = observationRegistry;
+        this.inFlight = new SingleFlight<>("embedding", meterRegistry);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public float @NonNull [] embed(@NonNull String text) {
+        // The cache and in-flight calls share one key, and the model embeds the key itself,
+        // so texts differing only in whitespace always get the same embedding
+        var key = SingleFlight.normalize(text);
+        var now = System.currentTimeMillis();
+        synchronized (entries) {
+            var entry = entries.get(key);
+            if (entry != null && entry.expiresAt() > now) {
+                return entry.embedding().clone();
+            }
+        }
+        var embedding = inFlight.execute(key,
+                () -> observation("single").observe(() -> delegate.embed(key)));
+        // The flight's result is shared by every caller that joined it, so is never handed out itself
+        synchronized (entries) {
+            entries.put(key, new Entry(embedding, now + ttlMillis));
+        }
+        return embedding.clone();
+    }
+
+    @Override
+    public @NonNull List<float[]> embed(@NonNull List<String> texts) {
+        return observation("batch").observe(() -> delegate.embed(texts));
+    }
+
+    @Override
+    public void close() {
+        inFlight.close();
+    }
+
+    private Observation observation(String mode) {
+        return Observation.createNotStarted("urbot.embedding", observationRegistry)
+                .lowCardinalityKeyValue("mode", mode);
+    }
+
+    @Override
+    public int getDimensions() {
+        return delegate.getDimensions();
+    }
+
+    @Override
+    public @NonNull String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public @NonNull String getProvider() {
+        return delegate.getProvider();
+    }
+
+    @Override
+    public @NonNull EmbeddingModel getModel() {
+        return delegate.getModel();
+    }
+}
@@ -12,6 +12,8 @@ import com.embabel.common.ai.model.DefaultModelSelectionCriteria;
 import com.embabel.common.ai.model.EmbeddingService;
 import com.embabel.common.ai.model.ModelProvider;
 import com.embabel.urbot.UrbotProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
 import org.drivine.manager.GraphObjectManager;
 import org.drivine.manager.GraphObjectManagerFactory;
 import org.drivine.manager.PersistenceManager;
@@ -21,10 +23,14 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.PlatformTransactionManager;
 
+import java.time.Duration;
+
 @Configuration
 @EnableConfigurationProperties(UrbotProperties.class)
+@EnableScheduling
 class RagConfiguration {
 
     @Bean
@@ -37,10 +43,32 @@ class RagConfiguration {
         return factory.get("neo");
     }
 
+    /**
+     * Embedding service for queries, remembering recent embeddings so text embedded ahead of
+     * a chat response is not embedded again by the searches made during it, and sharing
+     * one call between identical texts embedded at the same time.
+     */
     @Bean
     @Primary
-    EmbeddingService embeddingService(ModelProvider modelProvider) {
-        return modelProvider.getEmbeddingService(DefaultModelSelectionCriteria.INSTANCE);
+    EmbeddingService embeddingService(ModelProvider modelProvider, ObservationRegistry observationRegistry,
+                                      MeterRegistry meterRegistry) {
+        return new QueryEmbeddingCache(
+                modelProvider.getEmbeddingService(DefaultModelSelectionCriteria.INSTANCE),
+                1_000,
+                Duration.ofMinutes(5),
+                observationRegistry,
+                meterRegistry);
+    }
+
+    /**
+     * Embedding service used by the store when writing chunks,
+     * allowing embeddings of unchanged and near-duplicate chunks to be reused.
+     */
+    @Bean
+    ReusingEmbeddingService chunkEmbeddingService(EmbeddingService embeddingService,
+                                                  NearDuplicateDetector nearDuplicateDetector,
+                                                  DrivineDocumentRepository documentRepository) {
+        return new ReusingEmbeddingService(embeddingService, nearDuplicateDetector, documentRepository);
     }
 
     @Bean
@@ -53,7 +81,7 @@ class RagConfiguration {
     DrivineStore drivineStore(
             PersistenceManager persistenceManager,
             PlatformTransactionManager platformTransactionManager,
-            EmbeddingService embeddingService,
+            ReusingEmbeddingService chunkEmbeddingService,
             ChunkTransformer chunkTransformer,
             UrbotProperties properties) {
         var store = new DrivineStore(
@@ -61,7 +89,7 @@ class RagConfiguration {
                 properties.neoRag(),
                 properties.ingestion(),
                 chunkTransformer,
-                embeddingService,
+                chunkEmbeddingService,
                 platformTransactionManager,
                 new DrivineCypherSearch(persistenceManager)
         );
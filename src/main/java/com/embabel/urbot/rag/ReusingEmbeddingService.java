@@ -0,0 +1,195 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.common.ai.model.EmbeddingService;
+import org.jspecify.annotations.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.embedding.EmbeddingModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedding service used by the RAG store when writing chunks.
+ * A document write opens a {@link Scope} on the writing thread. Before a changed document is
+ * rewritten, the embeddings of its previous chunks are given to the scope keyed by content hash,
+ * so chunks whose text did not change are stored with their existing embedding and only new or
+ * modified chunks reach the provider. Scopes belong to one thread, so concurrent writes never
+ * see or release each other's embeddings.
+ * <p>
+ * While a scope is open, chunk texts are also checked by the {@link NearDuplicateDetector}:
+ * a near-duplicate of a chunk already stored in the same context is given that chunk's
+ * embedding instead of being embedded again.
+ */
+class ReusingEmbeddingService implements EmbeddingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReusingEmbeddingService.class);
+
+    /**
+     * Embedding reuse and near-duplicate detection state for one document write, bound to the
+     * writing thread. All maps are keyed by the content hash of the chunk text.
+     */
+    static final class Scope {
+
+        private final String context;
+        private final Map<String, float[]> reusable;
+        private final Map<String, int[]> signatures = new HashMap<>();
+        private final Map<String, String> duplicates = new HashMap<>();
+
+        private Scope(String context, Map<String, float[]> reusable) {
+            this.context = context;
+            this.reusable = reusable;
+        }
+
+        /**
+         * MinHash signatures of the chunk texts embedded during the write.
+         */
+        Map<String, int[]> signatures() {
+            return signatures;
+        }
+
+        /**
+         * Id of the stored chunk each near-duplicate chunk text duplicates.
+         */
+        Map<String, String> duplicates() {
+            return duplicates;
+        }
+    }
+
+    private final EmbeddingService delegate;
+    private final NearDuplicateDetector nearDuplicateDetector;
+    private final DrivineDocumentRepository documentRepository;
+    private final ThreadLocal<Scope> scope = new ThreadLocal<>();
+
+    ReusingEmbeddingService(EmbeddingService delegate,
+                            NearDuplicateDetector nearDuplicateDetector,
+                            DrivineDocumentRepository documentRepository) {
+        this.delegate = delegate;
+        this.nearDuplicateDetector = nearDuplicateDetector;
+        this.documentRepository = documentRepository;
+    }
+
+    /**
+     * Start a document write on this thread into the context, reusing the given embeddings,
+     * keyed by the content hash of the embedded text. Must be followed by {@link #closeScope()}.
+     */
+    Scope openScope(String context, Map<String, float[]> reusable) {
+        var opened = new Scope(context, reusable);
+        scope.set(opened);
+        return opened;
+    }
+
+    void closeScope() {
+        scope.remove();
+    }
+
+    @Override
+    public float @NonNull [] embed(@NonNull String text) {
+        if (scope.get() != null) {
+            return embed(List.of(text)).getFirst();
+        }
+        return delegate.embed(text);
+    }
+
+    @Override
+    public @NonNull List<float[]> embed(@NonNull List<String> texts) {
+        var current = scope.get();
+        if (current == null) {
+            return delegate.embed(texts);
+        }
+        var results = new ArrayList<float[]>(texts.size());
+        var missIndexes = new ArrayList<Integer>();
+        var missTexts = new ArrayList<String>();
+        for (var text : texts) {
+            results.add(current.reusable.get(ContentHashes.of(text)));
+        }
+        if (nearDuplicateDetector.isEnabled()) {
+            reuseNearDuplicates(current, texts, results);
+        }
+        for (int i = 0; i < texts.size(); i++) {
+            if (results.get(i) == null) {
+                missIndexes.add(i);
+                missTexts.add(texts.get(i));
+            }
+        }
+        if (!missTexts.isEmpty()) {
+            var embedded = delegate.embed(missTexts);
+            for (int i = 0; i < missIndexes.size(); i++) {
+                results.set(missIndexes.get(i), embedded.get(i));
+            }
+        }
+        if (missTexts.size() < texts.size()) {
+            logger.debug("Reused {} of {} chunk embeddings", texts.size() - missTexts.size(), texts.size());
+        }
+        return results;
+    }
+
+    /**
+     * Record the signature of every text long enough to have one, and fill in the embedding of the most similar stored
+     * chunk for texts that are near-duplicates and have no embedding yet.
+     */
+    private void reuseNearDuplicates(Scope current, List<String> texts, List<float[]> results) {
+        var candidates = new HashMap<Integer, String>();
+        for (int i = 0; i < texts.size(); i++) {
+            var text = texts.get(i);
+            var signature = MinHash.signature(text);
+            if (signature == null) {
+                continue;
+            }
+            current.signatures.put(ContentHashes.of(text), signature);
+            if (results.get(i) == null) {
+                var index = i;
+                nearDuplicateDetector.find(current.context, signature)
+                        .ifPresent(match -> candidates.put(index, match.chunkId()));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        var embeddings = documentRepository.embeddingsByChunkId(candidates.values());
+        candidates.forEach((i, chunkId) -> {
+            var embedding = embeddings.get(chunkId);
+            if (embedding != null) {
+                var text = texts.get(i);
+                results.set(i, embedding);
+                current.duplicates.put(ContentHashes.of(text), chunkId);
+                nearDuplicateDetector.recordDuplicate(text.length());
+            }
+        });
+    }
+
+    @Override
+    public int getDimensions() {
+        return delegate.getDimensions();
+    }
+
+    @Override
+    public @NonNull String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public @NonNull String getProvider() {
+        return delegate.getProvider();
+    }
+
+    @Override
+    public @NonNull EmbeddingModel getModel() {
+        return delegate.getModel();
+    }
+
+    /**
+     * Convert an embedding as returned from Neo4j to the form used by the embedding service.
+     */
+    static float[] toFloatArray(Collection<? extends Number> embedding) {
+        var result = new float[embedding.size()];
+        int i = 0;
+        for (var value : embedding) {
+            result[i++] = value.floatValue();
+        }
+        return result;
+    }
+}
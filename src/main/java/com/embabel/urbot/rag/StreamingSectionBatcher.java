@@ -0,0 +1,46 @@
+package com.embabel.urbot.rag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Groups the sections of a streamed document into batches of a fixed size, each written in
+ * one transaction. A batch is passed on as soon as it is full; {@link #finish()} passes on
+ * the last, partial batch. An empty batch is never passed on.
+ */
+final class StreamingSectionBatcher implements Consumer<StreamingSectionHandler.Section> {
+
+    private final int batchSize;
+    private final Consumer<List<StreamingSectionHandler.Section>> writer;
+    private final List<StreamingSectionHandler.Section> batch;
+
+    StreamingSectionBatcher(int batchSize, Consumer<List<StreamingSectionHandler.Section>> writer) {
+        this.batchSize = Math.max(1, batchSize);
+        this.writer = writer;
+        this.batch = new ArrayList<>(this.batchSize);
+    }
+
+    @Override
+    public void accept(StreamingSectionHandler.Section section) {
+        batch.add(section);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Pass on the sections not yet written, if any.
+     */
+    void finish() {
+        if (!batch.isEmpty()) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        var sections = List.copyOf(batch);
+        batch.clear();
+        writer.accept(sections);
+    }
+}
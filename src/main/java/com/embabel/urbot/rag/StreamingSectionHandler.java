@@ -0,0 +1,131 @@
+package com.embabel.urbot.rag;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * SAX handler that turns the XHTML events Tika emits into a sequence of bounded text sections
+ * as they arrive, instead of building a document tree. Sections are cut at the last block
+ * boundary before the size limit where possible, so at most one section's worth of text
+ * (plus the current SAX character run) is held in memory at any time.
+ */
+class StreamingSectionHandler extends DefaultHandler {
+
+    /**
+     * A contiguous section of document text.
+     *
+     * @param index position of the section in the document, starting at 0
+     * @param title most recent heading before the section started, or null
+     * @param text  section text
+     */
+    record Section(int index, String title, String text) {
+    }
+
+    private static final Set<String> BLOCK_ELEMENTS = Set.of(
+            "p", "div", "li", "tr", "br", "pre", "blockquote", "table", "title",
+            "h1", "h2", "h3", "h4", "h5", "h6");
+
+    private static final Set<String> HEADING_ELEMENTS = Set.of("h1", "h2", "h3", "h4", "h5", "h6");
+
+    private final int sectionSize;
+    private final Consumer<Section> sink;
+    private final StringBuilder buffer;
+    private final StringBuilder heading = new StringBuilder();
+
+    private boolean inHeading;
+    private String currentTitle;
+    private String sectionTitle;
+    private int sectionCount;
+    private long totalCharacters;
+
+    /**
+     * @param sectionSize target maximum number of characters per section
+     * @param sink        receives each section as soon as it is complete
+     */
+    StreamingSectionHandler(int sectionSize, Consumer<Section> sink) {
+        if (sectionSize <= 0) {
+            throw new IllegalArgumentException("sectionSize must be positive: " + sectionSize);
+        }
+        this.sectionSize = sectionSize;
+        this.sink = sink;
+        this.buffer = new StringBuilder(Math.min(sectionSize, 1 << 16));
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (HEADING_ELEMENTS.contains(localName)) {
+            inHeading = true;
+            heading.setLength(0);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (HEADING_ELEMENTS.contains(localName)) {
+            inHeading = false;
+            var title = heading.toString().strip();
+            if (!title.isEmpty()) {
+                currentTitle = title;
+            }
+        }
+        if (BLOCK_ELEMENTS.contains(localName) && !buffer.isEmpty() && buffer.charAt(buffer.length() - 1) != '\n') {
+            buffer.append('\n');
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (buffer.isEmpty()) {
+            sectionTitle = currentTitle;
+        }
+        if (inHeading && heading.length() < 1_000) {
+            heading.append(ch, start, length);
+        }
+        buffer.append(ch, start, length);
+        totalCharacters += length;
+        while (buffer.length() >= sectionSize) {
+            emit(cutPoint());
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void endDocument() {
+        if (!buffer.toString().isBlank()) {
+            emit(buffer.length());
+        }
+        buffer.setLength(0);
+    }
+
+    /**
+     * Last line break in the second half of the section, or a hard cut at the size limit.
+     */
+    private int cutPoint() {
+        var newline = buffer.lastIndexOf("\n", sectionSize - 1);
+        return newline >= sectionSize / 2 ? newline + 1 : sectionSize;
+    }
+
+    private void emit(int end) {
+        var text = buffer.substring(0, end);
+        buffer.delete(0, end);
+        if (!text.isBlank()) {
+            sink.accept(new Section(sectionCount++, sectionTitle, text));
+        }
+        sectionTitle = currentTitle;
+    }
+
+    int getSectionCount() {
+        return sectionCount;
+    }
+
+    long getTotalCharacters() {
+        return totalCharacters;
+    }
+}
@@ -0,0 +1,261 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.urbot.DocumentOptions;
+import com.embabel.urbot.UrbotProperties;
+import com.embabel.urbot.user.UrbotUser;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Keeps {@code urbot.documents.watched-folders} in sync with the document store.
+ * <p>
+ * File events are debounced: a file is only queued once no event has arrived for it for
+ * {@code watch-debounce}, so a file being copied is ingested once. Queued files are ingested
+ * by a single worker, so a bulk copy into a watched folder reaches the embedding provider one
+ * document at a time. Documents whose files are deleted are removed. On startup, each folder is
+ * scanned to catch up with changes made while the application was not running. Files whose
+ * content hash matches the stored version are skipped before parsing, so a restart reads each
+ * watched file once but only parses and embeds those that changed.
+ */
+@Component
+class WatchedFolderIngester {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchedFolderIngester.class);
+
+    private final DocumentService documentService;
+    private final DocumentOptions options;
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Map<Path, DocumentService.Context> folderContexts = new ConcurrentHashMap<>();
+    private final Map<Path, Long> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<Path> queue;
+
+    private volatile WatchService watchService;
+    private volatile ScheduledExecutorService debouncer;
+    private volatile Thread worker;
+
+    WatchedFolderIngester(DocumentService documentService, UrbotProperties properties) {
+        this.documentService = documentService;
+        this.options = properties.documents();
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, options.watchQueueCapacity()));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void start() throws IOException {
+        var folders = options.watchedFolders();
+        if (folders == null || folders.isEmpty()) {
+            return;
+        }
+        var system = new UrbotUser("system", "System", "system");
+        watchService = FileSystems.getDefault().newWatchService();
+        for (var folder : folders) {
+            var root = Path.of(folder.path()).toAbsolutePath().normalize();
+            if (!Files.isDirectory(root)) {
+                logger.warn("Watched folder {} is not a directory, ignoring", root);
+                continue;
+            }
+            folderContexts.put(root, new DocumentService.Context(system, folder.context()));
+            registerTree(root);
+            documentService.catalogLoaded().thenRun(() -> removeMissing(root));
+            logger.info("Watching {} for documents in context {}", root, folder.context());
+        }
+
+        debouncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "watched-folder-debounce");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var tick = Math.max(100, options.watchDebounce().toMillis() / 2);
+        debouncer.scheduleWithFixedDelay(this::queueSettled, tick, tick, TimeUnit.MILLISECONDS);
+        Thread.ofPlatform().daemon().name("watched-folder-events").start(this::watchLoop);
+        worker = Thread.ofPlatform().daemon().name("watched-folder-ingest").start(this::ingestLoop);
+    }
+
+    /**
+     * Register a directory and its subdirectories, and mark their files as changed.
+     */
+    private void registerTree(Path directory) {
+        try (var paths = Files.walk(directory)) {
+            paths.forEach(path -> {
+                if (Files.isDirectory(path)) {
+                    try {
+                        watchedDirectories.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE),
+                                path);
+                    } catch (IOException e) {
+                        logger.warn("Cannot watch {}: {}", path, e.getMessage());
+                    }
+                } else if (isCandidate(path)) {
+                    changed(path);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to scan " + directory, e);
+        }
+    }
+
+    /**
+     * Mark documents ingested from below a path whose files no longer exist, so they are removed.
+     * Needed at startup, and when a directory is deleted, as not every platform reports
+     * the deletion of each file within it.
+     */
+    private void removeMissing(Path under) {
+        var prefix = under.toUri().toString();
+        for (var document : documentService.getDocuments()) {
+            if (document.uri().startsWith(prefix)) {
+                var path = Path.of(URI.create(document.uri()));
+                if (!Files.exists(path)) {
+                    changed(path);
+                }
+            }
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                var directory = watchedDirectories.get(key);
+                if (directory != null) {
+                    for (var event : key.pollEvents()) {
+                        handle(directory, event);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    private void handle(Path directory, WatchEvent<?> event) {
+        if (event.kind() == OVERFLOW) {
+            logger.warn("Missed file events in {}, rescanning", directory);
+            registerTree(directory);
+            return;
+        }
+        var path = directory.resolve((Path) event.context());
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+            registerTree(path);
+        } else if (event.kind() == ENTRY_DELETE && watchedDirectories.containsValue(path)) {
+            removeMissing(path);
+        } else if (isCandidate(path)) {
+            changed(path);
+        }
+    }
+
+    private void changed(Path path) {
+        pending.put(path, System.currentTimeMillis() + options.watchDebounce().toMillis());
+    }
+
+    /**
+     * Move files with no events during the debounce period to the ingestion queue.
+     * When the queue is full, files stay pending and are retried on the next tick.
+     */
+    private void queueSettled() {
+        var now = System.currentTimeMillis();
+        for (var entry : pending.entrySet()) {
+            if (entry.getValue() <= now && !queue.contains(entry.getKey())) {
+                if (!queue.offer(entry.getKey())) {
+                    return;
+                }
+                pending.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void ingestLoop() {
+        try {
+            while (true) {
+                var path = queue.take();
+                try {
+                    sync(path);
+                } catch (Exception e) {
+                    logger.warn("Failed to sync watched file {}: {}", path, e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        }
+    }
+
+    private void sync(Path path) {
+        var context = contextFor(path);
+        if (context == null) {
+            return;
+        }
+        if (Files.isRegularFile(path)) {
+            if (documentService.isUnchanged(path.toFile(), context)) {
+                logger.debug("Watched file {} unchanged", path);
+                return;
+            }
+            documentService.ingestFile(path.toFile(), context);
+        } else if (!Files.exists(path)) {
+            documentService.deleteDocument(path.toUri().toString());
+        }
+    }
+
+    private DocumentService.Context contextFor(Path path) {
+        return folderContexts.entrySet().stream()
+                .filter(entry -> path.startsWith(entry.getKey()))
+                .max((a, b) -> Integer.compare(a.getKey().getNameCount(), b.getKey().getNameCount()))
+                .map(Map.Entry::getValue)
+                .orElse(null);
+    }
+
+    /**
+     * Skip hidden files and the temporary files editors and downloads leave behind.
+     */
+    private static boolean isCandidate(Path path) {
+        var name = path.getFileName().toString();
+        return !name.startsWith(".") && !name.endsWith("~") && !name.endsWith(".tmp") && !name.endsWith(".part");
+    }
+
+    /**
+     * Number of files waiting for ingestion, in the debounce stage or the queue.
+     */
+    int backlog() {
+        return pending.size() + queue.size();
+    }
+
+    @PreDestroy
+    void stop() throws IOException {
+        if (debouncer != null) {
+            debouncer.shutdownNow();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+}
@@ -10,6 +10,8 @@ import com.embabel.agent.rag.service.NamedEntityDataRepository;
 import com.embabel.chat.*;
 import com.embabel.dice.common.ConversationAnalysisRequestEvent;
 import com.embabel.dice.proposition.extraction.IncrementalPropositionExtraction;
+import com.embabel.urbot.ChatTurnExecutor;
+import com.embabel.urbot.PartialMessageOutputChannelEvent;
 import com.embabel.urbot.UrbotProperties;
 import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository;
 import com.embabel.urbot.rag.DocumentService;
@@ -34,15 +36,27 @@ import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.router.PageTitle;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.server.VaadinRequest;
+import com.vaadin.flow.server.VaadinResponse;
 import com.vaadin.flow.server.VaadinSession;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.security.PermitAll;
+import jakarta.servlet.http.Cookie;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -56,25 +70,80 @@ public class ChatView extends VerticalLayout {
 
     private static final Logger logger = LoggerFactory.getLogger(ChatView.class);
 
+    /**
+     * How long to wait without any response activity before reporting a timeout.
+     * Measured from the last streamed text, so a long answer that keeps arriving does not time out.
+     */
+    private static final Duration RESPONSE_IDLE_TIMEOUT = Duration.ofSeconds(60);
+
+    /**
+     * Typed as a message, cancels the user's running and waiting turns, including from another tab.
+     */
+    private static final String STOP_COMMAND = "/stop";
+
+    /**
+     * Output events buffered for a session while its view catches up; beyond this, events are dropped.
+     */
+    private static final int SESSION_EVENT_CAPACITY = 256;
+
+    /**
+     * How long a turn goes on after its view is closed, for a reloaded page to take it over.
+     * If no view of the session attaches within this time, the turn is cancelled.
+     */
+    private static final Duration DETACH_GRACE = Duration.ofSeconds(10);
+
+    /**
+     * Cookie remembering the browser's conversation, so it is reopened after a restart.
+     */
+    private static final String CONVERSATION_COOKIE = "urbot-conversation";
+
     private final Chatbot chatbot;
     private final String persona;
     private final UrbotProperties properties;
     private final DocumentService documentService;
     private final UrbotUser currentUser;
+    private final MeterRegistry meterRegistry;
 
     private final VerticalLayout messagesLayout;
     private final Scroller messagesScroller;
     private TextField inputField;
     private Button sendButton;
+    private Button stopButton;
+    private final ChatTurnExecutor chatTurnExecutor;
     private final Footer footer;
     private final UserSection userSection;
     private final UserDrawer userDrawer;
 
+    /**
+     * The reply the session is waiting for, for the given turn.
+     */
+    private record AwaitedReply(ChatTurnExecutor.Turn turn, CompletableFuture<Message> reply) {
+    }
+
+    /**
+     * The outcome of a turn, published to the session's events so that it is shown by whichever
+     * view shows the session by then. Not sent by an agent process; the turn id stands in for one.
+     */
+    private record TurnEndedEvent(ChatTurnExecutor.Turn turn, @Nullable Message response,
+                                  @Nullable Throwable failure) implements OutputChannelEvent {
+
+        @Override
+        public String getProcessId() {
+            return turn.id();
+        }
+    }
+
+    // Display state of the response being shown, accessed only while holding the UI lock
+    private StreamingMessageBubble liveBubble;
+    private Div toolCallIndicator;
+
     public ChatView(Chatbot chatbot, UrbotProperties properties, DocumentService documentService,
                     UrbotUserService userService, DrivinePropositionRepository propositionRepository,
                     NamedEntityDataRepository entityRepository,
                     DataDictionary dataDictionary,
                     IncrementalPropositionExtraction propositionExtraction,
+                    ChatTurnExecutor chatTurnExecutor,
+                    MeterRegistry meterRegistry,
                     @Value("${neo4j.http.port:8892}") int neo4jHttpPort,
                     @Value("${drivine.connection.bolt.port:7891}") int neo4jBoltPort) {
         this.chatbot = chatbot;
@@ -82,6 +151,8 @@ public class ChatView extends VerticalLayout {
         this.documentService = documentService;
         this.currentUser = userService.getAuthenticatedUser();
         this.persona = properties.chat().persona();
+        this.chatTurnExecutor = chatTurnExecutor;
+        this.meterRegistry = meterRegistry;
 
         setSizeFull();
         setPadding(true);
@@ -184,13 +255,52 @@ public class ChatView extends VerticalLayout {
                 propositionRepository, entityResolver, entityRepository, onAnalyze, onRemember);
         getElement().appendChild(userDrawer.getElement());
         userSection.setOnClickHandler(userDrawer::open);
+
+        // Show the session's output in this view, including output from before a page reload,
+        // and carry on with a turn that is still running
+        addAttachListener(e -> {
+            var sessionData = (SessionData) VaadinSession.getCurrent().getAttribute("sessionData");
+            if (sessionData != null) {
+                if (sessionData.awaited().get() != null) {
+                    startTurn();
+                }
+                sessionData.events().subscribe(e.getUI(), event -> onSessionEvent(sessionData, event));
+            }
+        });
+        // A reloaded page takes over the running turn; if none does within the grace period,
+        // the tab was closed, and the turn is stopped
+        addDetachListener(e -> {
+            var sessionData = (SessionData) VaadinSession.getCurrent().getAttribute("sessionData");
+            if (sessionData != null) {
+                sessionData.events().unsubscribe(e.getUI());
+                CompletableFuture.delayedExecutor(DETACH_GRACE.toMillis(), TimeUnit.MILLISECONDS)
+                        .execute(() -> stopIfAbandoned(sessionData));
+            }
+        });
     }
 
     private void refreshFooter() {
         // no-op: footer is static
     }
 
-    private record SessionData(ChatSession chatSession, BlockingQueue<Message> responseQueue) {
+    /**
+     * Cancel the session's running turn if no view has subscribed to the session since the grace period began.
+     */
+    private static void stopIfAbandoned(SessionData sessionData) {
+        var awaited = sessionData.awaited().get();
+        if (awaited != null && !sessionData.events().hasSubscriber() && awaited.turn().cancel()) {
+            logger.info("Stopped chat turn {}, as its tab was closed", awaited.turn().id());
+        }
+    }
+
+    /**
+     * State of a chat session, shared by the views that show it in turn.
+     *
+     * @param awaited the reply to the session's turn in progress, from when it is submitted until
+     *                its outcome is shown
+     */
+    private record SessionData(ChatSession chatSession, SessionEventBus events,
+                               VaadinOutputChannel outputChannel, AtomicReference<AwaitedReply> awaited) {
     }
 
     private SessionData getOrCreateSession(UI ui) {
@@ -198,18 +308,52 @@ public class ChatView extends VerticalLayout {
         var sessionData = (SessionData) vaadinSession.getAttribute("sessionData");
 
         if (sessionData == null) {
-            var responseQueue = new ArrayBlockingQueue<Message>(10);
-            var outputChannel = new VaadinOutputChannel(responseQueue, ui);
+            var events = new SessionEventBus(SESSION_EVENT_CAPACITY, meterRegistry);
+            var awaited = new AtomicReference<AwaitedReply>();
+            var outputChannel = new VaadinOutputChannel(events, awaited, chatTurnExecutor,
+                    properties.chat().streamingPushInterval());
             var chatSession = chatbot.createSession(
-                    currentUser, outputChannel, null, null);
-            sessionData = new SessionData(chatSession, responseQueue);
+                    currentUser, outputChannel, null, conversationId());
+            sessionData = new SessionData(chatSession, events, outputChannel, awaited);
             vaadinSession.setAttribute("sessionData", sessionData);
+            var created = sessionData;
+            events.subscribe(ui, event -> onSessionEvent(created, event));
             logger.info("Created new chat session");
         }
 
         return sessionData;
     }
 
+    /**
+     * The id of this browser's conversation for the current user. Remembered in a cookie, so the
+     * stored conversation is reopened after a restart, while other browsers and devices, and other
+     * users of this browser, get conversations of their own.
+     */
+    private String conversationId() {
+        var prefix = "chat-" + currentUser.getId() + "-";
+        var request = VaadinRequest.getCurrent();
+        var cookies = request != null ? request.getCookies() : null;
+        var remembered = cookies == null ? null : Arrays.stream(cookies)
+                .filter(cookie -> CONVERSATION_COOKIE.equals(cookie.getName()))
+                .map(Cookie::getValue)
+                .filter(value -> value.startsWith(prefix))
+                .findFirst()
+                .orElse(null);
+        if (remembered != null) {
+            return remembered;
+        }
+        var id = prefix + UUID.randomUUID();
+        var response = VaadinResponse.getCurrent();
+        if (response != null) {
+            var cookie = new Cookie(CONVERSATION_COOKIE, id);
+            cookie.setPath("/");
+            cookie.setHttpOnly(true);
+            cookie.setMaxAge(Math.toIntExact(properties.conversations().retention().toSeconds()));
+            response.addCookie(cookie);
+        }
+        return id;
+    }
+
     private HorizontalLayout createInputSection() {
         var inputSection = new HorizontalLayout();
         inputSection.setWidthFull();
@@ -227,7 +371,12 @@ public class ChatView extends VerticalLayout {
         sendButton.addThemeVariants(ButtonVariant.LUMO_PRIMARY);
         sendButton.addClickListener(e -> sendMessage());
 
-        inputSection.add(inputField, sendButton);
+        stopButton = new Button("Stop", VaadinIcon.STOP.create());
+        stopButton.addThemeVariants(ButtonVariant.LUMO_ERROR);
+        stopButton.addClickListener(e -> stopCurrentTurn());
+        stopButton.setVisible(false);
+
+        inputSection.add(inputField, sendButton, stopButton);
         inputSection.setFlexGrow(1, inputField);
 
         return inputSection;
@@ -238,10 +387,15 @@ public class ChatView extends VerticalLayout {
         if (text == null || text.trim().isEmpty()) {
             return;
         }
+        if (STOP_COMMAND.equalsIgnoreCase(text.trim())) {
+            inputField.clear();
+            var cancelled = chatTurnExecutor.cancelAll(currentUser.getId());
+            logger.info("Stop command cancelled {} turns", cancelled);
+            return;
+        }
 
         inputField.clear();
-        inputField.setEnabled(false);
-        sendButton.setEnabled(false);
+        startTurn();
 
         // Add user message to UI
         messagesLayout.add(ChatMessageBubble.user(text));
@@ -251,37 +405,161 @@ public class ChatView extends VerticalLayout {
         if (ui == null) return;
 
         var sessionData = getOrCreateSession(ui);
+        var outputChannel = sessionData.outputChannel();
+
+        var reply = new CompletableFuture<Message>();
+        try {
+            // The turn lasts until its reply arrives, without a thread waiting for it
+            var submitted = chatTurnExecutor.submitAsync(currentUser.getId(), turn -> {
+                // Also set here, as the reply may be sent before submitAsync returns below
+                sessionData.awaited().set(new AwaitedReply(turn, reply));
+                outputChannel.startResponse(turn);
+                try {
+                    var userMessage = new UserMessage(text, currentUser.getDisplayName());
+                    logger.info("Sending user message: {}", text);
+                    sessionData.chatSession().onUserMessage(userMessage);
+                    expireWhenIdle(reply, outputChannel);
+                } catch (Exception e) {
+                    if (turn.isCancelled()) {
+                        reply.cancel(false);
+                    } else {
+                        reply.completeExceptionally(e);
+                    }
+                }
+                return reply;
+            }, () -> reply.cancel(false));
+            // Awaited before the turn's events can be delivered, as delivery needs the UI lock this thread holds;
+            // set here too for a turn still waiting to start, so that it can be stopped
+            sessionData.awaited().set(new AwaitedReply(submitted, reply));
+            sessionData.events().await(submitted.id());
+            reply.whenComplete((response, failure) ->
+                    sessionData.events().publish(submitted.id(), new TurnEndedEvent(submitted, response, failure)));
+        } catch (RejectedExecutionException e) {
+            messagesLayout.add(ChatMessageBubble.error("Too many requests right now, please try again shortly"));
+            finishTurn();
+        }
+    }
 
-        new Thread(() -> {
-            try {
-                var userMessage = new UserMessage(text, currentUser.getDisplayName());
-                logger.info("Sending user message: {}", text);
-                sessionData.chatSession().onUserMessage(userMessage);
+    /**
+     * Fail the reply once the response has shown no activity for {@link #RESPONSE_IDLE_TIMEOUT},
+     * checking on a timer rather than holding a thread.
+     */
+    private static void expireWhenIdle(CompletableFuture<Message> reply, VaadinOutputChannel outputChannel) {
+        var remaining = RESPONSE_IDLE_TIMEOUT.toNanos() - outputChannel.idleNanos();
+        if (remaining <= 0) {
+            reply.completeExceptionally(new TimeoutException("No response activity for " + RESPONSE_IDLE_TIMEOUT));
+            return;
+        }
+        CompletableFuture.delayedExecutor(remaining, TimeUnit.NANOSECONDS).execute(() -> {
+            if (!reply.isDone()) {
+                expireWhenIdle(reply, outputChannel);
+            }
+        });
+    }
 
-                var response = sessionData.responseQueue().poll(60, TimeUnit.SECONDS);
+    /**
+     * Show the outcome of a turn, and stop awaiting it. Must be called while holding the UI lock.
+     */
+    private void showReply(SessionData sessionData, ChatTurnExecutor.Turn turn, @Nullable Message response,
+                           @Nullable Throwable failure) {
+        var awaited = sessionData.awaited().get();
+        if (awaited != null && awaited.turn() == turn) {
+            sessionData.awaited().compareAndSet(awaited, null);
+        }
+        sessionData.events().finished(turn.id());
+        removeToolCallIndicator();
+        var bubble = liveBubble;
+        liveBubble = null;
+        if (failure == null) {
+            var complete = ChatMessageBubble.assistant(persona, response.getContent());
+            if (bubble != null) {
+                messagesLayout.replace(bubble, complete);
+            } else {
+                messagesLayout.add(complete);
+            }
+            finishTurn();
+            inputField.focus();
+            return;
+        }
+        if (failure instanceof TimeoutException) {
+            messagesLayout.add(ChatMessageBubble.error("Response timed out"));
+        } else if (failure instanceof CancellationException || turn.isCancelled()) {
+            logger.info("Chat turn {} stopped", turn.id());
+            messagesLayout.add(ChatMessageBubble.error("Stopped"));
+        } else {
+            logger.error("Error getting chatbot response", failure);
+            messagesLayout.add(ChatMessageBubble.error("Error: " + failure.getMessage()));
+        }
+        finishTurn();
+    }
 
-                ui.access(() -> {
-                    if (response != null) {
-                        var content = response.getContent();
-                        messagesLayout.add(ChatMessageBubble.assistant(persona, content));
-                    } else {
-                        messagesLayout.add(ChatMessageBubble.error("Response timed out"));
-                    }
-                    scrollToBottom();
-                    inputField.setEnabled(true);
-                    sendButton.setEnabled(true);
-                    inputField.focus();
-                });
-            } catch (Exception e) {
-                logger.error("Error getting chatbot response", e);
-                ui.access(() -> {
-                    messagesLayout.add(ChatMessageBubble.error("Error: " + e.getMessage()));
-                    scrollToBottom();
-                    inputField.setEnabled(true);
-                    sendButton.setEnabled(true);
-                });
+    /**
+     * Show an output event for the session's awaited turn. Called while holding the UI lock.
+     */
+    private void onSessionEvent(SessionData sessionData, SessionEventBus.TurnEvent turnEvent) {
+        var event = turnEvent.event();
+        if (event instanceof TurnEndedEvent ended) {
+            showReply(sessionData, ended.turn(), ended.response(), ended.failure());
+            return;
+        }
+        var awaited = sessionData.awaited().get();
+        if (awaited == null || !awaited.turn().id().equals(turnEvent.turnId())) {
+            return;
+        }
+        if (event instanceof PartialMessageOutputChannelEvent partial) {
+            removeToolCallIndicator();
+            if (liveBubble == null) {
+                liveBubble = new StreamingMessageBubble(persona);
+                messagesLayout.add(liveBubble);
             }
-        }).start();
+            liveBubble.append(partial.delta());
+            scrollToBottom();
+        } else if (event instanceof MessageOutputChannelEvent) {
+            // The reply itself is shown when the turn ends, which the output channel has already set off
+            removeToolCallIndicator();
+        } else if (event instanceof ProgressOutputChannelEvent progressEvent) {
+            // Remove previous indicator if exists
+            removeToolCallIndicator();
+            toolCallIndicator = new Div();
+            toolCallIndicator.addClassName("tool-call-indicator");
+            toolCallIndicator.setText(progressEvent.getMessage());
+            messagesLayout.add(toolCallIndicator);
+            scrollToBottom();
+        }
+    }
+
+    private void removeToolCallIndicator() {
+        if (toolCallIndicator != null) {
+            messagesLayout.remove(toolCallIndicator);
+            toolCallIndicator = null;
+        }
+    }
+
+    /**
+     * Disable input while a turn runs. Must be called while holding the UI lock.
+     */
+    private void startTurn() {
+        inputField.setEnabled(false);
+        sendButton.setEnabled(false);
+        stopButton.setVisible(true);
+    }
+
+    /**
+     * Re-enable input once a turn completes. Must be called while holding the UI lock.
+     */
+    private void finishTurn() {
+        scrollToBottom();
+        inputField.setEnabled(true);
+        sendButton.setEnabled(true);
+        stopButton.setVisible(false);
+    }
+
+    private void stopCurrentTurn() {
+        var sessionData = (SessionData) VaadinSession.getCurrent().getAttribute("sessionData");
+        var awaited = sessionData != null ? sessionData.awaited().get() : null;
+        if (awaited != null) {
+            awaited.turn().cancel();
+        }
     }
 
     private void scrollToBottom() {
@@ -295,7 +573,9 @@ public class ChatView extends VerticalLayout {
             return;
         }
 
-        var conversation = sessionData.chatSession().getConversation();
+        // Only the recent tail; a restored conversation may be long, and older messages stay on disk
+        var conversation = sessionData.chatSession().getConversation()
+                .last(properties.conversations().hotMessages());
         for (var message : conversation.getMessages()) {
             if (message instanceof UserMessage) {
                 messagesLayout.add(ChatMessageBubble.user(message.getContent()));
@@ -310,46 +590,108 @@ public class ChatView extends VerticalLayout {
     }
 
     /**
-     * Output channel that queues messages and displays tool calls in real-time.
+     * Output channel that publishes the session's events to its {@link SessionEventBus},
+     * tagged with the turn they belong to. Streamed response text is buffered and published
+     * at most once per push interval, rather than once per token.
+     * <p>
+     * The awaited reply is completed as soon as its assistant message is sent, whether or not
+     * a view is there to show it, so the turn releases its permits without waiting for the UI.
      */
-    private class VaadinOutputChannel implements OutputChannel {
-        private final BlockingQueue<Message> queue;
-        private final UI ui;
-        private Div currentToolCallIndicator;
-
-        VaadinOutputChannel(BlockingQueue<Message> queue, UI ui) {
-            this.queue = queue;
-            this.ui = ui;
+    private static class VaadinOutputChannel implements OutputChannel {
+        private final SessionEventBus events;
+        private final AtomicReference<AwaitedReply> awaited;
+        private final ChatTurnExecutor chatTurnExecutor;
+        private final long pushIntervalNanos;
+
+        // Streaming state, guarded by this channel
+        private final StringBuilder pendingText = new StringBuilder();
+        private String pendingTurnId;
+        private long lastPushNanos;
+        private volatile long lastActivityNanos = System.nanoTime();
+
+        // Turn started last in this session; events that cannot be traced to a turn are taken to be for it
+        private volatile String latestTurnId;
+
+        VaadinOutputChannel(SessionEventBus events, AtomicReference<AwaitedReply> awaited,
+                            ChatTurnExecutor chatTurnExecutor, Duration pushInterval) {
+            this.events = events;
+            this.awaited = awaited;
+            this.chatTurnExecutor = chatTurnExecutor;
+            this.pushIntervalNanos = pushInterval.toNanos();
+        }
+
+        /**
+         * Called when a turn starts, before its user message is sent.
+         */
+        void startResponse(ChatTurnExecutor.Turn turn) {
+            latestTurnId = turn.id();
+            lastActivityNanos = System.nanoTime();
+        }
+
+        long idleNanos() {
+            return System.nanoTime() - lastActivityNanos;
         }
 
         @Override
         public void send(OutputChannelEvent event) {
-            if (event instanceof MessageOutputChannelEvent msgEvent) {
-                var msg = msgEvent.getMessage();
-                if (msg instanceof AssistantMessage) {
-                    // Remove tool call indicator before showing response
-                    ui.access(() -> {
-                        if (currentToolCallIndicator != null) {
-                            messagesLayout.remove(currentToolCallIndicator);
-                            currentToolCallIndicator = null;
+            lastActivityNanos = System.nanoTime();
+            var turnId = turnOf(event);
+            if (event instanceof PartialMessageOutputChannelEvent partial) {
+                appendPartial(partial, turnId);
+            } else if (event instanceof MessageOutputChannelEvent msgEvent) {
+                if (msgEvent.getMessage() instanceof AssistantMessage) {
+                    synchronized (this) {
+                        if (Objects.equals(turnId, pendingTurnId)) {
+                            pendingText.setLength(0);
                         }
-                    });
-                    queue.offer(msg);
-                }
-            } else if (event instanceof ProgressOutputChannelEvent progressEvent) {
-                ui.access(() -> {
-                    // Remove previous indicator if exists
-                    if (currentToolCallIndicator != null) {
-                        messagesLayout.remove(currentToolCallIndicator);
                     }
-                    // Create new tool call indicator
-                    currentToolCallIndicator = new Div();
-                    currentToolCallIndicator.addClassName("tool-call-indicator");
-                    currentToolCallIndicator.setText(progressEvent.getMessage());
-                    messagesLayout.add(currentToolCallIndicator);
-                    scrollToBottom();
-                });
+                    events.publish(turnId, event);
+                    var reply = awaited.get();
+                    if (reply != null && reply.turn().id().equals(turnId)) {
+                        reply.reply().complete(msgEvent.getMessage());
+                    }
+                }
+            } else if (event instanceof ProgressOutputChannelEvent) {
+                events.publish(turnId, event);
+            }
+        }
+
+        /**
+         * The turn an event belongs to: as tagged by the response, or the turn the sending thread
+         * is working for, or failing both, the latest turn.
+         */
+        private String turnOf(OutputChannelEvent event) {
+            if (event instanceof PartialMessageOutputChannelEvent partial && partial.turnId() != null) {
+                return partial.turnId();
+            }
+            return chatTurnExecutor.turnOfCurrentThread()
+                    .map(ChatTurnExecutor.Turn::id)
+                    .orElse(latestTurnId);
+        }
+
+        /**
+         * Buffer streamed text, publishing it if the push interval has passed.
+         * Text still buffered when the complete message arrives is not needed, as the
+         * complete message replaces the live bubble.
+         */
+        private void appendPartial(PartialMessageOutputChannelEvent partial, String turnId) {
+            String text;
+            synchronized (this) {
+                if (!Objects.equals(turnId, pendingTurnId)) {
+                    pendingText.setLength(0);
+                    pendingTurnId = turnId;
+                    lastPushNanos = 0;
+                }
+                pendingText.append(partial.delta());
+                var now = System.nanoTime();
+                if (now - lastPushNanos < pushIntervalNanos) {
+                    return;
+                }
+                lastPushNanos = now;
+                text = pendingText.toString();
+                pendingText.setLength(0);
             }
+            events.publish(turnId, new PartialMessageOutputChannelEvent(partial.processId(), turnId, text));
         }
     }
 }
@@ -78,7 +78,7 @@ public class GlobalDrawer extends Div {
 
         documentsPanel = new DocumentsPanel(documentService,
                 () -> DocumentService.Context.GLOBAL_CONTEXT,
-                (is, fn) -> documentService.ingestStream(is, "upload://" + fn, fn, globalContext),
+                (is, fn) -> documentService.ingestUpload(is, fn, globalContext),
                 url -> documentService.ingestUrl(url, globalContext),
                 onDocumentsChanged);
 
@@ -0,0 +1,221 @@
+package com.embabel.urbot.vaadin;
+
+import com.embabel.agent.api.channel.OutputChannelEvent;
+import com.embabel.agent.api.channel.ProgressOutputChannelEvent;
+import com.embabel.urbot.PartialMessageOutputChannelEvent;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Delivers a chat session's output events to the view showing the session, each tagged with
+ * the id of the chat turn it belongs to. Only events for the turn the session awaits are delivered;
+ * events for any other turn, such as a late answer to a turn that timed out, are discarded.
+ * The awaited turn belongs to the session rather than a view, so a view that replaces another,
+ * as on a page reload, carries on showing it.
+ * <p>
+ * Publishing never blocks: events are buffered, and delivered in order under the UI lock by a
+ * single {@link UI#access} for everything buffered since the last delivery. Events published while
+ * no view is subscribed, such as during a page reload, are delivered once a view subscribes.
+ * <p>
+ * The buffer is bounded. Consecutive streamed text for the same turn is merged into one event.
+ * When the buffer is full, the oldest progress or streamed-text event is dropped, as the complete
+ * message supersedes them; only if the buffer holds nothing else is its oldest event dropped.
+ * Dropped events are counted as {@code urbot.chat.session-events.dropped}, tagged with the type
+ * of event.
+ */
+final class SessionEventBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionEventBus.class);
+
+    /**
+     * An output event for a chat turn.
+     *
+     * @param turnId id of the turn the event belongs to, or null if not known
+     */
+    record TurnEvent(@Nullable String turnId, OutputChannelEvent event) {
+    }
+
+    private record Subscription(UI ui, Consumer<TurnEvent> subscriber) {
+    }
+
+    private final int capacity;
+    private final MeterRegistry meterRegistry;
+
+    // Guarded by this bus
+    private final Deque<TurnEvent> buffer = new ArrayDeque<>();
+    private @Nullable Subscription subscription;
+    private boolean deliveryScheduled;
+    private @Nullable String awaitedTurnId;
+
+    SessionEventBus(int capacity, MeterRegistry meterRegistry) {
+        this.capacity = Math.max(1, capacity);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Deliver events to the given view from now on, in place of any earlier subscriber,
+     * starting with any events buffered while none was subscribed.
+     */
+    void subscribe(UI ui, Consumer<TurnEvent> subscriber) {
+        synchronized (this) {
+            subscription = new Subscription(ui, subscriber);
+            deliveryScheduled = false;
+        }
+        scheduleDelivery();
+    }
+
+    /**
+     * Stop delivering to the view on the given UI, if it is still the subscriber.
+     */
+    synchronized void unsubscribe(UI ui) {
+        if (subscription != null && subscription.ui() == ui) {
+            subscription = null;
+        }
+    }
+
+    /**
+     * Whether a view is subscribed.
+     */
+    synchronized boolean hasSubscriber() {
+        return subscription != null;
+    }
+
+    /**
+     * Deliver events for the given turn from now on, and discard those for any other.
+     */
+    synchronized void await(String turnId) {
+        awaitedTurnId = turnId;
+    }
+
+    /**
+     * Stop awaiting the given turn, if it is still the one awaited, discarding any later events for it.
+     */
+    synchronized void finished(String turnId) {
+        if (turnId.equals(awaitedTurnId)) {
+            awaitedTurnId = null;
+        }
+    }
+
+    /**
+     * Buffer an event for delivery. Does not block.
+     */
+    void publish(@Nullable String turnId, OutputChannelEvent event) {
+        synchronized (this) {
+            if (!mergeStreamedText(turnId, event)) {
+                if (buffer.size() >= capacity) {
+                    dropOne();
+                }
+                buffer.addLast(new TurnEvent(turnId, event));
+            }
+        }
+        scheduleDelivery();
+    }
+
+    /**
+     * Append streamed text to the last buffered event if that is streamed text for the same turn.
+     */
+    private boolean mergeStreamedText(@Nullable String turnId, OutputChannelEvent event) {
+        if (!(event instanceof PartialMessageOutputChannelEvent partial)
+                || !(buffer.peekLast() instanceof TurnEvent last)
+                || !Objects.equals(last.turnId(), turnId)
+                || !(last.event() instanceof PartialMessageOutputChannelEvent previous)) {
+            return false;
+        }
+        buffer.removeLast();
+        buffer.addLast(new TurnEvent(turnId, new PartialMessageOutputChannelEvent(
+                partial.processId(), partial.turnId(), previous.delta() + partial.delta())));
+        return true;
+    }
+
+    private void dropOne() {
+        var iterator = buffer.iterator();
+        while (iterator.hasNext()) {
+            var candidate = iterator.next();
+            if (candidate.event() instanceof PartialMessageOutputChannelEvent
+                    || candidate.event() instanceof ProgressOutputChannelEvent) {
+                iterator.remove();
+                dropped(candidate);
+                return;
+            }
+        }
+        var oldest = buffer.removeFirst();
+        logger.warn("Session event buffer full of messages; dropped {} for turn {}",
+                oldest.event().getClass().getSimpleName(), oldest.turnId());
+        dropped(oldest);
+    }
+
+    private void dropped(TurnEvent turnEvent) {
+        Counter.builder("urbot.chat.session-events.dropped")
+                .tag("type", turnEvent.event().getClass().getSimpleName())
+                .description("Chat session events dropped because the session's buffer was full")
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private void scheduleDelivery() {
+        UI ui;
+        synchronized (this) {
+            if (deliveryScheduled || subscription == null || buffer.isEmpty()) {
+                return;
+            }
+            deliveryScheduled = true;
+            ui = subscription.ui();
+        }
+        try {
+            ui.access(() -> deliver(ui));
+        } catch (UIDetachedException e) {
+            // The view has gone; events stay buffered for the next subscriber
+            synchronized (this) {
+                deliveryScheduled = false;
+                unsubscribe(ui);
+            }
+        }
+    }
+
+    /**
+     * Deliver everything buffered for the awaited turn. Runs under the UI lock.
+     */
+    private void deliver(UI ui) {
+        List<TurnEvent> events;
+        Consumer<TurnEvent> subscriber;
+        synchronized (this) {
+            if (subscription == null || subscription.ui() != ui) {
+                // Superseded; a new subscriber schedules its own delivery
+                return;
+            }
+            deliveryScheduled = false;
+            subscriber = subscription.subscriber();
+            events = new ArrayList<>(buffer);
+            buffer.clear();
+        }
+        for (var event : events) {
+            // Checked per event, as delivering one may end the awaited turn
+            if (!isAwaited(event)) {
+                logger.info("Discarding {} for turn {}, which is no longer awaited",
+                        event.event().getClass().getSimpleName(), event.turnId());
+                continue;
+            }
+            try {
+                subscriber.accept(event);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to show event for turn {}: {}", event.turnId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private synchronized boolean isAwaited(TurnEvent event) {
+        return event.turnId() != null && event.turnId().equals(awaitedTurnId);
+    }
+}
@@ -0,0 +1,28 @@
+package com.embabel.urbot.vaadin;
+
+import com.vaadin.flow.component.html.Div;
+import com.vaadin.flow.component.html.Span;
+
+/**
+ * Assistant message shown while its response is still being generated.
+ * Text is appended as plain text as it arrives; once the response is complete the bubble
+ * is replaced by a regular assistant {@code ChatMessageBubble}.
+ */
+class StreamingMessageBubble extends Div {
+
+    private final Span text = new Span();
+    private final StringBuilder content = new StringBuilder();
+
+    StreamingMessageBubble(String persona) {
+        addClassName("streaming-message");
+        var sender = new Span(persona);
+        sender.addClassName("streaming-message-sender");
+        text.addClassName("streaming-message-text");
+        add(sender, text);
+    }
+
+    void append(String delta) {
+        content.append(delta);
+        text.setText(content.toString());
+    }
+}
@@ -84,7 +84,7 @@ public class UserDrawer extends Div {
         // Create documents panel, memory section, and entities section early (referenced by context change listeners)
         documentsPanel = new DocumentsPanel(documentService,
                 user::effectiveContext,
-                (is, fn) -> documentService.ingestStream(is, "upload://" + fn, fn, personalContext),
+                (is, fn) -> documentService.ingestUpload(is, fn, personalContext),
                 url -> documentService.ingestUrl(url, personalContext),
                 onDocumentsChanged);
         memorySection = new MemorySection(propositionRepository, entityResolver,
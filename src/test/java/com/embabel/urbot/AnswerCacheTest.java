@@ -0,0 +1,110 @@
+package com.embabel.urbot;
+
+import com.embabel.chat.AssistantMessage;
+import com.embabel.chat.Conversation;
+import com.embabel.chat.Message;
+import com.embabel.chat.UserMessage;
+import com.embabel.common.ai.model.EmbeddingService;
+import com.embabel.dice.proposition.extraction.PropositionExtractionProperties;
+import com.embabel.urbot.rag.DocumentService;
+import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies eligibility, similarity matching, sharing between users and invalidation of cached answers.
+ */
+class AnswerCacheTest {
+
+    private static final Map<String, float[]> EMBEDDINGS = Map.of(
+            "What is the refund policy?", new float[]{1, 0, 0},
+            "What's the refund policy?", new float[]{0.99f, 0.1f, 0},
+            "Who founded the company?", new float[]{0, 1, 0});
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final DocumentService documentService = mock(DocumentService.class);
+    private final PropositionExtractionProperties memory = mock(PropositionExtractionProperties.class);
+    private final UrbotUser user = new UrbotUser("alice", "Alice", "alice");
+    private AnswerCache cache;
+
+    @BeforeEach
+    void setUp() {
+        var embeddingService = mock(EmbeddingService.class);
+        when(embeddingService.embed(anyString())).thenAnswer(invocation -> EMBEDDINGS.get(invocation.<String>getArgument(0)));
+        when(memory.getEnabled()).thenReturn(false);
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "tagline",
+                true, Duration.ofMillis(100), 32, 1, 200, Duration.ofMillis(1500), 0,
+                new AnswerCacheOptions(true, 0.95, 100, Duration.ofHours(1)), null, null);
+        var properties = new UrbotProperties(chat, null, null, memory, List.of(), List.of(), "", "", null, null, null);
+        cache = new AnswerCache(embeddingService, documentService, properties, meterRegistry);
+    }
+
+    private static Conversation conversation(Message... messages) {
+        var window = mock(Conversation.class);
+        when(window.getMessages()).thenReturn(List.of(messages[messages.length - 1]));
+        var conversation = mock(Conversation.class);
+        when(conversation.last(1)).thenReturn(window);
+        return conversation;
+    }
+
+    private AnswerCache.Key ask(String question) {
+        return ask(user, question);
+    }
+
+    private AnswerCache.Key ask(UrbotUser asker, String question) {
+        return cache.keyFor(asker, conversation(new UserMessage(question, asker.getDisplayName())));
+    }
+
+    @Test
+    void servesAnswerForSimilarQuestion() {
+        cache.store(ask("What is the refund policy?"), "30 days.", Duration.ofSeconds(4));
+
+        assertEquals("30 days.", cache.lookup(ask("What's the refund policy?")).orElseThrow());
+        assertTrue(cache.lookup(ask("Who founded the company?")).isEmpty());
+        assertEquals(1.0, meterRegistry.get("urbot.chat.answer-cache.requests").tag("result", "hit").counter().count());
+        assertEquals(4.0, meterRegistry.get("urbot.chat.answer-cache.latency-saved").timer()
+                .totalTime(TimeUnit.SECONDS));
+    }
+
+    @Test
+    void answersAreSharedAcrossUsersAndConversations() {
+        cache.store(ask("What is the refund policy?"), "30 days.", Duration.ofSeconds(1));
+
+        var bob = new UrbotUser("bob", "Bob", "bob");
+        assertEquals("30 days.", cache.lookup(ask(bob, "What's the refund policy?")).orElseThrow());
+        var later = conversation(new UserMessage("Who founded the company?", "Alice"),
+                new AssistantMessage("Ada."), new UserMessage("What is the refund policy?", "Alice"));
+        assertTrue(cache.lookup(cache.keyFor(user, later)).isPresent());
+    }
+
+    @Test
+    void globalDocumentChangeInvalidates() {
+        cache.store(ask("What is the refund policy?"), "30 days.", Duration.ofSeconds(1));
+        when(documentService.getCatalogVersion(DocumentService.Context.GLOBAL_CONTEXT)).thenReturn(1L);
+
+        assertTrue(cache.lookup(ask("What is the refund policy?")).isEmpty());
+    }
+
+    @Test
+    void turnsOfUsersWithTheirOwnDocumentsAreNotCached() {
+        when(memory.getEnabled()).thenReturn(true);
+        assertNotNull(ask("What is the refund policy?"));
+
+        when(documentService.getDocumentCount(user.effectiveContext())).thenReturn(1);
+        assertNull(ask("What is the refund policy?"));
+    }
+}
@@ -0,0 +1,66 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.rag.service.SearchOperations;
+import com.embabel.urbot.rag.DocumentService;
+import com.embabel.urbot.user.UrbotUser;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies that assemblies are reused per context and rebuilt only when that context's documents change.
+ */
+class ChatResourcesTest {
+
+    private final DocumentService documentService = mock(DocumentService.class);
+    private final ChatResources chatResources =
+            new ChatResources(mock(SearchOperations.class), List.of(), List.of(), documentService);
+
+    @Test
+    void assemblyIsReusedWhileContextIsUnchanged() {
+        var alice = new UrbotUser("alice", "Alice", "alice");
+
+        assertSame(chatResources.forUser(alice), chatResources.forUser(alice));
+    }
+
+    @Test
+    void changeInAnotherContextKeepsAssembly() {
+        var alice = new UrbotUser("alice", "Alice", "alice");
+        var first = chatResources.forUser(alice);
+
+        when(documentService.getCatalogVersion("bob_personal")).thenReturn(1L);
+        when(documentService.getCatalogVersion(DocumentService.Context.GLOBAL_CONTEXT)).thenReturn(1L);
+
+        assertSame(first, chatResources.forUser(alice));
+    }
+
+    @Test
+    void changeInOwnContextRebuildsAssembly() {
+        var alice = new UrbotUser("alice", "Alice", "alice");
+        var first = chatResources.forUser(alice);
+
+        when(documentService.getCatalogVersion("alice_personal")).thenReturn(1L);
+
+        var second = chatResources.forUser(alice);
+        assertNotSame(first, second);
+        assertSame(second, chatResources.forUser(alice));
+    }
+
+    @Test
+    void switchingContextSelectsAnotherAssembly() {
+        var alice = new UrbotUser("alice", "Alice", "alice");
+        var personal = chatResources.forUser(alice);
+
+        alice.setCurrentContextName("work");
+        var work = chatResources.forUser(alice);
+        alice.setCurrentContextName("personal");
+
+        assertNotSame(personal, work);
+        assertSame(personal, chatResources.forUser(alice));
+    }
+}
@@ -0,0 +1,288 @@
+package com.embabel.urbot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies per-user limits, queue bounds, cancellation and cleanup of chat turns.
+ */
+class ChatTurnExecutorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private ChatTurnExecutor executor;
+
+    private ChatTurnExecutor executor(int global, int perUser, int queued) {
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "tagline",
+                true, Duration.ofMillis(100), global, perUser, queued, Duration.ofMillis(1500), 0, null, null, null);
+        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "", null, null, null);
+        executor = new ChatTurnExecutor(properties, meterRegistry, ObservationRegistry.NOOP);
+        return executor;
+    }
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void secondTurnForSameUserWaitsForFirst() throws Exception {
+        var executor = executor(10, 1, 10);
+        var release = new CountDownLatch(1);
+        var firstStarted = new CountDownLatch(1);
+        var secondStarted = new CountDownLatch(1);
+
+        executor.submit("alice", turn -> {
+            firstStarted.countDown();
+            await(release);
+        }, () -> {
+        });
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        executor.submit("alice", turn -> secondStarted.countDown(), () -> {
+        });
+
+        assertFalse(secondStarted.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, executor.activeTurns());
+        assertEquals(1, executor.queuedTurns());
+
+        release.countDown();
+        assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void otherUsersAreNotBlocked() throws Exception {
+        var executor = executor(10, 1, 10);
+        var release = new CountDownLatch(1);
+        var bobStarted = new CountDownLatch(1);
+
+        executor.submit("alice", turn -> await(release), () -> {
+        });
+        executor.submit("bob", turn -> bobStarted.countDown(), () -> {
+        });
+
+        assertTrue(bobStarted.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    void cancellingWaitingTurnRunsCallbackInsteadOfWork() throws Exception {
+        var executor = executor(10, 1, 10);
+        var release = new CountDownLatch(1);
+        var ran = new AtomicBoolean();
+        var cancelledBeforeStart = new AtomicInteger();
+
+        executor.submit("alice", turn -> await(release), () -> {
+        });
+        var waiting = executor.submit("alice", turn -> ran.set(true), cancelledBeforeStart::incrementAndGet);
+        waiting.cancel();
+        release.countDown();
+
+        Thread.sleep(200);
+        assertFalse(ran.get());
+        assertEquals(1, cancelledBeforeStart.get());
+        assertEquals(1.0, meterRegistry.get("urbot.chat.turns.cancelled").counter().count());
+    }
+
+    @Test
+    void cancellingRunningTurnInterruptsIt() throws Exception {
+        var executor = executor(10, 1, 10);
+        var started = new CountDownLatch(1);
+        var interrupted = new CountDownLatch(1);
+
+        var turn = executor.submit("alice", t -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }, () -> {
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        turn.cancel();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancellingFinishedTurnDoesNothing() throws Exception {
+        var executor = executor(10, 1, 10);
+        var done = new CountDownLatch(1);
+
+        var turn = executor.submit("alice", t -> done.countDown(), () -> {
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        awaitIdle(executor);
+
+        assertFalse(turn.cancel());
+        assertEquals(0, executor.cancelAll("alice"));
+        assertEquals(0.0, meterRegistry.get("urbot.chat.turns.cancelled").counter().count());
+    }
+
+    @Test
+    void cancellingTwiceCountsOnce() throws Exception {
+        var executor = executor(10, 1, 10);
+        var work = new CompletableFuture<Void>();
+        var started = new CountDownLatch(1);
+
+        var turn = executor.submitAsync("alice", t -> {
+            started.countDown();
+            return work;
+        }, () -> {
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(turn.cancel());
+        assertFalse(turn.cancel());
+        assertTrue(work.isCancelled());
+        assertEquals(1.0, meterRegistry.get("urbot.chat.turns.cancelled").counter().count());
+    }
+
+    @Test
+    void usersWithoutTurnsAreForgotten() throws Exception {
+        var executor = executor(10, 1, 10);
+        var release = new CountDownLatch(1);
+
+        for (var user : List.of("alice", "bob", "carol")) {
+            executor.submit(user, turn -> await(release), () -> {
+            });
+        }
+        executor.submit("alice", turn -> {
+        }, () -> {
+        }).cancel();
+        assertEquals(3, executor.trackedUsers());
+
+        release.countDown();
+        awaitIdle(executor);
+        assertEquals(0, executor.trackedUsers());
+    }
+
+    @Test
+    void rejectsTurnsBeyondQueueBound() throws Exception {
+        var executor = executor(1, 1, 1);
+        var release = new CountDownLatch(1);
+        var started = new CountDownLatch(1);
+
+        executor.submit("alice", turn -> {
+            started.countDown();
+            await(release);
+        }, () -> {
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.submit("bob", turn -> {
+        }, () -> {
+        });
+
+        assertThrows(RejectedExecutionException.class, () -> executor.submit("carol", turn -> {
+        }, () -> {
+        }));
+        release.countDown();
+    }
+
+    @Test
+    void runningTurnIsTheOneStartedLast() throws Exception {
+        var executor = executor(10, 2, 10);
+        var release = new CountDownLatch(1);
+        var firstStarted = new CountDownLatch(1);
+        var secondStarted = new CountDownLatch(1);
+
+        var first = executor.submit("alice", turn -> {
+            firstStarted.countDown();
+            await(release);
+        }, () -> {
+        });
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(first, executor.runningTurn("alice").orElseThrow());
+        var second = executor.submit("alice", turn -> {
+            secondStarted.countDown();
+            await(release);
+        }, () -> {
+        });
+        assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+
+        assertEquals(second, executor.runningTurn("alice").orElseThrow());
+        assertTrue(executor.runningTurn("bob").isEmpty());
+        release.countDown();
+    }
+
+    @Test
+    void cancellingTurnInterruptsWorkDoneForItOnAnotherThread() throws Exception {
+        var executor = executor(10, 1, 10);
+        var release = new CountDownLatch(1);
+        var turn = executor.submit("alice", t -> await(release), () -> {
+        });
+        var working = new CountDownLatch(1);
+        var interrupted = new AtomicBoolean();
+        var outcome = new CompletableFuture<Throwable>();
+
+        Thread.ofVirtual().start(() -> {
+            try {
+                executor.workFor(turn, () -> {
+                    working.countDown();
+                    try {
+                        Thread.sleep(10_000);
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                        throw new IllegalStateException("LLM call interrupted", e);
+                    }
+                    return null;
+                });
+                outcome.complete(null);
+            } catch (Throwable e) {
+                outcome.complete(e);
+            }
+        });
+        assertTrue(working.await(5, TimeUnit.SECONDS));
+        turn.cancel();
+
+        assertTrue(outcome.get(5, TimeUnit.SECONDS) instanceof CancellationException);
+        assertTrue(interrupted.get());
+        release.countDown();
+    }
+
+    @Test
+    void workForCancelledTurnDoesNotRun() throws Exception {
+        var executor = executor(10, 1, 10);
+        var release = new CountDownLatch(1);
+        var turn = executor.submit("alice", t -> await(release), () -> {
+        });
+        turn.cancel();
+        var ran = new AtomicBoolean();
+
+        assertThrows(CancellationException.class, () -> executor.workFor(turn, () -> ran.getAndSet(true)));
+        assertFalse(ran.get());
+        assertFalse(Thread.currentThread().isInterrupted());
+        release.countDown();
+    }
+
+    private static void awaitIdle(ChatTurnExecutor executor) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.trackedUsers() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
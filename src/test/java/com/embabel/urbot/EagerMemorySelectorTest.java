@@ -0,0 +1,137 @@
+package com.embabel.urbot;
+
+import com.embabel.common.core.types.SimilarityResult;
+import com.embabel.common.core.types.TextSimilaritySearchRequest;
+import com.embabel.dice.proposition.Proposition;
+import com.embabel.dice.proposition.PropositionQuery;
+import com.embabel.dice.proposition.PropositionRepository;
+import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository;
+import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository.SimilarProposition;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies the score cutoff, token budget and preference for diverse memories of eager memory selection,
+ * and that only the eager search is answered with the selection.
+ */
+class EagerMemorySelectorTest {
+
+    private static final String EAGER_QUERY = "recent conversation";
+
+    private final DrivinePropositionRepository repository = mock(DrivinePropositionRepository.class);
+    private final PropositionRepository target = mock(PropositionRepository.class);
+
+    // 40 characters, estimated at 10 tokens plus 2 for formatting
+    private static final String TEXT = "x".repeat(40);
+
+    private static SimilarProposition candidate(String text, double score, float... embedding) {
+        var proposition = mock(Proposition.class);
+        when(proposition.getText()).thenReturn(text);
+        return new SimilarProposition(proposition, score, embedding);
+    }
+
+    private static List<Double> scores(List<SimilarProposition> selected) {
+        return selected.stream().map(SimilarProposition::score).toList();
+    }
+
+    @Test
+    void candidatesBelowCutoffAreNotLoaded() {
+        var candidates = List.of(
+                candidate(TEXT, 0.9, 1, 0, 0),
+                candidate(TEXT, 0.7, 0, 1, 0));
+
+        var selected = EagerMemorySelector.select(candidates, new EagerMemoryOptions(0, 0.75, 0));
+
+        assertEquals(List.of(0.9), scores(selected));
+    }
+
+    @Test
+    void selectionStopsAtTokenBudget() {
+        var candidates = List.of(
+                candidate(TEXT, 0.95, 1, 0, 0),
+                candidate(TEXT, 0.9, 0, 1, 0),
+                candidate(TEXT + TEXT, 0.85, 0, 0, 1),
+                candidate("short", 0.8, 1, 1, 0));
+
+        var selected = EagerMemorySelector.select(candidates, new EagerMemoryOptions(30, 0.5, 0));
+
+        // The third does not fit after the first two, but the shorter fourth does
+        assertEquals(List.of(0.95, 0.9, 0.8), scores(selected));
+    }
+
+    @Test
+    void nearRepeatGivesWayToDifferentMemory() {
+        var candidates = List.of(
+                candidate(TEXT, 0.95, 1, 0, 0),
+                candidate(TEXT, 0.94, 1, 0.01f, 0),
+                candidate(TEXT, 0.88, 0, 1, 0));
+
+        var selected = EagerMemorySelector.select(candidates, new EagerMemoryOptions(24, 0.5, 0.3));
+
+        assertEquals(List.of(0.95, 0.88), scores(selected));
+    }
+
+    private PropositionRepository forEagerSearch() {
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "tagline",
+                true, Duration.ofMillis(100), 32, 1, 200, Duration.ofMillis(1500), 0, null, null,
+                new EagerMemoryOptions(0, 0.75, 0));
+        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "", null, null, null);
+        var selector = new EagerMemorySelector(repository, properties, new SimpleMeterRegistry());
+        return selector.forEagerSearch(target, EAGER_QUERY);
+    }
+
+    private static TextSimilaritySearchRequest request(String query) {
+        var request = mock(TextSimilaritySearchRequest.class);
+        when(request.getQuery()).thenReturn(query);
+        return request;
+    }
+
+    @Test
+    void eagerSearchReturnsSelectedMemories() {
+        var request = request(EAGER_QUERY);
+        var filter = mock(PropositionQuery.class);
+        when(repository.findSimilarWithEmbeddings(request, filter)).thenReturn(List.of(
+                candidate(TEXT, 0.9, 1, 0, 0),
+                candidate(TEXT, 0.7, 0, 1, 0)));
+
+        var results = forEagerSearch().findSimilarWithScores(request, filter);
+
+        assertEquals(List.of(0.9), results.stream().map(SimilarityResult::getScore).toList());
+        verify(target, never()).findSimilarWithScores(any(), any());
+    }
+
+    @Test
+    void otherSearchesGoToTheRepository() {
+        var request = request("what is my dog called");
+        var filter = mock(PropositionQuery.class);
+        List<SimilarityResult<Proposition>> found = List.of();
+        when(target.findSimilarWithScores(request, filter)).thenReturn(found);
+
+        assertSame(found, forEagerSearch().findSimilarWithScores(request, filter));
+        verify(repository, never()).findSimilarWithEmbeddings(any(), any());
+    }
+
+    @Test
+    void eagerQueryThroughAnotherMethodFails() throws Exception {
+        var proxy = forEagerSearch();
+        // As if Memory made its eager search through a method that is not answered with the selection;
+        // tests run with assertions enabled, so this fails rather than being logged
+        var other = PropositionRepository.class.getMethod("query", PropositionQuery.class);
+
+        assertThrows(UnsupportedOperationException.class, () -> Proxy.getInvocationHandler(proxy)
+                .invoke(proxy, other, new Object[]{request(EAGER_QUERY)}));
+    }
+}
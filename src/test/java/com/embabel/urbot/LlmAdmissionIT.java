@@ -0,0 +1,69 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.api.common.ExecutingOperationContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Verifies that LLM calls made through the agent platform are admitted by the {@link LlmScheduler},
+ * in the lane set by their caller.
+ */
+@SpringBootTest(
+        classes = TestUrbotApplication.class,
+        webEnvironment = SpringBootTest.WebEnvironment.NONE
+)
+@ActiveProfiles("it")
+@Timeout(value = 2, unit = TimeUnit.MINUTES)
+class LlmAdmissionIT {
+
+    @Autowired
+    private ExecutingOperationContext eop;
+
+    @Autowired
+    private LlmScheduler llmScheduler;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private UrbotProperties properties;
+
+    private long admitted(LlmScheduler.Lane lane) {
+        var timer = meterRegistry.find("urbot.llm.admission.wait").tag("lane", lane.tag()).timer();
+        return timer != null ? timer.count() : 0;
+    }
+
+    private String ask() {
+        return eop.ai()
+                .withLlm(properties.chat().llm())
+                .generateText("Reply with the single word OK.");
+    }
+
+    @Test
+    void platformCallIsAdmittedInTheCallersLane() {
+        var chat = admitted(LlmScheduler.Lane.CHAT);
+        var extraction = admitted(LlmScheduler.Lane.EXTRACTION);
+
+        llmScheduler.inLane(LlmScheduler.Lane.CHAT, "it-user", this::ask);
+
+        assertEquals(chat + 1, admitted(LlmScheduler.Lane.CHAT));
+        assertEquals(extraction, admitted(LlmScheduler.Lane.EXTRACTION));
+    }
+
+    @Test
+    void callWithoutALaneIsAdmittedAsExtraction() {
+        var extraction = admitted(LlmScheduler.Lane.EXTRACTION);
+
+        ask();
+
+        assertEquals(extraction + 1, admitted(LlmScheduler.Lane.EXTRACTION));
+    }
+}
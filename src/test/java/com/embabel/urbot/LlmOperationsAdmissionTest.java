@@ -0,0 +1,40 @@
+package com.embabel.urbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies that only methods calling the model are admitted.
+ */
+class LlmOperationsAdmissionTest {
+
+    @SuppressWarnings("unused")
+    interface Operations {
+
+        Object createObject(String prompt);
+
+        Object createObjectIfPossible(String prompt);
+
+        String generate(String prompt);
+
+        Object doTransform(String prompt);
+
+        String getName();
+    }
+
+    @Test
+    void createAndGenerateCallsAreAdmitted() throws Exception {
+        for (var name : new String[]{"createObject", "createObjectIfPossible", "generate", "doTransform"}) {
+            assertTrue(LlmOperationsAdmission.callsModel(Operations.class.getMethod(name, String.class)), name);
+        }
+    }
+
+    @Test
+    void otherMethodsPassThrough() throws Exception {
+        assertFalse(LlmOperationsAdmission.callsModel(Operations.class.getMethod("getName")));
+        assertFalse(LlmOperationsAdmission.callsModel(Object.class.getMethod("toString")));
+        assertFalse(LlmOperationsAdmission.callsModel(Object.class.getMethod("hashCode")));
+    }
+}
@@ -0,0 +1,96 @@
+package com.embabel.urbot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies priority lanes, fairness between parties and queue bounds of LLM admission.
+ */
+class LlmSchedulerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<String> admitted = new CopyOnWriteArrayList<>();
+
+    // One call admitted at once, then one every half second
+    private LlmScheduler scheduler(int maxQueued) {
+        var options = new LlmAdmissionOptions(true, 120, 1, Map.of(), maxQueued, Duration.ofSeconds(10));
+        var properties = new UrbotProperties(null, null, null, null, List.of(), List.of(), "", "", null, null, options);
+        return new LlmScheduler(properties, meterRegistry);
+    }
+
+    private Thread call(LlmScheduler scheduler, LlmScheduler.Lane lane, String party, String name) {
+        return Thread.ofVirtual().start(() -> scheduler.inLane(lane, party, () -> {
+            scheduler.admit("model");
+            admitted.add(name);
+            return null;
+        }));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void chatIsAdmittedAheadOfEarlierBackgroundCalls() throws Exception {
+        var scheduler = scheduler(10);
+        scheduler.admit("model");
+
+        var extraction = call(scheduler, LlmScheduler.Lane.EXTRACTION, "background", "extraction");
+        await(() -> scheduler.queued(LlmScheduler.Lane.EXTRACTION) == 1);
+        var consolidation = call(scheduler, LlmScheduler.Lane.CONSOLIDATION, "background", "consolidation");
+        await(() -> scheduler.queued(LlmScheduler.Lane.CONSOLIDATION) == 1);
+        var chat = call(scheduler, LlmScheduler.Lane.CHAT, "alice", "chat");
+        await(() -> scheduler.queued(LlmScheduler.Lane.CHAT) == 1 || !admitted.isEmpty());
+
+        chat.join();
+        extraction.join();
+        consolidation.join();
+        assertEquals(List.of("chat", "extraction", "consolidation"), admitted);
+    }
+
+    @Test
+    void partiesInALaneTakeTurns() throws Exception {
+        var scheduler = scheduler(10);
+        scheduler.admit("model");
+
+        var alice1 = call(scheduler, LlmScheduler.Lane.CHAT, "alice", "alice-1");
+        await(() -> scheduler.queued(LlmScheduler.Lane.CHAT) == 1);
+        var alice2 = call(scheduler, LlmScheduler.Lane.CHAT, "alice", "alice-2");
+        await(() -> scheduler.queued(LlmScheduler.Lane.CHAT) == 2);
+        var bob = call(scheduler, LlmScheduler.Lane.CHAT, "bob", "bob");
+
+        alice1.join();
+        alice2.join();
+        bob.join();
+        assertEquals(List.of("alice-1", "bob", "alice-2"), admitted);
+    }
+
+    @Test
+    void fullLaneRejectsFurtherCalls() throws Exception {
+        var scheduler = scheduler(1);
+        scheduler.admit("model");
+
+        var waiting = call(scheduler, LlmScheduler.Lane.EXTRACTION, "background", "waiting");
+        await(() -> scheduler.queued(LlmScheduler.Lane.EXTRACTION) == 1);
+
+        assertThrows(RejectedExecutionException.class, () -> scheduler.admit("model"));
+        assertEquals(1.0, meterRegistry.get("urbot.llm.admission.rejected").tag("lane", "extraction").counter().count());
+        waiting.join();
+        assertEquals(List.of("waiting"), admitted);
+    }
+}
@@ -0,0 +1,104 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.rag.service.SearchOperations;
+import com.embabel.agent.rag.service.VectorSearch;
+import com.embabel.common.ai.model.EmbeddingService;
+import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Verifies that retrieval runs without holding up the response, and that lookups missing
+ * the deadline are skipped without being cancelled.
+ */
+class RetrievalPrefetchTest {
+
+    private final UrbotUser user = new UrbotUser("alice", "Alice", "alice");
+    private final EmbeddingService embeddingService = mock(EmbeddingService.class);
+    private final SearchOperations searchOperations =
+            mock(SearchOperations.class, withSettings().extraInterfaces(VectorSearch.class));
+    private final CountDownLatch release = new CountDownLatch(1);
+    private RetrievalPrefetch prefetch;
+
+    private RetrievalPrefetch prefetch(Duration deadline, int topK) {
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "tagline",
+                true, Duration.ofMillis(100), 32, 1, 200, deadline, topK, null, null, null);
+        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "", null, null, null);
+        prefetch = new RetrievalPrefetch(embeddingService, searchOperations, properties, ObservationRegistry.NOOP);
+        return prefetch;
+    }
+
+    @AfterEach
+    void shutdown() {
+        release.countDown();
+        prefetch.shutdown();
+    }
+
+    @Test
+    void startingDoesNotWaitForTheContextEmbedding() {
+        when(embeddingService.embed(anyString())).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return new float[]{1f};
+        });
+        var prefetch = prefetch(Duration.ofSeconds(5), 0);
+
+        var lookups = assertTimeoutPreemptively(Duration.ofMillis(500),
+                () -> prefetch.prefetch(user, "recent context", "question"));
+
+        assertTrue(lookups.excerpts().isEmpty());
+        verify(embeddingService, timeout(5_000)).embed("recent context");
+    }
+
+    @Test
+    void documentLookupMissingTheDeadlineIsSkippedNotCancelled() {
+        var interrupted = new AtomicBoolean();
+        var finished = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            finished.countDown();
+            return List.of();
+        }).when((VectorSearch) searchOperations).vectorSearch(any(), any());
+        var prefetch = prefetch(Duration.ofMillis(100), 3);
+
+        var lookups = prefetch.prefetch(user, "recent context", "question");
+        var excerpts = assertTimeoutPreemptively(Duration.ofSeconds(2), lookups::excerpts);
+
+        assertTrue(excerpts.isEmpty());
+        release.countDown();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> finished.await());
+        assertFalse(interrupted.get());
+    }
+
+    @Test
+    void blankMessageIsNotSearched() {
+        var prefetch = prefetch(Duration.ofSeconds(5), 3);
+
+        assertTrue(prefetch.prefetch(user, "recent context", "  ").excerpts().isEmpty());
+        verify(embeddingService, timeout(5_000)).embed("recent context");
+        verify((VectorSearch) searchOperations, after(200).never()).vectorSearch(any(), any());
+    }
+}
@@ -0,0 +1,106 @@
+package com.embabel.urbot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies coalescing of concurrent identical calls, and cancellation once every caller gives up.
+ */
+class SingleFlightTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>("test", meterRegistry);
+
+    @AfterEach
+    void close() {
+        singleFlight.close();
+    }
+
+    @Test
+    void concurrentIdenticalCallsShareOneExecution() throws Exception {
+        var calls = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        var results = new String[3];
+        var threads = new Thread[3];
+        for (var i = 0; i < threads.length; i++) {
+            var index = i;
+            threads[i] = Thread.ofVirtual().start(() -> results[index] = singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                await(release);
+                return "result";
+            }));
+        }
+        while (coalesced() < 2) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals("result", results[0]);
+        assertEquals("result", results[2]);
+        assertEquals("again", singleFlight.execute("key", () -> "again"));
+    }
+
+    @Test
+    void callIsCancelledOnceEveryCallerGivesUp() throws Exception {
+        var started = new CountDownLatch(1);
+        var interrupted = new CountDownLatch(1);
+        var failures = new AtomicReference<Throwable>();
+        Runnable waiter = () -> {
+            try {
+                singleFlight.execute("key", () -> {
+                    started.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                    return "late";
+                });
+            } catch (Throwable e) {
+                failures.set(e);
+            }
+        };
+        var first = Thread.ofVirtual().start(waiter);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        var second = Thread.ofVirtual().start(waiter);
+        while (coalesced() < 1) {
+            Thread.sleep(5);
+        }
+
+        first.interrupt();
+        first.join();
+        assertEquals(1, interrupted.getCount(), "Still awaited by the second caller");
+        second.interrupt();
+        second.join();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(CancellationException.class, failures.get());
+    }
+
+    private double coalesced() {
+        return meterRegistry.get("urbot.single-flight.coalesced").tag("operation", "test").counter().count();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -12,13 +12,16 @@ import com.embabel.dice.proposition.extraction.ExtractionPerspective;
 import com.embabel.dice.proposition.extraction.TemplateModel;
 import com.embabel.urbot.ChatbotOptions;
 import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.core.io.DefaultResourceLoader;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -80,16 +83,50 @@ class TemplateRenderingTest {
     @Test
     void urbotSystemPromptRenders() {
         var user = new UrbotUser("test-user", "Test User", "tuser");
-        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "Chatbot with RAG and memory");
-        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "");
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "Chatbot with RAG and memory",
+                true, Duration.ofMillis(100), 32, 1, 200,
+                Duration.ofMillis(1500), 0, null, null, null);
+        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "", null, null, null);
 
-        var result = renderer.renderLoadedTemplate(
-                "urbot",
-                Map.of("properties", properties, "user", user)
-        );
+        var result = new SystemPromptRenderer(renderer, new SimpleMeterRegistry())
+                .render(user, Map.of("properties", properties, "user", user))
+                .prompt();
 
         assertFalse(result.isEmpty(), "System prompt should not be empty");
         assertTrue(result.contains("200"), "Should contain maxWords from voice config");
         assertTrue(result.contains("Test User"), "Should contain user name");
     }
+
+    @Test
+    void staticPromptLayerIsTheSameForEveryUserAndComesFirst() {
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "Chatbot with RAG and memory",
+                true, Duration.ofMillis(100), 32, 1, 200,
+                Duration.ofMillis(1500), 0, null, null, null);
+        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "", null, null, null);
+        var alice = new UrbotUser("alice", "Alice", "alice");
+        var bob = new UrbotUser("bob", "Bob", "bob");
+
+        var forAlice = renderer.renderLoadedTemplate("layers/static", Map.of("properties", properties, "user", alice));
+        var forBob = renderer.renderLoadedTemplate("layers/static", Map.of("properties", properties, "user", bob));
+        var model = Map.<String, Object>of("properties", properties, "user", alice, "prefetched", List.of("An excerpt"));
+        var prompt = new SystemPromptRenderer(renderer, new SimpleMeterRegistry())
+                .render(alice, model)
+                .prompt();
+
+        assertEquals(forAlice, forBob, "Static layer should not depend on the user");
+        assertTrue(prompt.stripLeading().startsWith(forAlice.stripLeading()),
+                "Static layer should be the start of the system prompt");
+        assertFalse(forAlice.contains("Alice"));
+        assertTrue(prompt.indexOf("DO NOT DISCUSS POLITICS") < prompt.indexOf("Alice"),
+                "Static layer should precede the user layer");
+        assertFalse(prompt.contains("An excerpt"), "Turn context should not be part of the system prompt");
+        assertTrue(renderer.renderLoadedTemplate("layers/turn", model).contains("An excerpt"));
+    }
+
+    @Test
+    void renderedSystemPromptIsPassedThroughUnchanged() {
+        var prompt = "You are a helpful assistant.\n\nKeep answers brief.";
+
+        assertEquals(prompt, renderer.renderLoadedTemplate("system_prompt", Map.of("system_prompt", prompt)));
+    }
 }
@@ -0,0 +1,92 @@
+package com.embabel.urbot;
+
+import com.embabel.agent.api.event.AgentProcessFinishedEvent;
+import com.embabel.agent.api.event.ToolCallRequestEvent;
+import com.embabel.agent.api.event.ToolCallResponseEvent;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies that tool calls are counted per process, and that calls left without a response are
+ * closed when their process finishes.
+ */
+class ToolCallObservationsTest {
+
+    private final List<Observation.Context> stopped = new ArrayList<>();
+    private final ToolCallObservations observations = new ToolCallObservations(registry());
+
+    private ObservationRegistry registry() {
+        var registry = ObservationRegistry.create();
+        registry.observationConfig().observationHandler(new ObservationHandler<>() {
+            @Override
+            public void onStop(Observation.Context context) {
+                stopped.add(context);
+            }
+
+            @Override
+            public boolean supportsContext(Observation.Context context) {
+                return true;
+            }
+        });
+        return registry;
+    }
+
+    private static ToolCallRequestEvent request(String processId) {
+        var request = mock(ToolCallRequestEvent.class);
+        when(request.getProcessId()).thenReturn(processId);
+        when(request.getTool()).thenReturn("search");
+        return request;
+    }
+
+    private static AgentProcessFinishedEvent finished(String processId) {
+        var finished = mock(AgentProcessFinishedEvent.class);
+        when(finished.getProcessId()).thenReturn(processId);
+        return finished;
+    }
+
+    @Test
+    void callsAreCountedForTheirProcessOnly() {
+        try (var count = observations.countCalls("p1")) {
+            observations.onProcessEvent(request("p1"));
+            observations.onProcessEvent(request("p2"));
+
+            assertEquals(1, count.calls());
+        }
+    }
+
+    @Test
+    void answeredCallIsStopped() {
+        var request = request("p1");
+        var response = mock(ToolCallResponseEvent.class);
+        when(response.getRequest()).thenReturn(request);
+
+        observations.onProcessEvent(request);
+        observations.onProcessEvent(response);
+
+        assertEquals(0, observations.pendingCalls());
+        assertEquals(1, stopped.size());
+        assertNull(stopped.getFirst().getError());
+    }
+
+    @Test
+    void unansweredCallsAreStoppedAsErrorsWhenTheirProcessFinishes() {
+        observations.onProcessEvent(request("p1"));
+        observations.onProcessEvent(request("p2"));
+
+        observations.onProcessEvent(finished("p1"));
+
+        assertEquals(1, observations.pendingCalls());
+        assertEquals(1, stopped.size());
+        assertEquals(IllegalStateException.class, stopped.getFirst().getError().getClass());
+    }
+}
@@ -0,0 +1,78 @@
+package com.embabel.urbot.conversation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Verifies appending, ranged reads, reopening and compaction of conversation logs.
+ */
+class ConversationLogTest {
+
+    @TempDir
+    Path directory;
+
+    private static ConversationLog.Entry entry(int i) {
+        return new ConversationLog.Entry(i % 2 == 0 ? "user" : "assistant", "message " + i + "\nwith a second line",
+                i % 2 == 0 ? "Alice" : null, 1_000L + i, i);
+    }
+
+    private ConversationLog logWith(int messages) {
+        var log = new ConversationLog(directory.resolve("chat.jsonl"));
+        IntStream.range(0, messages).forEach(i -> log.append(entry(i)));
+        return log;
+    }
+
+    @Test
+    void readsRangesOfAppendedEntries() {
+        var log = logWith(10);
+
+        assertEquals(10, log.size());
+        assertEquals(IntStream.range(3, 7).mapToObj(ConversationLogTest::entry).toList(), log.read(3, 7));
+        assertEquals(entry(9), log.read(9, 20).getFirst());
+    }
+
+    @Test
+    void reopeningRestoresEntries() {
+        logWith(5);
+
+        var reopened = new ConversationLog(directory.resolve("chat.jsonl"));
+        reopened.append(entry(5));
+
+        assertEquals(6, reopened.size());
+        assertEquals(IntStream.range(0, 6).mapToObj(ConversationLogTest::entry).toList(), reopened.read(0, 6));
+    }
+
+    @Test
+    void partialLineFromCrashIsCutOff() throws IOException {
+        var log = logWith(3);
+        Files.writeString(log.file(), "{\"role\":\"user\",\"cont", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        var reopened = new ConversationLog(log.file());
+        reopened.append(entry(3));
+
+        assertEquals(4, reopened.size());
+        assertEquals(entry(3), reopened.read(3, 4).getFirst());
+    }
+
+    @Test
+    void compactionKeepsMostRecentEntries() {
+        var log = logWith(10);
+
+        assertEquals(6, log.compact(4));
+        log.append(entry(10));
+
+        assertEquals(5, log.size());
+        assertEquals(IntStream.range(6, 11).mapToObj(ConversationLogTest::entry).toList(), log.read(0, 5));
+        assertEquals(log.read(0, 5), new ConversationLog(log.file()).read(0, 5));
+        assertEquals(0, log.compact(10));
+    }
+}
@@ -0,0 +1,205 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.agent.api.common.Ai;
+import com.embabel.agent.api.common.AiBuilder;
+import com.embabel.agent.api.common.PromptRunner;
+import com.embabel.chat.AssistantMessage;
+import com.embabel.chat.Conversation;
+import com.embabel.chat.Message;
+import com.embabel.chat.UserMessage;
+import com.embabel.common.ai.model.LlmOptions;
+import com.embabel.common.textio.template.TemplateRenderer;
+import com.embabel.urbot.ChatbotOptions;
+import com.embabel.urbot.HistoryOptions;
+import com.embabel.urbot.LlmScheduler;
+import com.embabel.urbot.UrbotProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies which messages are sent verbatim and which are left to the summary, when the summary
+ * is brought up to date, and that summaries stay anchored to the right messages across compaction
+ * and a restart.
+ * <p>
+ * Every message here is estimated at 13 tokens, so a budget of 40 keeps the last three messages
+ * and twice the budget the last six.
+ */
+class ConversationSummarizerTest {
+
+    private static final int BUDGET = 40;
+
+    @TempDir
+    Path directory;
+
+    private final PromptRunner promptRunner = mock(PromptRunner.class);
+    private final LlmScheduler llmScheduler = mock(LlmScheduler.class);
+
+    @BeforeEach
+    void setUp() {
+        when(promptRunner.generateText(anyString())).thenReturn(" The user asked about refunds. ");
+        when(llmScheduler.inLane(any(LlmScheduler.Lane.class), anyString(), any(Supplier.class)))
+                .thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(2).get());
+    }
+
+    private ConversationSummarizer summarizer(int budget) {
+        var history = new HistoryOptions(budget, 4, null);
+        var chat = new ChatbotOptions(null, 20, "qa", "default", "assistant", 200, 50, true, true, "tagline",
+                true, Duration.ofMillis(100), 32, 1, 200, Duration.ofMillis(1500), 0, null, history, null);
+        var properties = new UrbotProperties(chat, null, null, null, List.of(), List.of(), "", "", null, null, null);
+        var ai = mock(Ai.class);
+        when(ai.withLlm((LlmOptions) any())).thenReturn(promptRunner);
+        var aiBuilder = mock(AiBuilder.class);
+        when(aiBuilder.ai()).thenReturn(ai);
+        var templateRenderer = mock(TemplateRenderer.class);
+        when(templateRenderer.renderLoadedTemplate(anyString(), anyMap())).thenReturn("prompt");
+        return new ConversationSummarizer(properties, aiBuilder, templateRenderer, llmScheduler,
+                new SimpleMeterRegistry());
+    }
+
+    private static Message message(int i) {
+        // 36 characters, so 9 tokens of content and 4 of overhead
+        var content = String.format("Message number %03d of conversation.", i);
+        return i % 2 == 0 ? new UserMessage(content, "Alice") : new AssistantMessage(content);
+    }
+
+    private static Conversation conversation(int messages) {
+        return new ConversationWindow(chat(), new ArrayList<>(IntStream.range(0, messages)
+                .mapToObj(ConversationSummarizerTest::message).toList()));
+    }
+
+    private static Conversation chat() {
+        var chat = mock(Conversation.class);
+        when(chat.getId()).thenReturn("chat");
+        return chat;
+    }
+
+    private static List<String> contents(Conversation conversation) {
+        return conversation.getMessages().stream().map(Message::getContent).toList();
+    }
+
+    private static List<String> expected(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> message(i).getContent()).toList();
+    }
+
+    @Test
+    void zeroBudgetSendsEverything() {
+        var conversation = conversation(20);
+
+        var window = summarizer(0).window(conversation);
+
+        assertSame(conversation, window.recent());
+        assertNull(window.summary());
+    }
+
+    @Test
+    void conversationWithinBudgetIsSentWhole() {
+        var conversation = conversation(3);
+
+        var window = summarizer(BUDGET).window(conversation);
+
+        assertEquals(expected(0, 3), contents(window.recent()));
+        assertNull(window.summary());
+        assertEquals(39, window.estimatedTokens());
+    }
+
+    @Test
+    void withoutSummaryUpToTwiceTheBudgetIsSent() {
+        var window = summarizer(BUDGET).window(conversation(10));
+
+        assertEquals(expected(4, 10), contents(window.recent()));
+        assertNull(window.summary());
+    }
+
+    @Test
+    void latestMessageIsKeptWhateverItsSize() {
+        var messages = new ArrayList<>(conversation(4).getMessages());
+        messages.add(new UserMessage("x".repeat(1_000), "Alice"));
+
+        var window = summarizer(BUDGET).window(new ConversationWindow(chat(), messages));
+
+        assertEquals(1, window.recent().getMessages().size());
+    }
+
+    @Test
+    void summaryReplacesTheMessagesItCovers() {
+        var summarizer = summarizer(BUDGET);
+        var conversation = conversation(10);
+
+        summarizer.summarize(conversation);
+        var window = summarizer.window(conversation);
+
+        assertEquals("The user asked about refunds.", window.summary());
+        assertEquals(expected(7, 10), contents(window.recent()));
+    }
+
+    @Test
+    void messagesNotYetSummarizedAreStillSent() {
+        var summarizer = summarizer(BUDGET);
+        var conversation = conversation(10);
+        summarizer.summarize(conversation);
+        IntStream.range(10, 13).forEach(i -> conversation.getMessages().add(message(i)));
+
+        var window = summarizer.window(conversation);
+
+        // The summary covers up to message 7; the budget alone would start at message 10
+        assertEquals(expected(7, 13), contents(window.recent()));
+        assertEquals("The user asked about refunds.", window.summary());
+    }
+
+    @Test
+    void summaryIsNotUpdatedUntilEnoughMessagesLeaveTheWindow() {
+        var summarizer = summarizer(BUDGET);
+
+        summarizer.summarize(conversation(6));
+
+        verify(promptRunner, never()).generateText(anyString());
+    }
+
+    @Test
+    void storedSummaryIsAnchoredToMessageIdsAcrossCompactionAndRestart() {
+        var summarizer = summarizer(BUDGET);
+        var log = directory.resolve("chat.jsonl");
+        var conversation = new PersistentConversation("chat", new ConversationLog(log), 4, 5);
+        IntStream.range(0, 10).forEach(i -> conversation.addMessage(message(i)));
+        summarizer.summarize(conversation);
+        assertEquals(7, conversation.summary().endId());
+
+        conversation.compact(5);
+        var reopened = new PersistentConversation("chat", new ConversationLog(log), 4, 5);
+        var window = summarizer(BUDGET).window(reopened);
+
+        assertEquals("The user asked about refunds.", window.summary());
+        assertEquals(expected(7, 10), contents(window.recent()));
+    }
+
+    @Test
+    void coverageCountsFromTheFirstStoredMessage() {
+        var summary = new PersistentConversation.Summary("text", 7, 100);
+
+        assertEquals(7, ConversationSummarizer.covered(summary, 0, 10));
+        assertEquals(2, ConversationSummarizer.covered(summary, 5, 5));
+        assertEquals(0, ConversationSummarizer.covered(summary, 9, 3));
+        assertEquals(3, ConversationSummarizer.covered(summary, 0, 3));
+        assertEquals(0, ConversationSummarizer.covered(null, 0, 10));
+    }
+}
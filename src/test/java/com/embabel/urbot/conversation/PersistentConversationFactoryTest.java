@@ -0,0 +1,77 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.chat.UserMessage;
+import com.embabel.urbot.ConversationOptions;
+import com.embabel.urbot.UrbotProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies that conversations are shared while open and that background compaction
+ * deletes idle conversations and trims long ones.
+ */
+class PersistentConversationFactoryTest {
+
+    @TempDir
+    Path directory;
+
+    private PersistentConversationFactory factory() {
+        var options = new ConversationOptions(directory, 4, 5, 10, Duration.ofDays(30), Duration.ofHours(1));
+        var properties = new UrbotProperties(null, null, null, null, List.of(), List.of(), "", "", null,
+                options, null);
+        return new PersistentConversationFactory(properties);
+    }
+
+    private static void fill(PersistentConversation conversation, int messages) {
+        IntStream.range(0, messages).forEach(i -> conversation.addMessage(new UserMessage("message " + i)));
+    }
+
+    @Test
+    void sameIdGetsSameOpenConversation() {
+        var factory = factory();
+
+        assertSame(factory.create("chat-alice-1"), factory.create("chat-alice-1"));
+    }
+
+    @Test
+    void idleConversationIsDeleted() throws IOException {
+        var idle = directory.resolve("chat-old.jsonl");
+        var log = new ConversationLog(idle);
+        log.append(new ConversationLog.Entry("user", "hello", null, 0, 0));
+        Files.setLastModifiedTime(idle, FileTime.from(Instant.now().minus(Duration.ofDays(31))));
+
+        factory().compact();
+
+        assertFalse(Files.exists(idle));
+    }
+
+    @Test
+    void longConversationsAreTrimmed() {
+        var factory = factory();
+        var open = (PersistentConversation) factory.create("chat-open");
+        fill(open, 25);
+        var closed = new PersistentConversation("chat-closed", new ConversationLog(directory.resolve("chat-closed.jsonl")), 4, 5);
+        fill(closed, 25);
+
+        factory.compact();
+
+        assertEquals(10, open.size());
+        assertEquals(15, open.firstId());
+        assertEquals(10, new ConversationLog(directory.resolve("chat-closed.jsonl")).size());
+        assertTrue(Files.exists(directory.resolve("chat-open.jsonl")));
+    }
+}
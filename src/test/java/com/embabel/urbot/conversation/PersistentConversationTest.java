@@ -0,0 +1,121 @@
+package com.embabel.urbot.conversation;
+
+import com.embabel.chat.AssistantMessage;
+import com.embabel.chat.Message;
+import com.embabel.chat.UserMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+/**
+ * Verifies paging of older messages, compaction while messages are being read, and that
+ * messages are restored with their timestamps and ids after reopening.
+ */
+class PersistentConversationTest {
+
+    private static final Instant START = Instant.parse("2025-03-01T12:00:00Z");
+
+    @TempDir
+    Path directory;
+
+    private ConversationLog log() {
+        return new ConversationLog(directory.resolve("chat.jsonl"));
+    }
+
+    private static Message message(int i) {
+        var timestamp = START.plusSeconds(i);
+        return i % 2 == 0
+                ? new UserMessage("message " + i, "Alice", timestamp)
+                : new AssistantMessage("message " + i, null, null, timestamp);
+    }
+
+    private PersistentConversation conversationWith(int messages, int hot, int page) {
+        var conversation = new PersistentConversation("chat", log(), hot, page);
+        IntStream.range(0, messages).forEach(i -> conversation.addMessage(message(i)));
+        return conversation;
+    }
+
+    private static List<String> contents(Iterable<Message> messages) {
+        var contents = new ArrayList<String>();
+        messages.forEach(message -> contents.add(message.getContent()));
+        return contents;
+    }
+
+    private static List<String> expected(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "message " + i).toList();
+    }
+
+    @Test
+    void olderMessagesArePagedInFromTheLog() {
+        var conversation = conversationWith(25, 4, 5);
+
+        var messages = conversation.getMessages();
+
+        assertEquals(25, messages.size());
+        assertEquals(expected(0, 25), contents(messages));
+        assertEquals("message 7", messages.get(7).getContent());
+        assertEquals(expected(20, 25), contents(conversation.last(5).getMessages()));
+    }
+
+    @Test
+    void reopenedConversationRestoresRolesNamesAndTimestamps() {
+        conversationWith(6, 2, 2);
+
+        var reopened = new PersistentConversation("chat", log(), 2, 2);
+        var messages = reopened.getMessages();
+
+        assertEquals(expected(0, 6), contents(messages));
+        for (var i = 0; i < 6; i++) {
+            assertEquals(START.plusSeconds(i), messages.get(i).getTimestamp());
+        }
+        assertEquals("Alice", assertInstanceOf(UserMessage.class, messages.get(4)).getName());
+        assertInstanceOf(AssistantMessage.class, messages.get(5));
+    }
+
+    @Test
+    void viewTakenBeforeCompactionContinuesWithRetainedMessages() {
+        var conversation = conversationWith(20, 4, 5);
+        var before = conversation.getMessages();
+        var iterator = before.iterator();
+        iterator.next();
+
+        assertEquals(12, conversation.compact(8));
+
+        assertEquals(8, before.size());
+        assertEquals("message 12", before.get(0).getContent());
+        assertEquals("message 12", iterator.next().getContent());
+        assertEquals(expected(12, 20), contents(before));
+    }
+
+    @Test
+    void idsSurviveCompactionAndReopening() {
+        var conversation = conversationWith(20, 4, 5);
+        conversation.compact(8);
+        conversation.addMessage(message(20));
+
+        var reopened = new PersistentConversation("chat", log(), 4, 5);
+
+        assertEquals(12, reopened.firstId());
+        assertEquals(expected(12, 21), contents(reopened.getMessages()));
+        reopened.addMessage(message(21));
+        assertEquals(21, log().read(9, 10).getFirst().id());
+    }
+
+    @Test
+    void messagesAddedToAWindowAreAddedToTheConversation() {
+        var conversation = conversationWith(6, 2, 2);
+
+        conversation.last(3).last(2).addMessage(message(6));
+
+        assertEquals(expected(0, 7), contents(conversation.getMessages()));
+        assertEquals(6, log().read(6, 7).getFirst().id());
+    }
+}
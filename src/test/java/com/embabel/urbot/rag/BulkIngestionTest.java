@@ -0,0 +1,126 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.agent.rag.model.NavigableDocument;
+import com.embabel.urbot.DocumentOptions;
+import com.embabel.urbot.user.UrbotUser;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies grouped writing, de-duplication of repeated entries and recovery from a failed writer
+ * in bulk ingestion, against a mocked document service.
+ */
+class BulkIngestionTest {
+
+    @TempDir
+    Path directory;
+
+    private final DocumentService documentService = mock(DocumentService.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private final DocumentService.Context context =
+            new DocumentService.Context(new UrbotUser("alice", "Alice", "alice"), "bulk");
+
+    @BeforeEach
+    void setUp() {
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                invocation.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+        when(documentService.parse(any(), anyString())).thenAnswer(invocation -> {
+            String uri = invocation.getArgument(1);
+            return new DocumentService.ParsedDocument(uri, mock(NavigableDocument.class), "hash-" + uri);
+        });
+        when(documentService.write(any(), any(), any())).thenAnswer(invocation -> {
+            DocumentService.ParsedDocument parsed = invocation.getArgument(0);
+            return new DocumentService.WrittenDocument(parsed.uri(), parsed.document(), context, 1,
+                    parsed.contentHash());
+        });
+    }
+
+    private BulkIngestion ingestion() {
+        var options = new DocumentOptions(1, DataSize.ofMegabytes(8), 100_000, 4, Duration.ofMinutes(5), 1000,
+                2, 2, List.of(), Duration.ofSeconds(2), 100, 1000,
+                DocumentOptions.NearDuplicateAction.OFF, 0.9, directory.resolve("cache"), Duration.ofSeconds(60));
+        return new BulkIngestion(documentService, transactionTemplate, context, options, progress -> {
+        });
+    }
+
+    private void files(int count) throws IOException {
+        for (var i = 0; i < count; i++) {
+            Files.writeString(directory.resolve("file-" + i + ".txt"), "Content of file " + i);
+        }
+    }
+
+    @Test
+    void directoryIsWrittenWithChunksEmbeddedAheadPerGroup() throws IOException {
+        files(5);
+
+        var result = ingestion().ingestDirectory(directory);
+
+        assertEquals(5, result.written());
+        assertTrue(result.failures().isEmpty(), result.failures().toString());
+        verify(documentService, atLeastOnce()).embedAhead(anyList(), any());
+        verify(documentService, times(5)).write(any(), any(), any());
+        verify(documentService, times(5)).track(any());
+    }
+
+    @Test
+    void repeatedArchiveEntryIsIngestedOnce() throws IOException {
+        var archive = new ByteArrayOutputStream();
+        try (var tar = new TarArchiveOutputStream(archive)) {
+            for (var name : List.of("a.txt", "b.txt", "a.txt")) {
+                var content = ("Content of " + name).getBytes(StandardCharsets.UTF_8);
+                var entry = new TarArchiveEntry(name);
+                entry.setSize(content.length);
+                tar.putArchiveEntry(entry);
+                tar.write(content);
+                tar.closeArchiveEntry();
+            }
+        }
+
+        var result = ingestion().ingestArchive(new ByteArrayInputStream(archive.toByteArray()), "docs.tar");
+
+        assertEquals(2, result.written());
+        assertEquals(1, result.failures().size());
+        assertEquals("a.txt", result.failures().getFirst().name());
+        verify(documentService, times(2)).write(any(), any(), any());
+    }
+
+    @Test
+    void failedWriterFailsEntriesInsteadOfBlockingProducers() throws IOException {
+        files(30);
+        doThrow(new IllegalStateException("catalog broken")).when(documentService).track(any());
+
+        var result = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> ingestion().ingestDirectory(directory));
+
+        assertEquals(0, result.written());
+        assertFalse(result.failures().isEmpty());
+    }
+}
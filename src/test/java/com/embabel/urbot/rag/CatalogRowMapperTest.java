@@ -0,0 +1,42 @@
+package com.embabel.urbot.rag;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Verifies that ingestion times are read from every form the database may return them in.
+ */
+class CatalogRowMapperTest {
+
+    private static final Instant INGESTED = Instant.parse("2025-03-01T12:30:00Z");
+
+    @Test
+    void localDateTimeIsTakenAsUtc() {
+        var local = LocalDateTime.of(2025, 3, 1, 12, 30);
+
+        assertEquals(INGESTED, DrivineDocumentRepository.CatalogRowMapper.toInstant(local));
+        assertEquals(INGESTED, DrivineDocumentRepository.CatalogRowMapper.toInstant("2025-03-01T12:30:00"));
+    }
+
+    @Test
+    void zonedFormsKeepTheirOffset() {
+        var offset = OffsetDateTime.of(2025, 3, 1, 14, 30, 0, 0, ZoneOffset.ofHours(2));
+
+        assertEquals(INGESTED, DrivineDocumentRepository.CatalogRowMapper.toInstant(offset));
+        assertEquals(INGESTED, DrivineDocumentRepository.CatalogRowMapper.toInstant("2025-03-01T12:30:00Z"));
+        assertEquals(INGESTED, DrivineDocumentRepository.CatalogRowMapper.toInstant(INGESTED.toEpochMilli()));
+    }
+
+    @Test
+    void missingOrUnreadableTimeIsNull() {
+        assertNull(DrivineDocumentRepository.CatalogRowMapper.toInstant(null));
+        assertNull(DrivineDocumentRepository.CatalogRowMapper.toInstant("yesterday"));
+    }
+}
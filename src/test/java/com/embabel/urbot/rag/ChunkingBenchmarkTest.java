@@ -0,0 +1,339 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.agent.rag.ingestion.ContentChunker;
+import com.embabel.agent.rag.ingestion.InMemoryContentChunker;
+import com.embabel.agent.rag.ingestion.TikaHierarchicalContentReader;
+import com.embabel.agent.rag.ingestion.transform.AddTitlesChunkTransformer;
+import com.embabel.agent.rag.model.Chunk;
+import com.embabel.agent.rag.model.NavigableDocument;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Benchmarks {@link ContentChunker.Config} settings against a sample corpus and labelled questions,
+ * and recommends values for {@code urbot.ingestion}.
+ * <p>
+ * For each combination of chunk size and overlap in the grid, the corpus is chunked exactly as
+ * the store chunks it, embedded with a deterministic local stand-in for the embedding model, and
+ * each question is answered by nearest-neighbour search over the chunks. Measured per config:
+ * <ul>
+ *   <li>throughput: corpus bytes chunked and embedded per second</li>
+ *   <li>index size: chunk count, and bytes of chunk text plus vectors</li>
+ *   <li>retrieval latency: mean and p95 time to embed a question and rank every chunk</li>
+ *   <li>recall@k: fraction of questions with a top-k chunk containing the labelled answer text</li>
+ *   <li>context size: mean characters in the top-k chunks, as would be sent to the LLM</li>
+ * </ul>
+ * The recommendation is the config with the smallest context among those within
+ * {@code recallTolerance} of the best recall, then the smallest index, then the fastest.
+ * The stand-in embedding hashes words and word pairs, so recall reflects whether chunking keeps
+ * an answer together with the words of its question, not the semantics of a real model.
+ * Throughput and latency exclude calls to an embedding provider, and are for comparing configs.
+ * <p>
+ * Excluded from the default build. Run with {@code mvn test -Pchunking-benchmark}; results are
+ * written to {@code target/chunking-benchmark}.
+ */
+@Tag("chunking-benchmark")
+class ChunkingBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkingBenchmarkTest.class);
+
+    private static final String CONFIG_PROPERTY = "chunking.benchmark.config";
+    private static final String DEFAULT_CONFIG = "chunking-benchmark/benchmark.yml";
+
+    private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
+
+    /**
+     * Corpus, labelled questions and grid, loaded from YAML.
+     */
+    record BenchmarkConfig(
+            List<String> corpus,
+            List<Question> questions,
+            List<Integer> maxChunkSizes,
+            List<Integer> overlapSizes,
+            int embeddingBatchSize,
+            int k,
+            int dimensions,
+            int repetitions,
+            double recallTolerance
+    ) {
+    }
+
+    record Question(String question, String answer) {
+    }
+
+    /**
+     * Measurements for one config.
+     */
+    record Result(
+            int maxChunkSize,
+            int overlapSize,
+            int chunks,
+            long indexBytes,
+            double bytesPerSecond,
+            double meanLatencyMicros,
+            double p95LatencyMicros,
+            double recall,
+            double meanContextCharacters
+    ) {
+    }
+
+    private record IndexedChunk(String text, float[] vector) {
+    }
+
+    @Test
+    void recommendChunkingConfig() throws Exception {
+        var configPath = configPath();
+        var config = YAML.readValue(configPath.toFile(), BenchmarkConfig.class);
+        assertFalse(config.questions().isEmpty(), "Benchmark has no questions");
+
+        var corpus = config.corpus().stream().map(configPath.getParent()::resolve).toList();
+        var documents = parseCorpus(corpus);
+        long corpusBytes = 0;
+        for (var path : corpus) {
+            corpusBytes += Files.size(path);
+        }
+        logger.info("Benchmarking {} documents ({} bytes) against {} questions",
+                documents.size(), corpusBytes, config.questions().size());
+
+        var results = new ArrayList<Result>();
+        for (var maxChunkSize : config.maxChunkSizes()) {
+            for (var overlapSize : config.overlapSizes()) {
+                if (overlapSize >= maxChunkSize / 2) {
+                    continue;
+                }
+                var result = measure(config, documents, corpusBytes, maxChunkSize, overlapSize);
+                logger.info("{}", result);
+                results.add(result);
+            }
+        }
+        assertFalse(results.isEmpty(), "Grid has no valid configs");
+
+        var recommended = recommend(results, config.recallTolerance());
+        writeReport(config, results, recommended);
+
+        assertNotNull(recommended);
+        assertTrue(recommended.recall() > 0, "No config retrieved any labelled answer");
+    }
+
+    private static Path configPath() throws URISyntaxException {
+        var override = System.getProperty(CONFIG_PROPERTY);
+        if (override != null && !override.isBlank()) {
+            return Path.of(override).toAbsolutePath();
+        }
+        var resource = ChunkingBenchmarkTest.class.getClassLoader().getResource(DEFAULT_CONFIG);
+        assertNotNull(resource, "Config not found on classpath: " + DEFAULT_CONFIG);
+        return Path.of(resource.toURI());
+    }
+
+    private static List<NavigableDocument> parseCorpus(List<Path> corpus) throws IOException {
+        var reader = new TikaHierarchicalContentReader();
+        var documents = new ArrayList<NavigableDocument>();
+        for (var path : corpus) {
+            try (var in = Files.newInputStream(path)) {
+                documents.add(reader.parseContent(in, path.toUri().toString()));
+            }
+        }
+        return documents;
+    }
+
+    private static Result measure(BenchmarkConfig config, List<NavigableDocument> documents,
+                                  long corpusBytes, int maxChunkSize, int overlapSize) {
+        var chunker = new InMemoryContentChunker(
+                new ContentChunker.Config(maxChunkSize, overlapSize, config.embeddingBatchSize()),
+                AddTitlesChunkTransformer.INSTANCE);
+
+        // The first pass warms up; the rest are timed
+        List<IndexedChunk> index = List.of();
+        long elapsed = 0;
+        for (int run = 0; run <= config.repetitions(); run++) {
+            var start = System.nanoTime();
+            index = index(chunker, documents, config.dimensions());
+            if (run > 0) {
+                elapsed += System.nanoTime() - start;
+            }
+        }
+        var bytesPerSecond = corpusBytes * (double) config.repetitions() / (elapsed / 1e9);
+        var indexBytes = index.stream()
+                .mapToLong(chunk -> chunk.text().getBytes(StandardCharsets.UTF_8).length
+                        + (long) Float.BYTES * chunk.vector().length)
+                .sum();
+
+        var latencies = new long[config.questions().size() * config.repetitions()];
+        var answered = 0;
+        long contextCharacters = 0;
+        for (int run = 0; run < config.repetitions(); run++) {
+            for (int q = 0; q < config.questions().size(); q++) {
+                var question = config.questions().get(q);
+                var start = System.nanoTime();
+                var top = search(index, embed(question.question(), config.dimensions()), config.k());
+                latencies[run * config.questions().size() + q] = System.nanoTime() - start;
+                if (run == 0) {
+                    contextCharacters += top.stream().mapToInt(chunk -> chunk.text().length()).sum();
+                    if (top.stream().anyMatch(chunk -> contains(chunk.text(), question.answer()))) {
+                        answered++;
+                    }
+                }
+            }
+        }
+        Arrays.sort(latencies);
+        return new Result(
+                maxChunkSize,
+                overlapSize,
+                index.size(),
+                indexBytes,
+                bytesPerSecond,
+                Arrays.stream(latencies).average().orElse(0) / 1_000,
+                latencies[(int) Math.ceil(latencies.length * 0.95) - 1] / 1_000.0,
+                (double) answered / config.questions().size(),
+                (double) contextCharacters / config.questions().size());
+    }
+
+    private static List<IndexedChunk> index(InMemoryContentChunker chunker, List<NavigableDocument> documents,
+                                            int dimensions) {
+        var index = new ArrayList<IndexedChunk>();
+        for (var document : documents) {
+            for (Chunk chunk : chunker.chunk(document)) {
+                index.add(new IndexedChunk(chunk.getText(), embed(chunk.getText(), dimensions)));
+            }
+        }
+        return index;
+    }
+
+    private static List<IndexedChunk> search(List<IndexedChunk> index, float[] query, int k) {
+        var top = new PriorityQueue<ScoredChunk>(Comparator.comparingDouble(ScoredChunk::score));
+        for (var chunk : index) {
+            top.add(new ScoredChunk(chunk, dot(query, chunk.vector())));
+            if (top.size() > k) {
+                top.poll();
+            }
+        }
+        return top.stream().map(ScoredChunk::chunk).toList();
+    }
+
+    private record ScoredChunk(IndexedChunk chunk, double score) {
+    }
+
+    /**
+     * Among configs within the tolerance of the best recall, the smallest context, then the smallest index,
+     * then the fastest.
+     */
+    private static Result recommend(List<Result> results, double recallTolerance) {
+        var bestRecall = results.stream().mapToDouble(Result::recall).max().orElse(0);
+        return results.stream()
+                .filter(result -> result.recall() >= bestRecall - recallTolerance)
+                .min(Comparator.comparingDouble(Result::meanContextCharacters)
+                        .thenComparingLong(Result::indexBytes)
+                        .thenComparing(Comparator.comparingDouble(Result::bytesPerSecond).reversed()))
+                .orElseThrow();
+    }
+
+    private static void writeReport(BenchmarkConfig config, List<Result> results, Result recommended)
+            throws IOException {
+        var outputDir = Path.of("target", "chunking-benchmark");
+        Files.createDirectories(outputDir);
+
+        var csv = new StringBuilder(
+                "max_chunk_size,overlap_size,chunks,index_bytes,bytes_per_second,mean_latency_us,p95_latency_us,recall_at_k,context_chars\n");
+        for (var result : results) {
+            csv.append(String.format(Locale.ROOT, "%d,%d,%d,%d,%.0f,%.1f,%.1f,%.3f,%.0f%n",
+                    result.maxChunkSize(), result.overlapSize(), result.chunks(), result.indexBytes(),
+                    result.bytesPerSecond(), result.meanLatencyMicros(), result.p95LatencyMicros(),
+                    result.recall(), result.meanContextCharacters()));
+        }
+        Files.writeString(outputDir.resolve("results.csv"), csv.toString(), StandardCharsets.UTF_8);
+
+        var yaml = String.format(Locale.ROOT, """
+                        # Recommended by the chunking benchmark, %s
+                        # recall@%d %.3f, %.0f context chars, %d chunks, %d index bytes, %.0f bytes/s, p95 retrieval %.1fus
+                        urbot:
+                          ingestion:
+                            max-chunk-size: %d
+                            overlap-size: %d
+                            embedding-batch-size: %d
+                        """,
+                Instant.now(), config.k(), recommended.recall(), recommended.meanContextCharacters(),
+                recommended.chunks(), recommended.indexBytes(),
+                recommended.bytesPerSecond(), recommended.p95LatencyMicros(),
+                recommended.maxChunkSize(), recommended.overlapSize(), config.embeddingBatchSize());
+        Files.writeString(outputDir.resolve("recommended.yml"), yaml, StandardCharsets.UTF_8);
+        logger.info("Wrote chunking benchmark results to {}. Recommended:\n{}", outputDir, yaml);
+    }
+
+    // ---- Deterministic embedding stand-in ----
+
+    /**
+     * Hash words and adjacent word pairs into a fixed number of signed buckets, then normalize,
+     * so cosine similarity is a dot product.
+     */
+    private static float[] embed(String text, int dimensions) {
+        var vector = new float[dimensions];
+        var words = Arrays.stream(text.toLowerCase(Locale.ROOT).split("\\W+"))
+                .filter(word -> word.length() > 2)
+                .toArray(String[]::new);
+        for (int i = 0; i < words.length; i++) {
+            add(vector, mix(words[i].hashCode()));
+            if (i + 1 < words.length) {
+                add(vector, mix(words[i].hashCode() * 31L + words[i + 1].hashCode()));
+            }
+        }
+        double norm = 0;
+        for (var value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0) {
+            var scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < dimensions; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+
+    private static void add(float[] vector, long hash) {
+        var bucket = (int) Math.floorMod(hash, (long) vector.length);
+        vector[bucket] += (hash & (1L << 62)) == 0 ? 1 : -1;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static boolean contains(String text, String answer) {
+        return normalize(text).contains(normalize(answer));
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+}
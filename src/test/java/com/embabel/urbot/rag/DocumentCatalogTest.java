@@ -0,0 +1,65 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.vaadin.document.DocumentInfoProvider.DocumentInfo;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Verifies context-keyed content hashes and title-ordered paging of the document catalog.
+ */
+class DocumentCatalogTest {
+
+    private static DocumentInfo info(String uri, String context) {
+        return info(uri, "Title", context);
+    }
+
+    private static DocumentInfo info(String uri, String title, String context) {
+        return new DocumentInfo(uri, title, context, 3, Instant.EPOCH);
+    }
+
+    private static List<String> titles(List<DocumentInfo> page) {
+        return page.stream().map(DocumentInfo::title).toList();
+    }
+
+    @Test
+    void contentHashIsKeyedByContext() {
+        var catalog = new DocumentCatalog();
+        catalog.put(info("file:a.md", "alice_personal"), "hash-a");
+
+        assertEquals("hash-a", catalog.contentHash("file:a.md", "alice_personal"));
+        assertNull(catalog.contentHash("file:a.md", "bob_personal"));
+        assertEquals("hash-a", catalog.contentHash("file:a.md"));
+    }
+
+    @Test
+    void tombstonedDocumentHasNoContentHash() {
+        var catalog = new DocumentCatalog();
+        catalog.put(info("file:a.md", "alice_personal"), "hash-a");
+        catalog.tombstone("file:a.md");
+
+        assertNull(catalog.contentHash("file:a.md", "alice_personal"));
+    }
+
+    @Test
+    void pageAfterContinuesFromLastDocumentOfPreviousPage() {
+        var catalog = new DocumentCatalog();
+        for (var title : List.of("delta", "Alpha", "charlie", "Echo", "bravo")) {
+            catalog.put(info("file:" + title, title, "shared"), title);
+        }
+        catalog.put(info("file:other", "Aardvark", "other"), "other");
+
+        var first = catalog.pageAfter("shared", null, 2);
+        var second = catalog.pageAfter("shared", first.getLast(), 2);
+        var third = catalog.pageAfter("shared", second.getLast(), 2);
+
+        assertEquals(List.of("Alpha", "bravo"), titles(first));
+        assertEquals(List.of("charlie", "delta"), titles(second));
+        assertEquals(List.of("Echo"), titles(third));
+        assertEquals(titles(catalog.page("shared", 2, 2)), titles(second));
+    }
+}
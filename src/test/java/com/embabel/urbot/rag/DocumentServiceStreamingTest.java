@@ -0,0 +1,178 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.agent.rag.ingestion.ChunkTransformer;
+import com.embabel.agent.rag.model.NavigableDocument;
+import com.embabel.agent.rag.store.ChunkingContentElementRepository;
+import com.embabel.urbot.DocumentOptions;
+import com.embabel.urbot.UrbotProperties;
+import com.embabel.urbot.proposition.persistence.DrivinePropositionRepository;
+import com.embabel.urbot.user.UrbotUser;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Verifies streaming ingestion through {@link DocumentService}: sections are written in batches
+ * under a pending URI and moved to the document URI once the whole document has been parsed.
+ * Repositories are stubs that keep nothing of what is written, so heap use is that of ingestion alone.
+ */
+class DocumentServiceStreamingTest {
+
+    private static final String URI = "file:///large.txt";
+
+    @TempDir
+    Path directory;
+
+    private final ChunkingContentElementRepository contentRepository = stub(ChunkingContentElementRepository.class);
+    private final DrivineDocumentRepository documentRepository = stub(DrivineDocumentRepository.class);
+    private final AtomicInteger sectionsWritten = new AtomicInteger();
+    private final Set<String> pendingUris = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<String> movedFrom = new AtomicReference<>();
+    private final AtomicReference<String> recordedHash = new AtomicReference<>();
+
+    private static <T> T stub(Class<T> type) {
+        // Invocations are not recorded, as they would hold on to every section written
+        return mock(type, withSettings().stubOnly());
+    }
+
+    private DocumentService service(DataSize threshold, int sectionSize) {
+        when(contentRepository.writeAndChunkDocument(any())).thenAnswer(invocation -> {
+            NavigableDocument section = invocation.getArgument(0);
+            assertTrue(section.getUri().startsWith(URI + "#pending-"), section.getUri());
+            return List.of("chunk-" + sectionsWritten.incrementAndGet());
+        });
+        when(documentRepository.recordChunkHashes(anyString(), anyList())).thenAnswer(invocation -> {
+            pendingUris.add(invocation.getArgument(0));
+            return Map.of();
+        });
+        doAnswer(invocation -> {
+            assertEquals(URI, invocation.getArgument(1));
+            movedFrom.set(invocation.getArgument(0));
+            return null;
+        }).when(documentRepository).moveSections(anyString(), anyString());
+        doAnswer(invocation -> {
+            recordedHash.set(invocation.getArgument(1));
+            return null;
+        }).when(documentRepository).recordDocumentHash(anyString(), anyString());
+
+        var documents = new DocumentOptions(1, threshold, sectionSize, 4, Duration.ofMinutes(5), 1000,
+                0, 16, List.of(), Duration.ofSeconds(2), 100, 1000,
+                DocumentOptions.NearDuplicateAction.OFF, 0.9, directory.resolve("cache"), Duration.ofSeconds(60));
+        var properties = new UrbotProperties(null, null, null, null, List.of(), List.of(), "", "", documents,
+                null, null);
+        var service = new DocumentService(contentRepository, documentRepository,
+                stub(DrivinePropositionRepository.class), stub(ReusingEmbeddingService.class),
+                stub(ChunkTransformer.class), stub(NearDuplicateDetector.class),
+                stub(PlatformTransactionManager.class), properties, ObservationRegistry.NOOP);
+        service.loadDocumentsFromDatabase();
+        service.catalogLoaded().join();
+        return service;
+    }
+
+    private static DocumentService.Context context() {
+        return new DocumentService.Context(new UrbotUser("alice", "Alice", "alice"));
+    }
+
+    @Test
+    void sectionsAreMovedToTheDocumentUriOnceParsed() {
+        var service = service(DataSize.ofKilobytes(1), 1000);
+
+        var first = service.ingestStream(new GeneratedTextInputStream(20_000), URI, "large.txt", context());
+
+        assertNotNull(first);
+        assertTrue(sectionsWritten.get() >= 20, "sections " + sectionsWritten.get());
+        assertEquals(1, pendingUris.size());
+        assertEquals(pendingUris.iterator().next(), movedFrom.get());
+        assertNotNull(recordedHash.get());
+        assertEquals(1, service.getDocumentCount());
+        assertEquals(sectionsWritten.get(), service.getChunkCount());
+    }
+
+    /**
+     * Streams 500 MB of generated text through {@link DocumentService}. Run with a small heap via
+     * {@code mvn test -Plarge-document-tests}: it fails with OutOfMemoryError if the
+     * document is materialized rather than streamed.
+     */
+    @Test
+    @Tag("large-document")
+    void streamsVeryLargeDocumentInBoundedSections() {
+        long size = 500L * 1024 * 1024;
+        int sectionSize = 100_000;
+        var service = service(DataSize.ofMegabytes(8), sectionSize);
+
+        var first = service.ingestStream(new GeneratedTextInputStream(size), URI, "large.txt", context());
+
+        assertNotNull(first);
+        assertTrue(sectionsWritten.get() >= size / sectionSize, "sections " + sectionsWritten.get());
+        assertEquals(1, pendingUris.size());
+        assertEquals(pendingUris.iterator().next(), movedFrom.get());
+        assertNotNull(recordedHash.get());
+    }
+
+    /**
+     * Produces numbered lines of ASCII text on the fly, without holding the document in memory.
+     */
+    private static class GeneratedTextInputStream extends InputStream {
+
+        private final long size;
+        private long position;
+        private long line;
+        private byte[] current = new byte[0];
+        private int offset;
+
+        GeneratedTextInputStream(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public int read() {
+            if (position >= size) {
+                return -1;
+            }
+            if (offset == current.length) {
+                current = ("Line " + line++ + " of a very large generated document for streaming ingestion.\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                offset = 0;
+            }
+            position++;
+            return current[offset++];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+            int n = 0;
+            while (n < len && position < size) {
+                b[off + n++] = (byte) read();
+            }
+            return n;
+        }
+    }
+}
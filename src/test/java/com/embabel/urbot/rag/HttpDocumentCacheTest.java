@@ -0,0 +1,125 @@
+package com.embabel.urbot.rag;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies cache misses, revalidation and refetching against a local HTTP server.
+ */
+class HttpDocumentCacheTest {
+
+    @TempDir
+    Path cacheDirectory;
+
+    private HttpServer server;
+    private String url;
+    private volatile String body = "first version";
+    private volatile int status = 200;
+    private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/doc.txt", exchange -> {
+            var etag = "\"" + ContentHashes.of(body) + "\"";
+            var condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+            ifNoneMatch.add(condition);
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+            } else if (etag.equals(condition)) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                var bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+            }
+            exchange.close();
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/doc.txt";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void firstFetchIsAMiss() throws IOException {
+        var cache = new HttpDocumentCache(cacheDirectory, Duration.ofSeconds(5));
+
+        var fetch = cache.fetch(url);
+
+        assertFalse(fetch.notModified());
+        assertEquals("first version", Files.readString(fetch.body()));
+        assertEquals(1, ifNoneMatch.size());
+        assertNull(ifNoneMatch.getFirst());
+    }
+
+    @Test
+    void unchangedDocumentIsRevalidated() throws IOException {
+        var cache = new HttpDocumentCache(cacheDirectory, Duration.ofSeconds(5));
+        cache.fetch(url);
+
+        var fetch = cache.fetch(url);
+
+        assertTrue(fetch.notModified());
+        assertEquals("first version", Files.readString(fetch.body()));
+        assertEquals("\"" + ContentHashes.of("first version") + "\"", ifNoneMatch.getLast());
+    }
+
+    @Test
+    void changedDocumentIsRefetched() throws IOException {
+        var cache = new HttpDocumentCache(cacheDirectory, Duration.ofSeconds(5));
+        cache.fetch(url);
+        body = "second version";
+
+        var fetch = cache.fetch(url);
+
+        assertFalse(fetch.notModified());
+        assertEquals("second version", Files.readString(fetch.body()));
+    }
+
+    @Test
+    void validatorsSurviveARestart() {
+        new HttpDocumentCache(cacheDirectory, Duration.ofSeconds(5)).fetch(url);
+
+        var fetch = new HttpDocumentCache(cacheDirectory, Duration.ofSeconds(5)).fetch(url);
+
+        assertTrue(fetch.notModified());
+    }
+
+    @Test
+    void errorResponseKeepsCachedCopy() throws IOException {
+        var cache = new HttpDocumentCache(cacheDirectory, Duration.ofSeconds(5));
+        var first = cache.fetch(url);
+        status = 500;
+
+        assertThrows(UncheckedIOException.class, () -> cache.fetch(url));
+
+        assertEquals("first version", Files.readString(first.body()));
+        status = 200;
+        assertTrue(cache.fetch(url).notModified());
+    }
+}
@@ -0,0 +1,62 @@
+package com.embabel.urbot.rag;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies MinHash similarity estimates and that texts too short for a shingle are not fingerprinted.
+ */
+class MinHashTest {
+
+    private static final String TEXT = """
+            The quarterly report shows revenue growth in every region, with the strongest results \
+            in the northern markets where the new distribution agreements took effect in spring. \
+            Operating costs stayed flat while headcount grew slightly to support the expansion.""";
+
+    @Test
+    void nearlyIdenticalTextsAreSimilar() {
+        var edited = TEXT.replace("slightly", "modestly");
+
+        var similarity = MinHash.similarity(MinHash.signature(TEXT), MinHash.signature(edited));
+
+        assertTrue(similarity > 0.7, "similarity " + similarity);
+    }
+
+    @Test
+    void unrelatedTextsAreNotSimilar() {
+        var other = """
+                Preheat the oven, whisk the eggs with sugar until pale, fold in the flour gently \
+                and bake the sponge for twenty five minutes before letting it cool on a rack.""";
+
+        var similarity = MinHash.similarity(MinHash.signature(TEXT), MinHash.signature(other));
+
+        assertTrue(similarity < 0.2, "similarity " + similarity);
+    }
+
+    @Test
+    void signatureIgnoresCaseAndPunctuation() {
+        assertArrayEquals(MinHash.signature("one two three four"), MinHash.signature("One, two -- THREE four!"));
+    }
+
+    @Test
+    void emptyAndShortTextsHaveNoSignature() {
+        assertNull(MinHash.signature(""));
+        assertNull(MinHash.signature("  ... !!! "));
+        assertNull(MinHash.signature("Table of"));
+        assertNotNull(MinHash.signature("Table of contents"));
+    }
+
+    @Test
+    void nonAsciiWordsAreKept() {
+        var first = MinHash.signature("Отчёт показывает рост выручки во всех регионах страны");
+        var second = MinHash.signature("Рецепт требует муки сахара яиц и немного времени");
+
+        assertNotNull(first);
+        assertNotNull(second);
+        assertTrue(MinHash.similarity(first, second) < 0.2);
+    }
+}
@@ -0,0 +1,66 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.common.ai.model.EmbeddingService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies that query embeddings are cached, and that callers cannot change the cached copy.
+ */
+class QueryEmbeddingCacheTest {
+
+    private final EmbeddingService delegate = mock(EmbeddingService.class);
+    private final QueryEmbeddingCache cache = new QueryEmbeddingCache(delegate, 10, Duration.ofMinutes(5),
+            ObservationRegistry.NOOP, new SimpleMeterRegistry());
+
+    @AfterEach
+    void close() {
+        cache.close();
+    }
+
+    @Test
+    void repeatedTextIsEmbeddedOnce() {
+        when(delegate.embed("question")).thenReturn(new float[]{1f, 2f});
+
+        cache.embed("question");
+        cache.embed("question");
+
+        verify(delegate, times(1)).embed("question");
+    }
+
+    @Test
+    void callersGetTheirOwnCopy() {
+        when(delegate.embed("question")).thenReturn(new float[]{1f, 2f});
+
+        var first = cache.embed("question");
+        first[0] = 99f;
+        var second = cache.embed("question");
+
+        assertNotSame(first, second);
+        assertArrayEquals(new float[]{1f, 2f}, second);
+    }
+
+    @Test
+    void textsDifferingOnlyInWhitespaceShareOneEmbedding() {
+        when(delegate.embed("what is urbot")).thenReturn(new float[]{1f, 2f});
+
+        cache.embed("what is urbot");
+        var spaced = cache.embed("  what  is\nurbot ");
+
+        assertArrayEquals(new float[]{1f, 2f}, spaced);
+        verify(delegate, times(1)).embed("what is urbot");
+        verifyNoMoreInteractions(delegate);
+    }
+}
@@ -0,0 +1,66 @@
+package com.embabel.urbot.rag;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Verifies that streamed sections are written in full batches, with the remainder written at the end.
+ */
+class StreamingSectionBatcherTest {
+
+    private final List<List<Integer>> batches = new ArrayList<>();
+
+    private StreamingSectionBatcher batcher(int batchSize) {
+        return new StreamingSectionBatcher(batchSize, sections ->
+                batches.add(sections.stream().map(StreamingSectionHandler.Section::index).toList()));
+    }
+
+    private static void sections(StreamingSectionBatcher batcher, int count) {
+        for (var i = 0; i < count; i++) {
+            batcher.accept(new StreamingSectionHandler.Section(i, null, "Section " + i + "\n"));
+        }
+    }
+
+    @Test
+    void remainderIsWrittenOnFinish() {
+        var batcher = batcher(2);
+        sections(batcher, 5);
+
+        assertEquals(List.of(List.of(0, 1), List.of(2, 3)), batches);
+        batcher.finish();
+        assertEquals(List.of(List.of(0, 1), List.of(2, 3), List.of(4)), batches);
+    }
+
+    @Test
+    void exactMultipleWritesNoEmptyBatch() {
+        var batcher = batcher(2);
+        sections(batcher, 4);
+        batcher.finish();
+
+        assertEquals(List.of(List.of(0, 1), List.of(2, 3)), batches);
+    }
+
+    @Test
+    void documentWithoutSectionsWritesNothing() {
+        var batcher = batcher(3);
+        batcher.finish();
+
+        assertEquals(List.of(), batches);
+    }
+
+    @Test
+    void sectionsFromStreamingHandlerAreBatched() {
+        var batcher = batcher(3);
+        var handler = new StreamingSectionHandler(10, batcher);
+        var text = "x".repeat(75).toCharArray();
+        handler.characters(text, 0, text.length);
+        handler.endDocument();
+        batcher.finish();
+
+        assertEquals(List.of(List.of(0, 1, 2), List.of(3, 4, 5), List.of(6, 7)), batches);
+    }
+}
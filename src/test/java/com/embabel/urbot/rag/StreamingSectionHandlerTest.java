@@ -0,0 +1,75 @@
+package com.embabel.urbot.rag;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Verifies that streaming ingestion cuts text into bounded sections as SAX events arrive.
+ */
+class StreamingSectionHandlerTest {
+
+    @Test
+    void cutsSectionsAtLineBreaksWithinSizeLimit() {
+        var sections = new ArrayList<StreamingSectionHandler.Section>();
+        var handler = new StreamingSectionHandler(100, sections::add);
+
+        for (int i = 0; i < 20; i++) {
+            paragraph(handler, "Paragraph number " + i + " has some text.");
+        }
+        handler.endDocument();
+
+        assertTrue(sections.size() > 1);
+        for (var section : sections) {
+            assertTrue(section.text().length() <= 100, section.text());
+            assertTrue(section.text().endsWith("\n"), section.text());
+        }
+        assertEquals(handler.getSectionCount(), sections.size());
+        assertEquals(0, sections.getFirst().index());
+        var joined = String.join("", sections.stream().map(StreamingSectionHandler.Section::text).toList());
+        assertTrue(joined.contains("Paragraph number 19 has some text."));
+    }
+
+    @Test
+    void hardCutsTextWithoutLineBreaks() {
+        var sections = new ArrayList<StreamingSectionHandler.Section>();
+        var handler = new StreamingSectionHandler(10, sections::add);
+
+        var text = "x".repeat(35).toCharArray();
+        handler.characters(text, 0, text.length);
+        handler.endDocument();
+
+        assertEquals(List.of(10, 10, 10, 5), sections.stream().map(s -> s.text().length()).toList());
+        assertEquals(35, handler.getTotalCharacters());
+    }
+
+    @Test
+    void titlesSectionsWithMostRecentHeading() {
+        var sections = new ArrayList<StreamingSectionHandler.Section>();
+        var handler = new StreamingSectionHandler(40, sections::add);
+
+        paragraph(handler, "Preamble before any heading");
+        element(handler, "h1", "Chapter One");
+        paragraph(handler, "The first chapter goes on for a while.");
+        handler.endDocument();
+
+        assertNull(sections.getFirst().title());
+        assertEquals("Chapter One", sections.getLast().title());
+    }
+
+    private static void paragraph(StreamingSectionHandler handler, String text) {
+        element(handler, "p", text);
+    }
+
+    private static void element(StreamingSectionHandler handler, String name, String text) {
+        handler.startElement("", name, name, new AttributesImpl());
+        handler.characters(text.toCharArray(), 0, text.length());
+        handler.endElement("", name, name);
+    }
+}
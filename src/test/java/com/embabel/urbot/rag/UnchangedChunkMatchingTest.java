@@ -0,0 +1,41 @@
+package com.embabel.urbot.rag;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Verifies how chunks of a re-ingested document are paired with the unchanged chunks they replace.
+ */
+class UnchangedChunkMatchingTest {
+
+    @Test
+    void unchangedChunksTakeOverPreviousIdsAndChangedChunksDoNot() {
+        var previous = Map.of("old-1", "h1", "old-2", "h2", "old-3", "h3");
+        var chunkHashes = Map.of("new-1", "h1", "new-2", "h2-edited", "new-3", "h3");
+
+        var matches = DocumentService.matchUnchangedChunks(List.of("new-1", "new-2", "new-3"), chunkHashes, previous);
+
+        assertEquals(Map.of("new-1", "old-1", "new-3", "old-3"), matches);
+    }
+
+    @Test
+    void repeatedContentUsesEachPreviousChunkOnce() {
+        var previous = Map.of("old-1", "same", "old-2", "same");
+        var chunkHashes = Map.of("new-1", "same", "new-2", "same", "new-3", "same");
+
+        var matches = DocumentService.matchUnchangedChunks(List.of("new-1", "new-2", "new-3"), chunkHashes, previous);
+
+        assertEquals(Map.of("new-1", "old-1", "new-2", "old-2"), matches);
+    }
+
+    @Test
+    void firstIngestionMatchesNothing() {
+        var matches = DocumentService.matchUnchangedChunks(List.of("new-1"), Map.of("new-1", "h1"), Map.of());
+
+        assertEquals(Map.of(), matches);
+    }
+}
@@ -0,0 +1,99 @@
+package com.embabel.urbot.rag;
+
+import com.embabel.urbot.DocumentOptions;
+import com.embabel.urbot.UrbotProperties;
+import com.embabel.vaadin.document.DocumentInfoProvider.DocumentInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies the startup scan of watched folders: unchanged files are not re-ingested,
+ * changed and new files are, and documents whose files are gone are removed.
+ */
+class WatchedFolderIngesterTest {
+
+    @TempDir
+    Path folder;
+
+    private final DocumentService documentService = mock(DocumentService.class);
+    private WatchedFolderIngester ingester;
+
+    private WatchedFolderIngester ingester() {
+        var options = new DocumentOptions(1, DataSize.ofMegabytes(8), 100_000, 4, Duration.ofMinutes(5), 1000,
+                0, 16, List.of(new DocumentOptions.WatchedFolder(folder.toString(), "watched")),
+                Duration.ofMillis(100), 100, 1000, DocumentOptions.NearDuplicateAction.OFF, 0.9,
+                folder.resolve(".cache"), Duration.ofSeconds(60));
+        var properties = new UrbotProperties(null, null, null, null, List.of(), List.of(), "", "", options, null, null);
+        when(documentService.catalogLoaded()).thenReturn(CompletableFuture.completedFuture(null));
+        ingester = new WatchedFolderIngester(documentService, properties);
+        return ingester;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (ingester != null) {
+            ingester.stop();
+        }
+    }
+
+    private File file(String name) throws IOException {
+        return Files.writeString(folder.resolve(name), "Content of " + name).toFile();
+    }
+
+    @Test
+    void unchangedFilesAreNotReingestedOnStartup() throws IOException {
+        var unchanged = file("unchanged.md");
+        var changed = file("changed.md");
+        when(documentService.isUnchanged(eq(unchanged), any())).thenReturn(true);
+        when(documentService.isUnchanged(eq(changed), any())).thenReturn(false);
+
+        ingester().start();
+
+        verify(documentService, timeout(5_000)).ingestFile(eq(changed), any());
+        verify(documentService, after(500).never()).ingestFile(eq(unchanged), any());
+    }
+
+    @Test
+    void hiddenAndTemporaryFilesAreIgnored() throws IOException {
+        file(".hidden.md");
+        file("download.part");
+        var document = file("document.md");
+
+        ingester().start();
+
+        verify(documentService, timeout(5_000)).ingestFile(eq(document), any());
+        verify(documentService, after(500).never()).ingestFile(eq(folder.resolve(".hidden.md").toFile()), any());
+        verify(documentService, never()).ingestFile(eq(folder.resolve("download.part").toFile()), any());
+    }
+
+    @Test
+    void documentsOfFilesDeletedWhileStoppedAreRemoved() throws IOException {
+        var gone = folder.resolve("gone.md").toUri().toString();
+        when(documentService.getDocuments()).thenReturn(List.of(
+                new DocumentInfo(gone, "gone.md", "watched", 3, Instant.EPOCH)));
+
+        ingester().start();
+
+        verify(documentService, timeout(5_000)).deleteDocument(gone);
+    }
+}
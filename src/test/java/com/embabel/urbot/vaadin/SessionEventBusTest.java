@@ -0,0 +1,197 @@
+package com.embabel.urbot.vaadin;
+
+import com.embabel.agent.api.channel.MessageOutputChannelEvent;
+import com.embabel.agent.api.channel.OutputChannelEvent;
+import com.embabel.agent.api.channel.ProgressOutputChannelEvent;
+import com.embabel.urbot.PartialMessageOutputChannelEvent;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.server.Command;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies buffering, merging of streamed text, overflow handling, resubscription and
+ * discarding of events for turns that are not awaited.
+ */
+class SessionEventBusTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<SessionEventBus.TurnEvent> delivered = new ArrayList<>();
+
+    // Runs UI commands immediately, as if the UI lock were free
+    private static UI ui() {
+        var ui = mock(UI.class);
+        when(ui.access(any())).thenAnswer(invocation -> {
+            invocation.<Command>getArgument(0).execute();
+            return null;
+        });
+        return ui;
+    }
+
+    private static PartialMessageOutputChannelEvent partial(String turnId, String delta) {
+        return new PartialMessageOutputChannelEvent("process", turnId, delta);
+    }
+
+    private List<OutputChannelEvent> events() {
+        return delivered.stream().map(SessionEventBus.TurnEvent::event).toList();
+    }
+
+    private double dropped() {
+        return meterRegistry.find("urbot.chat.session-events.dropped").counters().stream()
+                .mapToDouble(counter -> counter.count())
+                .sum();
+    }
+
+    @Test
+    void eventsPublishedWithoutSubscriberAreDeliveredOnSubscribe() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        bus.await("turn-1");
+        bus.publish("turn-1", partial("turn-1", "Hel"));
+        bus.publish("turn-1", partial("turn-1", "lo"));
+
+        bus.subscribe(ui(), delivered::add);
+
+        assertEquals(1, delivered.size());
+        var merged = assertInstanceOf(PartialMessageOutputChannelEvent.class, delivered.getFirst().event());
+        assertEquals("Hello", merged.delta());
+    }
+
+    @Test
+    void streamedTextIsMergedOnlyWithConsecutiveTextOfTheSameTurn() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        var progress = mock(ProgressOutputChannelEvent.class);
+        bus.await("turn-2");
+        bus.publish("turn-1", partial("turn-1", "late"));
+        bus.publish("turn-2", partial("turn-2", "Hel"));
+        bus.publish("turn-2", partial("turn-2", "lo"));
+        bus.publish("turn-2", progress);
+        bus.publish("turn-2", partial("turn-2", " there"));
+
+        bus.subscribe(ui(), delivered::add);
+
+        assertEquals(3, delivered.size());
+        assertEquals("Hello", assertInstanceOf(PartialMessageOutputChannelEvent.class, events().get(0)).delta());
+        assertEquals(progress, events().get(1));
+        assertEquals(" there", assertInstanceOf(PartialMessageOutputChannelEvent.class, events().get(2)).delta());
+    }
+
+    @Test
+    void fullBufferDropsProgressBeforeMessages() {
+        var bus = new SessionEventBus(2, meterRegistry);
+        var progress = mock(ProgressOutputChannelEvent.class);
+        var first = mock(MessageOutputChannelEvent.class);
+        var second = mock(MessageOutputChannelEvent.class);
+        bus.await("turn-1");
+        bus.publish("turn-1", progress);
+        bus.publish("turn-1", first);
+        bus.publish("turn-1", second);
+
+        bus.subscribe(ui(), delivered::add);
+
+        assertEquals(List.of(first, second), events());
+        assertEquals(1.0, dropped());
+    }
+
+    @Test
+    void fullBufferOfMessagesDropsTheOldest() {
+        var bus = new SessionEventBus(2, meterRegistry);
+        var first = mock(MessageOutputChannelEvent.class);
+        var second = mock(MessageOutputChannelEvent.class);
+        var third = mock(MessageOutputChannelEvent.class);
+        bus.await("turn-1");
+        bus.publish("turn-1", first);
+        bus.publish("turn-1", second);
+        bus.publish("turn-1", third);
+
+        bus.subscribe(ui(), delivered::add);
+
+        assertEquals(List.of(second, third), events());
+        assertEquals(1.0, dropped());
+    }
+
+    @Test
+    void subscribedViewReceivesEventsAsPublished() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        bus.await("turn-1");
+        bus.subscribe(ui(), delivered::add);
+
+        bus.publish("turn-1", mock(ProgressOutputChannelEvent.class));
+        bus.publish("turn-1", mock(MessageOutputChannelEvent.class));
+
+        assertEquals(2, delivered.size());
+    }
+
+    @Test
+    void eventsAfterUnsubscribeWaitForTheNextView() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        var ui = ui();
+        var reloaded = new ArrayList<SessionEventBus.TurnEvent>();
+        bus.await("turn-1");
+        bus.subscribe(ui, delivered::add);
+        assertTrue(bus.hasSubscriber());
+        bus.unsubscribe(ui);
+        assertFalse(bus.hasSubscriber());
+
+        bus.publish("turn-1", mock(MessageOutputChannelEvent.class));
+        assertTrue(delivered.isEmpty());
+        bus.subscribe(ui(), reloaded::add);
+
+        assertEquals(1, reloaded.size());
+    }
+
+    @Test
+    void unsubscribingAReplacedViewKeepsTheCurrentOne() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        var replaced = ui();
+        var replacedEvents = new ArrayList<SessionEventBus.TurnEvent>();
+        bus.await("turn-1");
+        bus.subscribe(replaced, replacedEvents::add);
+        bus.subscribe(ui(), delivered::add);
+
+        bus.unsubscribe(replaced);
+        bus.publish("turn-1", mock(MessageOutputChannelEvent.class));
+
+        assertTrue(replacedEvents.isEmpty());
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    void eventsForTurnsNotAwaitedAreDiscarded() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        var answer = mock(MessageOutputChannelEvent.class);
+        bus.subscribe(ui(), delivered::add);
+        bus.publish("turn-1", mock(MessageOutputChannelEvent.class));
+        bus.await("turn-2");
+
+        bus.publish("turn-1", mock(MessageOutputChannelEvent.class));
+        bus.publish(null, mock(ProgressOutputChannelEvent.class));
+        bus.publish("turn-2", answer);
+        bus.finished("turn-2");
+        bus.publish("turn-2", mock(MessageOutputChannelEvent.class));
+
+        assertEquals(List.of(answer), events());
+    }
+
+    @Test
+    void finishingAnEarlierTurnKeepsTheAwaitedOne() {
+        var bus = new SessionEventBus(10, meterRegistry);
+        bus.subscribe(ui(), delivered::add);
+        bus.await("turn-2");
+
+        bus.finished("turn-1");
+        bus.publish("turn-2", mock(MessageOutputChannelEvent.class));
+
+        assertEquals(1, delivered.size());
+    }
+}